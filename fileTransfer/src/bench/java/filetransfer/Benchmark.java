@@ -0,0 +1,385 @@
+package filetransfer;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import com.sun.management.OperatingSystemMXBean;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Benchmark {
+
+    private static final String USAGE =
+            "Usage: gradle bench --args='[--sizes 4K,1M,...] [--concurrency 1,10,...] [--buffers 8K,64K,...]" +
+            " [--target-bytes N] [--max-uploads N] [--disk-budget N] [--client-memory N] [--dir PATH]" +
+            " [--out FILE] [-- SERVER_OPTIONS...]'";
+    private static final String CSV_HEADER = "size_bytes,concurrency,buffer_bytes,uploads,failed,bytes,seconds," +
+            "mb_per_s,cpu_seconds_per_gb,alloc_mb_per_s,p50_ms,p99_ms,max_ms";
+    private static final int GENERATOR_BLOCK = 4 * 1024 * 1024;
+    private static final long WARMUP_BYTES = 64L * 1024 * 1024;
+    private static final long SERVER_START_TIMEOUT_MS = 10_000;
+
+    private record Scenario(long size, int concurrency, int buffer) {}
+
+    private record Result(int uploads, int failed, long bytes, double seconds, double cpuSeconds,
+                          long allocated, long[] latencies) {}
+
+    private List<Long> sizes = parseSizes("4K,64K,1M,16M,256M,1G,10G");
+    private List<Long> concurrency = parseSizes("1,10,100,1000");
+    private List<Long> buffers = parseSizes("8K,64K,1M");
+    private long targetBytes = parseSize("1G");
+    private int maxUploads = 20_000;
+    private long diskBudget = parseSize("16G");
+    private long clientMemory = parseSize("256M");
+    private Path dir = Paths.get("build", "bench");
+    private Path out;
+    private final List<String> serverArgs = new ArrayList<>();
+
+    private final PrintStream report = System.out;
+    private final AllocationMeter allocations = new AllocationMeter();
+    private final OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+    private PrintStream log;
+    private Path uploads;
+    private int port;
+
+    public static void main(String[] args) throws Exception {
+        Benchmark bench = new Benchmark();
+        try {
+            bench.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+        bench.run();
+    }
+
+    private void parse(String[] args) {
+        int i = 0;
+        while (i < args.length) {
+            String option = args[i];
+            if (option.equals("--")) {
+                serverArgs.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                break;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[i + 1];
+            switch (option) {
+                case "--sizes" -> sizes = parseSizes(value);
+                case "--concurrency" -> concurrency = parseSizes(value);
+                case "--buffers" -> buffers = parseSizes(value);
+                case "--target-bytes" -> targetBytes = parseSize(value);
+                case "--max-uploads" -> maxUploads = (int) parseSize(value);
+                case "--disk-budget" -> diskBudget = parseSize(value);
+                case "--client-memory" -> clientMemory = parseSize(value);
+                case "--dir" -> dir = Paths.get(value);
+                case "--out" -> out = Paths.get(value);
+                default -> throw new IllegalArgumentException("Unknown option: " + option);
+            }
+            i += 2;
+        }
+        if (out == null) {
+            out = dir.resolve("results.csv");
+        }
+    }
+
+    private void run() throws Exception {
+        Files.createDirectories(dir);
+        uploads = dir.resolve("uploads");
+        Files.createDirectories(uploads);
+        clearUploads();
+        startServer();
+        report.println("Server on 127.0.0.1:" + port + (serverArgs.isEmpty() ? "" : " with " + serverArgs) +
+                ", log in " + dir.resolve("server.log"));
+
+        Path warmup = input(WARMUP_BYTES);
+        measure(warmup, new Scenario(WARMUP_BYTES, 1, 64 * 1024));
+        clearUploads();
+
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(out))) {
+            csv.println(CSV_HEADER);
+            report.printf("%12s %6s %8s %7s %10s %9s %10s %9s %9s%n",
+                    "size", "conc", "buffer", "uploads", "MB/s", "cpu s/GB", "alloc MB/s", "p50 ms", "p99 ms");
+            for (long size : sizes) {
+                Path source = null;
+                for (long c : concurrency) {
+                    for (long b : buffers) {
+                        Scenario s = new Scenario(size, (int) c, (int) b);
+                        String skip = skipReason(s);
+                        if (skip != null) {
+                            report.printf("%12d %6d %8d   skipped: %s%n", size, c, b, skip);
+                            continue;
+                        }
+                        if (source == null) {
+                            source = input(size);
+                        }
+                        Result r = measure(source, s);
+                        clearUploads();
+                        write(csv, s, r);
+                        csv.flush();
+                    }
+                }
+                if (source != null) {
+                    Files.deleteIfExists(source);
+                }
+            }
+        }
+        Files.deleteIfExists(warmup);
+        log.flush();
+        report.println("Results written to " + out.toAbsolutePath());
+    }
+
+    private String skipReason(Scenario s) {
+        if (s.size() > Protocol.MAX_FILE_SIZE) {
+            return "larger than the protocol allows";
+        }
+        if (s.size() * s.concurrency() > diskBudget) {
+            return "one round needs more than --disk-budget " + diskBudget + " bytes";
+        }
+        if ((long) s.buffer() * UploadSender.RING_DEPTH * s.concurrency() > clientMemory) {
+            return "client buffers need more than --client-memory " + clientMemory + " bytes";
+        }
+        return null;
+    }
+
+    private void startServer() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        List<String> args = new ArrayList<>(serverArgs);
+        args.addAll(List.of("--root", uploads.toString(), String.valueOf(port)));
+        ServerConfig config = ServerConfig.parse(args.toArray(new String[0]));
+
+        // the server logs every transfer; a buffered file keeps that cost close to a redirected production log
+        log = new PrintStream(new BufferedOutputStream(
+                Files.newOutputStream(dir.resolve("server.log")), 1 << 16), false);
+        System.setOut(log);
+        System.setErr(log);
+        Thread server = new Thread(() -> {
+            try {
+                new FileServer(config).run();
+            } catch (IOException e) {
+                report.println("Server stopped: " + e.getMessage());
+            }
+        }, "bench-server");
+        server.setDaemon(true);
+        server.start();
+
+        long deadline = System.currentTimeMillis() + SERVER_START_TIMEOUT_MS;
+        while (true) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline || !server.isAlive()) {
+                    throw new IOException("Server did not start on port " + port, e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private Path input(long size) throws IOException {
+        Path file = dir.resolve("input-" + size + ".bin");
+        if (Files.exists(file) && Files.size(file) == size) {
+            return file;
+        }
+        // random bytes, repeated per block: nothing on the path compresses or deduplicates here
+        byte[] block = new byte[GENERATOR_BLOCK];
+        new SplittableRandom(size).nextBytes(block);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long written = 0;
+            while (written < size) {
+                ByteBuffer buf = ByteBuffer.wrap(block, 0, (int) Math.min(block.length, size - written));
+                while (buf.hasRemaining()) {
+                    written += ch.write(buf);
+                }
+            }
+        }
+        return file;
+    }
+
+    private Result measure(Path source, Scenario s) throws Exception {
+        int perClient = (int) Math.max(1, Math.min(
+                Math.min(targetBytes / Math.max(1, s.size() * s.concurrency()), maxUploads / s.concurrency()),
+                diskBudget / (s.size() * s.concurrency())));
+        int total = perClient * s.concurrency();
+        String host = InetAddress.getLoopbackAddress().getHostAddress();
+        long[] latencies = new long[total];
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        CountDownLatch ready = new CountDownLatch(s.concurrency());
+        CountDownLatch go = new CountDownLatch(1);
+        ExecutorService clients = Executors.newFixedThreadPool(s.concurrency(), r -> {
+            Thread t = new Thread(r, "bench-client");
+            t.setDaemon(true);
+            return t;
+        });
+        for (int c = 0; c < s.concurrency(); c++) {
+            int client = c;
+            clients.execute(() -> {
+                FileClient uploader = new FileClient(s.buffer());
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perClient; i++) {
+                    long start = System.nanoTime();
+                    int status;
+                    try {
+                        // a fresh transfer id each time, or the server would offer to resume the previous upload
+                        status = uploader.upload(host, port, source, "bench-" + client + "-" + i, UUID.randomUUID());
+                    } catch (IOException e) {
+                        status = -1;
+                    }
+                    latencies[client * perClient + i] = System.nanoTime() - start;
+                    if (status == Protocol.STATUS_OK) {
+                        bytes.addAndGet(s.size());
+                    } else {
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        ready.await();
+
+        long allocatedBefore = allocations.allocated();
+        long cpuBefore = os.getProcessCpuTime();
+        long start = System.nanoTime();
+        go.countDown();
+        clients.shutdown();
+        clients.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        long elapsed = System.nanoTime() - start;
+        long cpu = os.getProcessCpuTime() - cpuBefore;
+        long allocated = allocations.allocated() - allocatedBefore;
+
+        Arrays.sort(latencies);
+        return new Result(total, failed.get(), bytes.get(), elapsed / 1e9, cpu / 1e9, allocated, latencies);
+    }
+
+    private void write(PrintWriter csv, Scenario s, Result r) {
+        double gb = r.bytes() / 1e9;
+        double mbps = r.bytes() / 1e6 / r.seconds();
+        double cpuPerGb = gb > 0 ? r.cpuSeconds() / gb : 0;
+        double allocRate = r.allocated() / 1e6 / r.seconds();
+        double p50 = percentile(r.latencies(), 0.50) / 1e6;
+        double p99 = percentile(r.latencies(), 0.99) / 1e6;
+        double max = r.latencies()[r.latencies().length - 1] / 1e6;
+        csv.printf("%d,%d,%d,%d,%d,%d,%.3f,%.2f,%.3f,%.2f,%.3f,%.3f,%.3f%n", s.size(), s.concurrency(), s.buffer(),
+                r.uploads(), r.failed(), r.bytes(), r.seconds(), mbps, cpuPerGb, allocRate, p50, p99, max);
+        report.printf("%12d %6d %8d %7d %10.2f %9.3f %10.2f %9.3f %9.3f%s%n", s.size(), s.concurrency(), s.buffer(),
+                r.uploads(), mbps, cpuPerGb, allocRate, p50, p99, r.failed() > 0 ? "  " + r.failed() + " failed" : "");
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private void clearUploads() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(uploads)) {
+            for (Path p : stream) {
+                if (Files.isRegularFile(p)) {
+                    Files.delete(p);
+                }
+            }
+        }
+    }
+
+    private static List<Long> parseSizes(String value) {
+        List<Long> list = new ArrayList<>();
+        for (String part : value.split(",")) {
+            list.add(parseSize(part.trim()));
+        }
+        return list;
+    }
+
+    private static long parseSize(String value) {
+        char unit = Character.toUpperCase(value.charAt(value.length() - 1));
+        int shift = switch (unit) {
+            case 'K' -> 10;
+            case 'M' -> 20;
+            case 'G' -> 30;
+            default -> 0;
+        };
+        long n = Long.parseLong(shift == 0 ? value : value.substring(0, value.length() - 1));
+        if (n <= 0) {
+            throw new IllegalArgumentException("Expected a positive size: " + value);
+        }
+        return n << shift;
+    }
+
+    // heap bytes freed by every collection plus what is live now; counts client and server together
+    private static final class AllocationMeter implements NotificationListener {
+
+        private final AtomicLong freed = new AtomicLong();
+        private final Set<String> heapPools = new HashSet<>();
+
+        AllocationMeter() {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    heapPools.add(pool.getName());
+                }
+            }
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (gc instanceof NotificationEmitter emitter) {
+                    emitter.addNotificationListener(this, null, null);
+                }
+            }
+        }
+
+        long allocated() {
+            return freed.get() + ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                return;
+            }
+            GcInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()).getGcInfo();
+            Map<String, MemoryUsage> after = info.getMemoryUsageAfterGc();
+            long delta = 0;
+            for (Map.Entry<String, MemoryUsage> e : info.getMemoryUsageBeforeGc().entrySet()) {
+                MemoryUsage pool = after.get(e.getKey());
+                if (pool != null && heapPools.contains(e.getKey())) {
+                    delta += e.getValue().getUsed() - pool.getUsed();
+                }
+            }
+            freed.addAndGet(delta);
+        }
+    }
+}
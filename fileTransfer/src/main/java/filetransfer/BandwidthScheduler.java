@@ -0,0 +1,236 @@
+package filetransfer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+final class BandwidthScheduler {
+
+    record AddressWeight(String prefix, int weight) {}
+
+    record SizeWeight(long maxBytes, int weight) {}
+
+    private static final long TICK_NANOS = 10_000_000;
+    private static final int BURST_TICKS = 2;
+
+    private final long tickBudget;
+    private final List<AddressWeight> addressWeights;
+    private final List<SizeWeight> sizeWeights;
+    private final Set<Flow> flows = ConcurrentHashMap.newKeySet();
+    private final AtomicLong advanced = new AtomicLong();
+    private volatile long lastTotalWeight;
+
+    BandwidthScheduler(long bytesPerSecond, List<AddressWeight> addressWeights, List<SizeWeight> sizeWeights) {
+        this.tickBudget = Math.max(1, bytesPerSecond * TICK_NANOS / 1_000_000_000L);
+        this.addressWeights = List.copyOf(addressWeights);
+        this.sizeWeights = sizeWeights.stream()
+                .sorted((a, b) -> Long.compare(a.maxBytes(), b.maxBytes()))
+                .toList();
+        Thread refill = new Thread(this::runRefill, "bandwidth-scheduler");
+        refill.setDaemon(true);
+        refill.start();
+    }
+
+    Flow open(InetAddress address) {
+        int weight = 1;
+        String host = address != null ? address.getHostAddress() : "";
+        for (AddressWeight w : addressWeights) {
+            if (host.startsWith(w.prefix())) {
+                weight = w.weight();
+                break;
+            }
+        }
+        Flow flow = new Flow(weight);
+        // start with one tick of fair share so short uploads do not wait for the next refill;
+        // the advance is taken out of the next budget, keeping the long-run rate exact
+        long initial = tickBudget * weight / (lastTotalWeight + weight);
+        flow.credit = initial;
+        advanced.addAndGet(initial);
+        flows.add(flow);
+        return flow;
+    }
+
+    private int sizeWeight(long size) {
+        for (SizeWeight w : sizeWeights) {
+            if (size <= w.maxBytes()) {
+                return w.weight();
+            }
+        }
+        return 1;
+    }
+
+    private void runRefill() {
+        long next = System.nanoTime();
+        while (true) {
+            next += TICK_NANOS;
+            LockSupport.parkNanos(next - System.nanoTime());
+            refill();
+        }
+    }
+
+    private void refill() {
+        long budget = tickBudget - advanced.getAndSet(0);
+        if (budget < 0) {
+            advanced.addAndGet(-budget);
+            budget = 0;
+        }
+        long totalWeight = 0;
+        long backloggedWeight = 0;
+        for (Flow f : flows) {
+            totalWeight += f.weight;
+            if (f.backlogged) {
+                backloggedWeight += f.weight;
+            }
+        }
+        lastTotalWeight = totalWeight;
+        if (totalWeight == 0) {
+            return;
+        }
+
+        // idle flows keep a small reserve of their share, the rest goes to flows that are waiting
+        long remaining = budget;
+        for (Flow f : flows) {
+            if (!f.backlogged) {
+                remaining -= f.topUp(budget * f.weight / totalWeight);
+            }
+        }
+        if (backloggedWeight == 0) {
+            return;
+        }
+        for (Flow f : flows) {
+            if (f.backlogged) {
+                f.grant(Math.max(remaining, 0) * f.weight / backloggedWeight);
+            }
+        }
+    }
+
+    final class Flow {
+
+        private final int addressWeight;
+        private volatile int weight;
+        private volatile boolean backlogged;
+        private long credit;
+        private Runnable onCredit;
+
+        private Flow(int addressWeight) {
+            this.addressWeight = addressWeight;
+            this.weight = addressWeight;
+        }
+
+        void sizeKnown(long size) {
+            weight = addressWeight * sizeWeight(size);
+        }
+
+        synchronized boolean tryAcquire() {
+            if (credit > 0) {
+                return true;
+            }
+            backlogged = true;
+            return false;
+        }
+
+        synchronized void acquire() throws InterruptedIOException {
+            while (credit <= 0) {
+                backlogged = true;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+                }
+            }
+        }
+
+        synchronized void consume(long n) {
+            credit -= n;
+        }
+
+        void whenCredited(Runnable action) {
+            synchronized (this) {
+                if (credit <= 0) {
+                    backlogged = true;
+                    onCredit = action;
+                    return;
+                }
+            }
+            action.run();
+        }
+
+        InputStream throttle(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    acquire();
+                    int b = super.read();
+                    if (b >= 0) {
+                        consume(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    acquire();
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        consume(n);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        void close() {
+            flows.remove(this);
+        }
+
+        private long topUp(long share) {
+            Runnable action;
+            long granted;
+            synchronized (this) {
+                long cap = share * BURST_TICKS;
+                granted = credit < cap ? Math.min(share, cap - credit) : 0;
+                credit += granted;
+                if (credit > 0) {
+                    notifyAll();
+                }
+                action = takeCallback();
+            }
+            if (action != null) {
+                action.run();
+            }
+            return granted;
+        }
+
+        private void grant(long bytes) {
+            Runnable action;
+            synchronized (this) {
+                credit += bytes;
+                if (credit > 0) {
+                    backlogged = false;
+                    notifyAll();
+                }
+                action = takeCallback();
+            }
+            if (action != null) {
+                action.run();
+            }
+        }
+
+        private Runnable takeCallback() {
+            if (credit <= 0 || onCredit == null) {
+                return null;
+            }
+            Runnable action = onCredit;
+            onCredit = null;
+            return action;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package filetransfer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class BatchReceiver {
+
+    private static final int BUFFERED_BYTES = 16 * 1024 * 1024;
+
+    private final FileServer server;
+    private final String clientInfo;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final BandwidthScheduler.Flow flow;
+    private final boolean replace;
+    private final Semaphore buffered = new Semaphore(BUFFERED_BYTES);
+    private final Phaser pending = new Phaser(1);
+    private final AtomicInteger stored = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile boolean ackFailed;
+
+    BatchReceiver(FileServer server, String clientInfo, DataInputStream in, DataOutputStream out,
+                  BandwidthScheduler.Flow flow, boolean replace) {
+        this.server = server;
+        this.clientInfo = clientInfo;
+        this.in = in;
+        this.out = out;
+        this.flow = flow;
+        this.replace = replace;
+    }
+
+    void receive() throws IOException {
+        long startTime = System.nanoTime();
+        long totalBytes = 0;
+        int seq = 0;
+        try {
+            while (true) {
+                int nameLen;
+                try {
+                    nameLen = in.readInt();
+                } catch (EOFException e) {
+                    // a sync client runs until stopped, closing between records is its normal end
+                    if (!replace) {
+                        throw e;
+                    }
+                    break;
+                }
+                if (nameLen == Protocol.BATCH_END) {
+                    break;
+                }
+                if (nameLen < 0 || nameLen > Protocol.MAX_NAME_BYTES) {
+                    throw new IOException("Invalid name length in batch record " + seq);
+                }
+                byte[] nameBytes = new byte[nameLen];
+                in.readFully(nameBytes);
+                String name = new String(nameBytes, StandardCharsets.UTF_8);
+                long size = in.readLong();
+                if (size < 0 || size > Protocol.MAX_FILE_SIZE) {
+                    throw new IOException("Invalid size in batch record " + seq + ": " + size);
+                }
+                if (flow != null) {
+                    flow.sizeKnown(size);
+                }
+
+                if (size <= Protocol.BATCH_INLINE_MAX) {
+                    receiveBuffered(seq, name, (int) size);
+                } else {
+                    ack(seq, storeStreaming(name, size));
+                }
+                totalBytes += size;
+                seq++;
+            }
+        } finally {
+            pending.arriveAndAwaitAdvance();
+        }
+
+        synchronized (out) {
+            out.writeInt(Protocol.BATCH_ACKS_END);
+            out.flush();
+        }
+
+        double sec = Math.max((System.nanoTime() - startTime) / 1_000_000_000.0, 1e-9);
+        System.out.printf("%s batch of %d files (%d bytes): %d stored, %d failed, %.0f files/s%n",
+                clientInfo, seq, totalBytes, stored.get(), failed.get(), seq / sec);
+    }
+
+    private void receiveBuffered(int seq, String name, int size) throws IOException {
+        buffered.acquireUninterruptibly(size);
+        byte[] body;
+        try {
+            body = new byte[size];
+            in.readFully(body);
+        } catch (IOException e) {
+            buffered.release(size);
+            throw e;
+        }
+
+        // placed on the receiving thread, so each write queues behind its own disk only
+        String safeName = storedName(name);
+        StorageRoots.Root root = placeBuffered(safeName, size);
+        Executor writers = (root != null ? root : server.storage().primary()).writers();
+        if (root != null) {
+            root.writeStarted(size);
+        }
+        pending.register();
+        writers.execute(() -> {
+            CompletableFuture<Integer> status = store(name, safeName, root, body);
+            if (root != null) {
+                status.whenComplete((code, error) -> root.writeFinished(size));
+            }
+            if (status.isDone()) {
+                finishBuffered(seq, size, status.join());
+            } else {
+                // acks may block on the socket, so keep them off the committer thread
+                status.thenAcceptAsync(code -> finishBuffered(seq, size, code), writers);
+            }
+        });
+    }
+
+    private StorageRoots.Root placeBuffered(String safeName, int size) {
+        try {
+            return server.packable(size) ? server.storage().primary() : server.storage().place(safeName, size);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void finishBuffered(int seq, int size, int status) {
+        try {
+            ack(seq, status);
+        } catch (IOException e) {
+            ackFailed = true;
+        } finally {
+            buffered.release(size);
+            pending.arriveAndDeregister();
+        }
+    }
+
+    private CompletableFuture<Integer> store(String name, String safeName, StorageRoots.Root root, byte[] body) {
+        FileChannel channel = null;
+        Path target = null;
+        Path file = null;
+        try {
+            if (root == null) {
+                throw new IOException("not enough disk space for " + body.length + " bytes");
+            }
+            if (server.packable(body.length)) {
+                // a sync record replaces the packed copy, a plain upload keeps it like a loose file
+                FileChannel written = replace ? server.packs().put(safeName, body, body.length)
+                        : server.packs().add(safeName, body, body.length).channel();
+                return committed(name, written, null, null, null, 0);
+            }
+            target = target(root, safeName);
+            file = staging(target);
+            channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            ByteBuffer buf = ByteBuffer.wrap(body);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            return committed(name, channel, root, file, target, body.length);
+        } catch (IOException e) {
+            if (channel != null) {
+                closeQuietly(channel);
+                discard(file, target);
+            }
+            System.err.println(clientInfo + " failed to store \"" + name + "\": " + e.getMessage());
+            return CompletableFuture.completedFuture(Protocol.STATUS_ERROR);
+        }
+    }
+
+    private CompletableFuture<Integer> committed(String name, FileChannel channel, StorageRoots.Root root,
+                                                 Path file, Path target, long length) {
+        return server.durability().commitAsync(channel).handle((ignored, error) -> {
+            if (file == null) {
+                return error == null ? Protocol.STATUS_OK : failed(name, error);
+            }
+            closeQuietly(channel);
+            try {
+                if (error != null) {
+                    throw error;
+                }
+                publish(root, file, target, length);
+                return Protocol.STATUS_OK;
+            } catch (Throwable e) {
+                discard(file, target);
+                return failed(name, e);
+            }
+        });
+    }
+
+    private int failed(String name, Throwable error) {
+        System.err.println(clientInfo + " failed to store \"" + name + "\": " + error.getMessage());
+        return Protocol.STATUS_ERROR;
+    }
+
+    private String storedName(String name) {
+        return replace ? FileServer.flattenPath(name) : FileServer.sanitizeFilename(name);
+    }
+
+    private Path target(StorageRoots.Root root, String safeName) throws IOException {
+        return replace ? root.dir().resolve(safeName) : FileServer.resolveInUploads(root.dir(), safeName);
+    }
+
+    private Path staging(Path target) {
+        // a sync record replaces the previous version, which stays readable until the new one is complete
+        return replace ? target.resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp") : target;
+    }
+
+    private void publish(StorageRoots.Root root, Path file, Path target, long length) throws IOException {
+        if (!file.equals(target)) {
+            Files.move(file, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        server.storage().stored(root, target, length);
+    }
+
+    private static void discard(Path file, Path target) {
+        if (file != null && !file.equals(target)) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+                // a leftover temp file is harmless, names starting with a dot are never handed out
+            }
+        }
+    }
+
+    private int storeStreaming(String name, long size) throws IOException {
+        FileChannel channel = null;
+        OutputStream fileOut = null;
+        Path target = null;
+        Path file = null;
+        StorageRoots.Root root = null;
+        try {
+            String safeName = storedName(name);
+            root = server.storage().place(safeName, size);
+            if (root == null) {
+                throw new IOException("not enough disk space for " + size + " bytes");
+            }
+            root.writeStarted(size);
+            target = target(root, safeName);
+            file = staging(target);
+            channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            FileServer.preallocate(channel, size);
+            fileOut = new BufferedOutputStream(Channels.newOutputStream(channel));
+        } catch (IOException e) {
+            if (channel != null) {
+                closeQuietly(channel);
+                discard(file, target);
+            }
+            System.err.println(clientInfo + " failed to store \"" + name + "\": " + e.getMessage());
+        }
+
+        try {
+            return streamBody(name, size, root, channel, fileOut, file, target);
+        } finally {
+            if (root != null) {
+                root.writeFinished(size);
+            }
+        }
+    }
+
+    private int streamBody(String name, long size, StorageRoots.Root root, FileChannel channel, OutputStream fileOut,
+                           Path file, Path target) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long remaining = size;
+        try {
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n == -1) {
+                    throw new EOFException("Connection closed inside batch record \"" + name + "\"");
+                }
+                if (fileOut != null) {
+                    try {
+                        fileOut.write(buffer, 0, n);
+                    } catch (IOException e) {
+                        System.err.println(clientInfo + " failed to store \"" + name + "\": " + e.getMessage());
+                        closeQuietly(fileOut);
+                        discard(file, target);
+                        fileOut = null;
+                    }
+                }
+                remaining -= n;
+            }
+        } finally {
+            if (fileOut != null && remaining > 0) {
+                closeQuietly(fileOut);
+                discard(file, target);
+                fileOut = null;
+            }
+        }
+
+        if (fileOut == null) {
+            return Protocol.STATUS_ERROR;
+        }
+        try {
+            try {
+                fileOut.flush();
+                server.durability().commit(channel);
+            } finally {
+                fileOut.close();
+            }
+            publish(root, file, target, size);
+            return Protocol.STATUS_OK;
+        } catch (IOException e) {
+            discard(file, target);
+            return failed(name, e);
+        }
+    }
+
+    private void ack(int seq, int status) throws IOException {
+        (status == Protocol.STATUS_OK ? stored : failed).incrementAndGet();
+        server.metrics().completed(status);
+        if (ackFailed) {
+            return;
+        }
+        synchronized (out) {
+            out.writeInt(seq);
+            out.writeByte(status);
+            out.flush();
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException ignored) {
+            // the record is already reported as failed
+        }
+    }
+}
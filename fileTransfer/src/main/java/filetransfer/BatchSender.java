@@ -0,0 +1,116 @@
+package filetransfer;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+final class BatchSender {
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Semaphore window;
+    private final int windowSize;
+    private final AtomicInteger stored = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile IOException ackError;
+
+    BatchSender(DataInputStream in, DataOutputStream out, int windowSize) {
+        this.in = in;
+        this.out = out;
+        this.windowSize = windowSize;
+        this.window = new Semaphore(windowSize);
+    }
+
+    void send(Path root, List<Path> files) throws IOException {
+        AtomicReferenceArray<String> names = new AtomicReferenceArray<>(files.size());
+        Thread ackReader = new Thread(() -> readAcks(names), "batch-acks");
+        ackReader.setDaemon(true);
+        ackReader.start();
+
+        long startTime = System.nanoTime();
+        long totalBytes = 0;
+        int sent = 0;
+        byte[] buffer = new byte[64 * 1024];
+        for (Path file : files) {
+            String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+            byte[] nameBytes;
+            long size;
+            try {
+                nameBytes = Protocol.encodeName(name);
+                size = Files.size(file);
+            } catch (IOException e) {
+                System.err.println("Skipping " + file + ": " + e.getMessage());
+                continue;
+            }
+
+            if (!window.tryAcquire()) {
+                out.flush();
+                window.acquireUninterruptibly();
+            }
+            if (ackError != null) {
+                throw ackError;
+            }
+
+            names.set(sent++, name);
+            Protocol.writeName(out, nameBytes);
+            out.writeLong(size);
+            try (InputStream fileIn = Files.newInputStream(file)) {
+                long remaining = size;
+                while (remaining > 0) {
+                    int n = fileIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (n == -1) {
+                        throw new EOFException("File shrank while sending: " + file);
+                    }
+                    out.write(buffer, 0, n);
+                    remaining -= n;
+                }
+            }
+            totalBytes += size;
+        }
+        out.writeInt(Protocol.BATCH_END);
+        out.flush();
+
+        try {
+            ackReader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for acknowledgements");
+        }
+        if (ackError != null) {
+            throw ackError;
+        }
+
+        double sec = Math.max((System.nanoTime() - startTime) / 1_000_000_000.0, 1e-9);
+        System.out.printf("Batch: %d files, %d bytes in %.2f s (%.0f files/s, window %d): %d stored, %d failed%n",
+                sent, totalBytes, sec, sent / sec, windowSize, stored.get(), failed.get());
+    }
+
+    private void readAcks(AtomicReferenceArray<String> names) {
+        try {
+            while (true) {
+                int seq = in.readInt();
+                if (seq == Protocol.BATCH_ACKS_END) {
+                    return;
+                }
+                int status = in.readUnsignedByte();
+                if (seq < 0 || seq >= names.length()) {
+                    throw new IOException("Server acknowledged unknown record " + seq);
+                }
+                if (status == Protocol.STATUS_OK) {
+                    stored.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                    System.err.println(names.get(seq) + ": " + Protocol.describeStatus(status));
+                }
+                window.release();
+            }
+        } catch (IOException e) {
+            ackError = e;
+            window.release(windowSize);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package filetransfer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+final class BufferPool {
+
+    private static final int SHARED_MAX_IDLE = 16;
+    private static final Map<Integer, BufferPool> SHARED = new ConcurrentHashMap<>();
+
+    private final int bufferSize;
+    private final int maxIdle;
+    private final ArrayDeque<ByteBuffer> idle = new ArrayDeque<>();
+    private int allocated;
+
+    BufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+
+    // one process-wide pool per buffer size, for threads that do not own a reactor
+    static BufferPool shared(int bufferSize) {
+        return SHARED.computeIfAbsent(bufferSize, size -> new BufferPool(size, SHARED_MAX_IDLE));
+    }
+
+    synchronized ByteBuffer acquire() {
+        ByteBuffer buf = idle.pollFirst();
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(bufferSize);
+            allocated++;
+        }
+        return buf;
+    }
+
+    synchronized void release(ByteBuffer buf) {
+        buf.clear();
+        if (idle.size() < maxIdle) {
+            idle.addFirst(buf);
+        } else {
+            allocated--;
+        }
+    }
+
+    synchronized int allocated() {
+        return allocated;
+    }
+}
@@ -0,0 +1,141 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+
+final class BufferTuner {
+
+    record Bounds(int min, int max) {
+
+        static Bounds parse(String option, String value) {
+            int colon = value.indexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Expected MIN:MAX for " + option);
+            }
+            int min = Integer.parseInt(value.substring(0, colon));
+            int max = Integer.parseInt(value.substring(colon + 1));
+            if (min <= 0 || max < min) {
+                throw new IllegalArgumentException(option + " needs 0 < MIN <= MAX");
+            }
+            return new Bounds(min, max);
+        }
+    }
+
+    static final int MIN_CHUNK = 64 * 1024;
+    static final int MAX_CHUNK = 4 * 1024 * 1024;
+    private static final long MIN_SAMPLE_NANOS = 200_000_000;
+    private static final long MAX_SAMPLE_NANOS = 2_000_000_000;
+    private static final int SAMPLE_RTTS = 8;
+
+    private final Socket socket;
+    private final Bounds bounds;
+    private final boolean sending;
+    private final int maxChunk;
+    private final Metrics.Client metrics;
+
+    private long rttNanos;
+    private long peerWaitStart;
+    private long start;
+    private long bytes;
+    private long midNanos;
+    private long midBytes;
+    private boolean done;
+    private int chunk;
+    private int buffer;
+    private double rate;
+    private String summary;
+
+    // the probe runs with the largest allowed buffer so the window never caps what is measured
+    BufferTuner(Socket socket, Bounds bounds, boolean sending, Metrics.Client metrics)
+            throws SocketException {
+        this.socket = socket;
+        this.bounds = bounds;
+        this.sending = sending;
+        this.maxChunk = Math.min(MAX_CHUNK, Integer.highestOneBit(bounds.max()));
+        this.metrics = metrics;
+        if (sending) {
+            socket.setSendBufferSize(bounds.max());
+        } else {
+            socket.setReceiveBufferSize(bounds.max());
+        }
+    }
+
+    // keeps the smallest sample: every source here includes some processing time on top of the path
+    void rtt(long nanos) {
+        rttNanos = rttNanos == 0 ? Math.max(nanos, 1) : Math.min(rttNanos, Math.max(nanos, 1));
+    }
+
+    // the peer answers a request just sent; its first bytes close one round trip
+    void awaitingPeer() {
+        peerWaitStart = System.nanoTime();
+    }
+
+    int maxChunk() {
+        return maxChunk;
+    }
+
+    boolean tuned() {
+        return done;
+    }
+
+    int chunkSize() {
+        return chunk;
+    }
+
+    String summary() {
+        return summary != null ? summary
+                : String.format("Autotune: rtt %.2f ms, transfer too short to measure delivery", rttNanos / 1e6);
+    }
+
+    void onBytes(long n) throws IOException {
+        if (done) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (start == 0) {
+            start = now;
+            if (peerWaitStart > 0) {
+                rtt(now - peerWaitStart);
+            }
+        }
+        bytes += n;
+        long window = Math.min(MAX_SAMPLE_NANOS, Math.max(MIN_SAMPLE_NANOS, SAMPLE_RTTS * rttNanos));
+        long elapsed = now - start;
+        if (midNanos == 0 && elapsed >= window / 2) {
+            // the first half absorbs the burst that fills the socket buffer, only the second half
+            // runs at the rate the path actually delivers
+            midNanos = now;
+            midBytes = bytes;
+        } else if (midNanos > 0 && elapsed >= window && now > midNanos) {
+            decide((bytes - midBytes) * 1e9 / (now - midNanos));
+        }
+    }
+
+    private void decide(double deliveryRate) throws IOException {
+        done = true;
+        rate = deliveryRate;
+        long bdp = (long) (rate * rttNanos / 1e9);
+        long target = Math.max(2 * bdp, 1);
+        buffer = (int) Math.min(bounds.max(), Math.max(bounds.min(), ceilPowerOfTwo(target)));
+        int granted;
+        if (sending) {
+            socket.setSendBufferSize(buffer);
+            granted = socket.getSendBufferSize();
+        } else {
+            socket.setReceiveBufferSize(buffer);
+            granted = socket.getReceiveBufferSize();
+        }
+        chunk = (int) Math.min(maxChunk, Math.max(MIN_CHUNK, Long.highestOneBit(Math.max(bdp, 1))));
+        summary = String.format("Autotune: rtt %.2f ms, delivery %.2f MB/s, BDP %d bytes -> %s %d (kernel %d), chunk %d",
+                rttNanos / 1e6, rate / 1e6, bdp, sending ? "SO_SNDBUF" : "SO_RCVBUF", buffer, granted, chunk);
+        if (metrics != null) {
+            metrics.tuned(rttNanos, granted, chunk);
+        }
+    }
+
+    private static long ceilPowerOfTwo(long n) {
+        long high = Long.highestOneBit(n);
+        return high == n ? n : high << 1;
+    }
+}
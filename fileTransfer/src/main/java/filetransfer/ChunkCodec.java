@@ -0,0 +1,27 @@
+package filetransfer;
+
+import java.io.IOException;
+
+interface ChunkCodec extends AutoCloseable {
+
+    byte CODEC_RAW = 0;
+    byte CODEC_DEFLATE = 1;
+
+    byte id();
+
+    int compress(byte[] src, int off, int len, byte[] dst, int maxLen);
+
+    void beginDecompress(byte[] src, int len);
+
+    int decompress(byte[] dst, int off, int len) throws IOException;
+
+    @Override
+    void close();
+
+    static ChunkCodec forId(byte id) {
+        return switch (id) {
+            case CODEC_DEFLATE -> new DeflateCodec();
+            default -> null;
+        };
+    }
+}
@@ -0,0 +1,64 @@
+package filetransfer;
+
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+final class ChunkLedger {
+
+    private record Chunk(int length, int crc) {}
+
+    private long prefixEnd;
+    private int prefixCrc;
+    private final TreeMap<Long, Chunk> verified = new TreeMap<>();
+    private final TreeMap<Long, Integer> bad = new TreeMap<>();
+
+    ChunkLedger(long prefixEnd, int prefixCrc) {
+        this.prefixEnd = prefixEnd;
+        this.prefixCrc = prefixCrc;
+    }
+
+    void accept(long offset, int length, int crc) {
+        bad.remove(offset);
+        if (offset != prefixEnd) {
+            verified.put(offset, new Chunk(length, crc));
+            return;
+        }
+        prefixCrc = Crc32c.combine(prefixCrc, crc, length);
+        prefixEnd += length;
+
+        Chunk next;
+        while ((next = verified.remove(prefixEnd)) != null) {
+            prefixCrc = Crc32c.combine(prefixCrc, next.crc, next.length);
+            prefixEnd += next.length;
+        }
+    }
+
+    void reject(long offset, int length) {
+        bad.put(offset, length);
+    }
+
+    boolean isBad(long offset, int length) {
+        Integer len = bad.get(offset);
+        return len != null && len == length;
+    }
+
+    NavigableMap<Long, Integer> badChunks() {
+        return new TreeMap<>(bad);
+    }
+
+    boolean hasBadChunks() {
+        return !bad.isEmpty();
+    }
+
+    long verifiedPrefix() {
+        return prefixEnd;
+    }
+
+    int prefixCrc() {
+        return prefixCrc;
+    }
+
+    boolean isComplete(long fileSize) {
+        return prefixEnd == fileSize && bad.isEmpty() && verified.isEmpty();
+    }
+}
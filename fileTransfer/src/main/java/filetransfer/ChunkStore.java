@@ -0,0 +1,68 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.UUID;
+
+final class ChunkStore {
+
+    static final int HASH_BYTES = 32;
+
+    private final Path dir;
+
+    ChunkStore(Path uploadsReal) throws IOException {
+        this.dir = uploadsReal.resolve(".chunks");
+        Files.createDirectories(dir);
+    }
+
+    boolean contains(byte[] hash) {
+        return Files.isRegularFile(pathOf(hash));
+    }
+
+    boolean put(byte[] hash, byte[] data, int length) throws IOException {
+        MessageDigest sha = ContentChunker.sha256();
+        sha.update(data, 0, length);
+        if (!MessageDigest.isEqual(sha.digest(), hash)) {
+            return false;
+        }
+
+        Path target = pathOf(hash);
+        if (Files.isRegularFile(target)) {
+            return true;
+        }
+        Files.createDirectories(target.getParent());
+        Path tmp = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+        }
+        try {
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return true;
+    }
+
+    long copyTo(byte[] hash, FileChannel out) throws IOException {
+        try (FileChannel ch = FileChannel.open(pathOf(hash), StandardOpenOption.READ)) {
+            long size = ch.size();
+            long pos = 0;
+            while (pos < size) {
+                pos += ch.transferTo(pos, size - pos, out);
+            }
+            return size;
+        }
+    }
+
+    private Path pathOf(byte[] hash) {
+        String hex = HexFormat.of().formatHex(hash);
+        return dir.resolve(hex.substring(0, 2)).resolve(hex.substring(2));
+    }
+}
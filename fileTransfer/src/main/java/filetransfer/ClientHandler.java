@@ -0,0 +1,704 @@
+package filetransfer;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.UUID;
+
+class ClientHandler implements Runnable {
+
+    private static final long UDP_IDLE_TIMEOUT_MS = 30_000;
+
+    private final FileServer server;
+    private final Socket socket;
+    private final int clientId;
+    private final String clientInfo;
+    private final byte[] consumedMagic;
+    private Metrics.Client metrics;
+    private BandwidthScheduler.Flow flow;
+
+    ClientHandler(FileServer server, Socket socket, int clientId) {
+        this(server, socket, clientId, null, null);
+    }
+
+    ClientHandler(FileServer server, Socket socket, int clientId, byte[] consumedMagic, Metrics.Client metrics) {
+        this.server = server;
+        this.socket = socket;
+        this.clientId = clientId;
+        this.clientInfo = "Client#" + clientId + " [" + socket.getRemoteSocketAddress() + "]";
+        this.consumedMagic = consumedMagic;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void run() {
+        System.out.println(clientInfo + " connected");
+        if (metrics == null) {
+            metrics = server.metrics().open(clientId, String.valueOf(socket.getRemoteSocketAddress()));
+        }
+
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socketInput()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+
+            byte[] magicBuf = consumedMagic;
+            if (magicBuf == null) {
+                magicBuf = new byte[4];
+                in.readFully(magicBuf);
+            }
+            if (Protocol.matchesMagic(magicBuf, Protocol.MAGIC_V1)) {
+                handleLegacyUpload(in, out);
+            } else if (Protocol.matchesMagic(magicBuf, Protocol.MAGIC_V2)) {
+                byte op = in.readByte();
+                if (op == Protocol.OP_PUT) {
+                    handlePut(in, out);
+                } else if (op == Protocol.OP_PUT_DEDUP) {
+                    handleDedupPut(in, out);
+                } else if (op == Protocol.OP_PUT_DELTA) {
+                    handleDeltaPut(in, out);
+                } else if (op == Protocol.OP_BATCH || op == Protocol.OP_SYNC) {
+                    handleBatch(in, out, op == Protocol.OP_SYNC);
+                } else if (op == Protocol.OP_LIST) {
+                    handleList(out);
+                } else if (op == Protocol.OP_GET) {
+                    handleGet(in, out);
+                } else if (op == Protocol.OP_UDP_PUT) {
+                    handleUdpPut(in, out);
+                } else {
+                    reply(out, Protocol.STATUS_ERROR);
+                }
+            } else {
+                reply(out, Protocol.STATUS_ERROR);
+            }
+
+        } catch (IOException e) {
+            System.err.println(clientInfo + " error: " + e.getMessage());
+        } finally {
+            if (flow != null) {
+                flow.close();
+            }
+            metrics.close();
+            System.out.println(clientInfo + " disconnected");
+        }
+    }
+
+    private void handleLegacyUpload(DataInputStream in, DataOutputStream out) throws IOException {
+        String originalName = Protocol.readName(in);
+        if (originalName == null) {
+            reply(out, Protocol.STATUS_ERROR);
+            return;
+        }
+        metrics.begin(originalName);
+
+        long fileSize = in.readLong();
+        sizeKnown(fileSize);
+        if (fileSize < 0 || fileSize > Protocol.MAX_FILE_SIZE) {
+            reply(out, Protocol.STATUS_ERROR);
+            return;
+        }
+
+        String safeName = FileServer.sanitizeFilename(originalName);
+        if (server.packable(fileSize)) {
+            byte[] body = new byte[(int) fileSize];
+            try {
+                in.readFully(body);
+            } catch (EOFException e) {
+                reply(out, Protocol.STATUS_INCOMPLETE);
+                return;
+            }
+            StorageRoots.Root primary = server.storage().primary();
+            PackStore.Stored stored;
+            primary.writeStarted(fileSize);
+            try {
+                stored = server.packs().add(safeName, body, body.length);
+                server.durability().commit(stored.channel());
+            } finally {
+                primary.writeFinished(fileSize);
+            }
+            System.out.println(clientInfo + " stored \"" + originalName + "\" in pack as " + stored.name() +
+                    " (" + fileSize + " bytes)");
+            finishTransfer(out, true);
+            return;
+        }
+        StorageRoots.Root root = server.storage().place(safeName, fileSize);
+        if (root == null) {
+            System.err.println(clientInfo + " not enough disk space for " + fileSize + " bytes");
+            reply(out, Protocol.STATUS_ERROR);
+            return;
+        }
+        Path target = FileServer.resolveInUploads(root.dir(), safeName);
+
+        System.out.println(clientInfo + " sending \"" + originalName + "\" → " +
+                target.getFileName() + " (" + fileSize + " bytes)");
+
+        SpeedMeter meter = new SpeedMeter(clientInfo);
+        long totalBytes = 0;
+
+        byte[] buffer = new byte[64 * 1024];
+        long remaining = fileSize;
+
+        root.writeStarted(fileSize);
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            FileServer.preallocate(channel, fileSize);
+            OutputStream fileOut = new BufferedOutputStream(Channels.newOutputStream(channel));
+
+            while (remaining > 0) {
+                int toRead = (int) Math.min(buffer.length, remaining);
+                int n = in.read(buffer, 0, toRead);
+                if (n == -1) {
+                    fileOut.flush();
+                    channel.truncate(totalBytes);
+                    reply(out, Protocol.STATUS_INCOMPLETE);
+                    return;
+                }
+
+                fileOut.write(buffer, 0, n);
+                totalBytes += n;
+                remaining -= n;
+                meter.onProgress(totalBytes);
+            }
+
+            fileOut.flush();
+            server.durability().commit(channel);
+        } finally {
+            root.writeFinished(fileSize);
+        }
+
+        server.storage().stored(root, target, totalBytes);
+        meter.finish(totalBytes);
+        finishTransfer(out, totalBytes == fileSize);
+    }
+
+    private void handlePut(DataInputStream in, DataOutputStream out) throws IOException {
+        int requestedFlags = in.readInt();
+        String originalName = Protocol.readName(in);
+        if (originalName == null) {
+            reply(out, Protocol.STATUS_ERROR);
+            return;
+        }
+        metrics.begin(originalName);
+
+        long fileSize = in.readLong();
+        sizeKnown(fileSize);
+        if (fileSize < 0 || fileSize > Protocol.MAX_FILE_SIZE) {
+            reply(out, Protocol.STATUS_ERROR);
+            return;
+        }
+
+        UUID transferId = new UUID(in.readLong(), in.readLong());
+        long fingerprint = in.readLong();
+
+        String safeName = FileServer.sanitizeFilename(originalName);
+        StorageRoots.Root root = server.packable(fileSize) ? server.storage().primary()
+                : server.storage().placeResumable(transferId, safeName, fileSize);
+        if (root == null) {
+            System.err.println(clientInfo + " not enough disk space for " + fileSize + " bytes");
+            reply(out, Protocol.STATUS_ERROR);
+            return;
+        }
+        PartialStore.Partial partial = root.partials().open(transferId, originalName, fileSize, fingerprint);
+        if (partial == null) {
+            System.err.println(clientInfo + " transfer " + transferId + " is already in progress");
+            reply(out, Protocol.STATUS_ERROR);
+            return;
+        }
+
+        root.writeStarted(fileSize);
+        try (partial) {
+            int acceptedFlags = requestedFlags & Protocol.SUPPORTED_FLAGS;
+            boolean verified = (acceptedFlags & Protocol.FLAG_CRC32C) != 0;
+            boolean compressed = (acceptedFlags & Protocol.FLAG_COMPRESS) != 0;
+            long offset = partial.committedOffset();
+            out.writeByte(Protocol.STATUS_OK);
+            out.writeInt(acceptedFlags);
+            out.writeLong(offset);
+            if (verified) {
+                out.writeInt(partial.committedCrc());
+            }
+            BufferTuner tuner = server.autotune() != null
+                    ? new BufferTuner(socket, server.autotune(), false, metrics)
+                    : null;
+            out.flush();
+            if (tuner != null) {
+                tuner.awaitingPeer();
+            }
+
+            System.out.println(clientInfo + " sending \"" + originalName + "\" (" + fileSize + " bytes)" +
+                    (offset > 0 ? ", resuming at " + offset : "") +
+                    (verified ? ", CRC32C chunks" : "") +
+                    (compressed ? ", compressed" : ""));
+
+            try (UploadReceiver receiver = new UploadReceiver(clientInfo, in, partial, fileSize, verified, compressed, tuner)) {
+                long received = verified || compressed ? receiver.receiveChunked() : receiver.receiveRaw();
+                if (tuner != null) {
+                    System.out.println(clientInfo + " " + tuner.summary());
+                }
+                if (received < fileSize) {
+                    System.err.println(clientInfo + " connection closed at " + received + " of " + fileSize);
+                    reply(out, Protocol.STATUS_INCOMPLETE);
+                    return;
+                }
+
+                if (verified) {
+                    if (!receiver.repairBadChunks(out)) {
+                        System.err.println(clientInfo + " chunks still corrupted after retries");
+                        reply(out, Protocol.STATUS_CORRUPT);
+                        return;
+                    }
+                    int clientCrc = in.readInt();
+                    if (clientCrc != receiver.fileCrc()) {
+                        System.err.printf("%s file digest mismatch: client=%08x server=%08x%n",
+                                clientInfo, clientCrc, receiver.fileCrc());
+                        reply(out, Protocol.STATUS_CORRUPT);
+                        return;
+                    }
+                }
+                if (!receiver.isComplete()) {
+                    reply(out, Protocol.STATUS_INCOMPLETE);
+                    return;
+                }
+
+                if (server.packable(fileSize)) {
+                    String stored = partial.completeInto(server.packs(), safeName, server.durability());
+                    System.out.printf("%s stored in pack as %s (crc32c %08x)%n", clientInfo, stored, receiver.fileCrc());
+                } else {
+                    Path target = FileServer.resolveInUploads(root.dir(), safeName);
+                    target = partial.complete(target, server.durability());
+                    server.storage().stored(root, target, fileSize);
+                    System.out.printf("%s stored as %s (crc32c %08x)%n", clientInfo, target.getFileName(), receiver.fileCrc());
+                }
+                finishTransfer(out, true);
+            }
+        } finally {
+            root.writeFinished(fileSize);
+        }
+    }
+
+    private void handleDedupPut(DataInputStream in, DataOutputStream out) throws IOException {
+        in.readInt();
+        String originalName = Protocol.readName(in);
+        if (originalName == null) {
+            reply(out, Protocol.STATUS_ERROR);
+            return;
+        }
+        metrics.begin(originalName);
+
+        long fileSize = in.readLong();
+        sizeKnown(fileSize);
+        int count = in.readInt();
+        if (fileSize < 0 || fileSize > Protocol.MAX_FILE_SIZE || count < 0 || count > Protocol.MAX_DEDUP_CHUNKS) {
+            reply(out, Protocol.STATUS_ERROR);
+            return;
+        }
+
+        byte[][] hashes = new byte[count][ChunkStore.HASH_BYTES];
+        int[] lengths = new int[count];
+        long total = 0;
+        int maxLength = 0;
+        for (int i = 0; i < count; i++) {
+            in.readFully(hashes[i]);
+            lengths[i] = in.readInt();
+            if (lengths[i] <= 0 || lengths[i] > Protocol.MAX_CHUNK_SIZE) {
+                reply(out, Protocol.STATUS_ERROR);
+                return;
+            }
+            total += lengths[i];
+            maxLength = Math.max(maxLength, lengths[i]);
+        }
+        if (total != fileSize) {
+            reply(out, Protocol.STATUS_ERROR);
+            return;
+        }
+
+        ChunkStore store = server.chunks();
+        Set<String> requested = new HashSet<>();
+        byte[] missing = new byte[(count + 7) / 8];
+        int missingCount = 0;
+        long missingBytes = 0;
+        for (int i = 0; i < count; i++) {
+            if (!store.contains(hashes[i]) && requested.add(HexFormat.of().formatHex(hashes[i]))) {
+                missing[i >> 3] |= (byte) (1 << (i & 7));
+                missingCount++;
+                missingBytes += lengths[i];
+            }
+        }
+
+        out.writeByte(Protocol.STATUS_OK);
+        out.write(missing);
+        out.flush();
+
+        System.out.println(clientInfo + " sending \"" + originalName + "\" (" + fileSize + " bytes) in " +
+                count + " chunks, " + missingCount + " chunks / " + missingBytes + " bytes not in store");
+
+        SpeedMeter meter = new SpeedMeter(clientInfo);
+        byte[] buffer = new byte[maxLength];
+        long received = 0;
+        boolean corrupt = false;
+        for (int i = 0; i < count; i++) {
+            if ((missing[i >> 3] & (1 << (i & 7))) == 0) {
+                continue;
+            }
+            in.readFully(buffer, 0, lengths[i]);
+            if (!store.put(hashes[i], buffer, lengths[i])) {
+                corrupt = true;
+            }
+            received += lengths[i];
+            meter.onProgress(received);
+        }
+        meter.finish(received);
+
+        if (corrupt) {
+            System.err.println(clientInfo + " chunk content does not match its hash");
+            reply(out, Protocol.STATUS_CORRUPT);
+            return;
+        }
+
+        String safeName = FileServer.sanitizeFilename(originalName);
+        StorageRoots.Root root = server.storage().place(safeName, fileSize);
+        if (root == null) {
+            System.err.println(clientInfo + " not enough disk space for " + fileSize + " bytes");
+            reply(out, Protocol.STATUS_ERROR);
+            return;
+        }
+        // assembled next to its final name, so the rename never crosses disks
+        Path tmp = root.partials().dir().resolve("dedup-" + UUID.randomUUID() + ".tmp");
+        root.writeStarted(fileSize);
+        try {
+            long written = 0;
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                for (int i = 0; i < count; i++) {
+                    written += store.copyTo(hashes[i], ch);
+                }
+                ch.force(false);
+            }
+            if (written != fileSize) {
+                reply(out, Protocol.STATUS_INCOMPLETE);
+                return;
+            }
+            Path target = FileServer.resolveInUploads(root.dir(), safeName);
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            server.storage().stored(root, target, fileSize);
+            System.out.println(clientInfo + " assembled " + target.getFileName() + " from chunk store");
+        } finally {
+            root.writeFinished(fileSize);
+            Files.deleteIfExists(tmp);
+        }
+        finishTransfer(out, true);
+    }
+
+    private void handleDeltaPut(DataInputStream in, DataOutputStream out) throws IOException {
+        in.readInt();
+        String originalName = Protocol.readName(in);
+        if (originalName == null) {
+            reply(out, Protocol.STATUS_ERROR);
+            return;
+        }
+        metrics.begin(originalName);
+
+        long fileSize = in.readLong();
+        sizeKnown(fileSize);
+        if (fileSize < 0 || fileSize > Protocol.MAX_FILE_SIZE) {
+            reply(out, Protocol.STATUS_ERROR);
+            return;
+        }
+
+        String safeName = FileServer.sanitizeFilename(originalName);
+        StorageRoots.Root root = server.storage().place(safeName, fileSize);
+        Path base = root != null ? root.resolve(safeName) : null;
+        if (base == null) {
+            System.err.println(clientInfo + " cannot place " + fileSize + " bytes for \"" + safeName + "\"");
+            reply(out, Protocol.STATUS_ERROR);
+            return;
+        }
+        boolean hasBase = Files.isRegularFile(base);
+        DeltaSignatures signatures = hasBase ? DeltaSignatures.compute(base) : DeltaSignatures.empty();
+
+        out.writeByte(Protocol.STATUS_OK);
+        signatures.write(out);
+        out.flush();
+
+        System.out.println(clientInfo + " sending delta for \"" + originalName + "\" (" + fileSize + " bytes) against " +
+                (hasBase ? signatures.blockCount() + " blocks of " + signatures.blockSize + " bytes" : "no base"));
+
+        SpeedMeter meter = new SpeedMeter(clientInfo);
+        MessageDigest sha = ContentChunker.sha256();
+        byte[] buffer = new byte[Math.max(DeltaEncoder.MAX_LITERAL, signatures.blockSize)];
+        long written = 0;
+        long literalBytes = 0;
+        byte[] clientDigest = new byte[ChunkStore.HASH_BYTES];
+
+        Path tmp = root.partials().dir().resolve("delta-" + UUID.randomUUID() + ".tmp");
+        root.writeStarted(fileSize);
+        try {
+            try (FileChannel baseCh = hasBase ? FileChannel.open(base, StandardOpenOption.READ) : null;
+                 FileChannel outCh = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                while (true) {
+                    byte op = in.readByte();
+                    if (op == Protocol.DELTA_END) {
+                        in.readFully(clientDigest);
+                        break;
+                    } else if (op == Protocol.DELTA_COPY) {
+                        int start = in.readInt();
+                        int count = in.readInt();
+                        if (baseCh == null || start < 0 || count <= 0 || count > signatures.blockCount() - start) {
+                            throw new IOException("Invalid block reference " + start + "+" + count);
+                        }
+                        for (int i = 0; i < count; i++) {
+                            ByteBuffer block = ByteBuffer.wrap(buffer, 0, signatures.blockSize);
+                            long basePos = (long) (start + i) * signatures.blockSize;
+                            while (block.hasRemaining()) {
+                                if (baseCh.read(block, basePos + block.position()) == -1) {
+                                    throw new IOException("Base file shrank during delta upload");
+                                }
+                            }
+                            written += writeFully(outCh, buffer, signatures.blockSize, sha);
+                        }
+                    } else if (op == Protocol.DELTA_LITERAL) {
+                        int len = in.readInt();
+                        if (len <= 0 || len > DeltaEncoder.MAX_LITERAL) {
+                            throw new IOException("Invalid literal length " + len);
+                        }
+                        in.readFully(buffer, 0, len);
+                        written += writeFully(outCh, buffer, len, sha);
+                        literalBytes += len;
+                        meter.onProgress(literalBytes);
+                    } else {
+                        throw new IOException("Unknown delta instruction " + op);
+                    }
+                    if (written > fileSize) {
+                        throw new IOException("Delta produces more than the announced " + fileSize + " bytes");
+                    }
+                }
+                outCh.force(false);
+            }
+            meter.finish(literalBytes);
+
+            if (written != fileSize) {
+                finishTransfer(out, false);
+                return;
+            }
+            if (!MessageDigest.isEqual(sha.digest(), clientDigest)) {
+                System.err.println(clientInfo + " reconstructed file does not match client digest");
+                reply(out, Protocol.STATUS_CORRUPT);
+                return;
+            }
+            Files.move(tmp, base, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            server.storage().stored(root, base, written);
+            System.out.println(clientInfo + " rebuilt " + base.getFileName() + " from " + literalBytes +
+                    " literal bytes and " + (written - literalBytes) + " copied bytes");
+        } finally {
+            root.writeFinished(fileSize);
+            Files.deleteIfExists(tmp);
+        }
+        finishTransfer(out, true);
+    }
+
+    private void handleBatch(DataInputStream in, DataOutputStream out, boolean sync) throws IOException {
+        int window = Math.min(Math.max(in.readInt(), 1), Protocol.MAX_BATCH_WINDOW);
+        out.writeByte(Protocol.STATUS_OK);
+        out.writeInt(window);
+        out.flush();
+
+        new BatchReceiver(server, clientInfo, in, out, flow, sync).receive();
+    }
+
+    private void handleList(DataOutputStream out) throws IOException {
+        out.writeByte(Protocol.STATUS_OK);
+        int[] listed = new int[1];
+        if (server.packs() != null) {
+            server.packs().forEach((name, size) -> {
+                writeListEntry(out, name, size);
+                listed[0]++;
+            });
+        }
+        server.storage().forEach((name, size) -> {
+            writeListEntry(out, name, size);
+            listed[0]++;
+        });
+        out.writeInt(0);
+        out.flush();
+        System.out.println(clientInfo + " listed " + listed[0] + " file(s)");
+    }
+
+    private void handleGet(DataInputStream in, DataOutputStream out) throws IOException {
+        String requestedName = Protocol.readName(in);
+        long offset = in.readLong();
+        long length = in.readLong();
+        if (requestedName == null) {
+            reply(out, Protocol.STATUS_ERROR);
+            return;
+        }
+        metrics.begin(requestedName);
+        String safeName = FileServer.sanitizeFilename(requestedName);
+
+        byte[] packed = server.packs() != null ? server.packs().get(safeName) : null;
+        if (packed != null) {
+            if (offset < 0 || offset > packed.length) {
+                reply(out, Protocol.STATUS_ERROR);
+                return;
+            }
+            int count = (int) (length < 0 ? packed.length - offset : Math.min(length, packed.length - offset));
+            writeRangeHeader(out, packed.length, offset, count);
+            out.write(packed, (int) offset, count);
+            out.flush();
+            metrics.sent(count);
+            metrics.finish(Protocol.STATUS_OK);
+            System.out.println(clientInfo + " served " + count + " bytes of \"" + safeName + "\" from pack");
+            return;
+        }
+
+        Path path = server.storage().locate(safeName);
+        if (path == null) {
+            reply(out, Protocol.STATUS_NOT_FOUND);
+            return;
+        }
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            if (offset < 0 || offset > size) {
+                reply(out, Protocol.STATUS_ERROR);
+                return;
+            }
+            long count = length < 0 ? size - offset : Math.min(length, size - offset);
+            writeRangeHeader(out, size, offset, count);
+            out.flush();
+
+            // sendfile straight from the page cache, so concurrent readers of a hot file share it
+            WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(out);
+            long position = offset;
+            long end = offset + count;
+            while (position < end) {
+                long n = file.transferTo(position, end - position, target);
+                if (n <= 0) {
+                    throw new EOFException("File shrank while serving \"" + safeName + "\"");
+                }
+                position += n;
+                metrics.sent(n);
+            }
+            out.flush();
+            metrics.finish(Protocol.STATUS_OK);
+            System.out.println(clientInfo + " served " + count + " bytes of \"" + safeName + "\" at offset " + offset);
+        }
+    }
+
+    private void handleUdpPut(DataInputStream in, DataOutputStream out) throws IOException {
+        String originalName = Protocol.readName(in);
+        if (originalName == null) {
+            reply(out, Protocol.STATUS_ERROR);
+            return;
+        }
+        metrics.begin(originalName);
+        long fileSize = in.readLong();
+        if (fileSize < 0 || fileSize > Protocol.UDP_MAX_FILE_SIZE) {
+            reply(out, Protocol.STATUS_ERROR);
+            return;
+        }
+        String safeName = FileServer.sanitizeFilename(originalName);
+        StorageRoots.Root root = server.storage().place(safeName, fileSize);
+        if (root == null) {
+            System.err.println(clientInfo + " not enough disk space for " + fileSize + " bytes");
+            reply(out, Protocol.STATUS_ERROR);
+            return;
+        }
+        Path target = FileServer.resolveInUploads(root.dir(), safeName);
+
+        boolean complete;
+        root.writeStarted(fileSize);
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+             UdpReceiver receiver = new UdpReceiver(socket.getLocalAddress(), socket.getInetAddress(), fileSize)) {
+            FileServer.preallocate(channel, fileSize);
+            out.writeByte(Protocol.STATUS_OK);
+            out.writeInt(receiver.port());
+            out.writeLong(receiver.session());
+            out.flush();
+            System.out.println(clientInfo + " sending \"" + originalName + "\" → " + target.getFileName() +
+                    " (" + fileSize + " bytes) over UDP port " + receiver.port());
+
+            SpeedMeter meter = new SpeedMeter(clientInfo);
+            long[] total = new long[1];
+            complete = receiver.receive(channel, UDP_IDLE_TIMEOUT_MS, n -> {
+                metrics.received(n);
+                total[0] += n;
+                meter.onProgress(total[0]);
+            });
+            meter.finish(total[0]);
+            if (receiver.duplicates() > 0) {
+                System.out.println(clientInfo + " received " + receiver.duplicates() + " duplicate UDP blocks");
+            }
+            if (complete) {
+                server.durability().commit(channel);
+            }
+        } finally {
+            root.writeFinished(fileSize);
+        }
+        if (complete) {
+            server.storage().stored(root, target, fileSize);
+        } else {
+            Files.deleteIfExists(target);
+            System.err.println(clientInfo + " UDP sender went silent");
+        }
+        finishTransfer(out, complete);
+    }
+
+    private static void writeRangeHeader(DataOutputStream out, long size, long offset, long count) throws IOException {
+        out.writeByte(Protocol.STATUS_OK);
+        out.writeLong(size);
+        out.writeLong(offset);
+        out.writeLong(count);
+    }
+
+    private static void writeListEntry(DataOutputStream out, String name, long size) throws IOException {
+        Protocol.writeName(out, name.getBytes(StandardCharsets.UTF_8));
+        out.writeLong(size);
+    }
+
+    private static int writeFully(FileChannel ch, byte[] buffer, int len, MessageDigest sha) throws IOException {
+        sha.update(buffer, 0, len);
+        ByteBuffer buf = ByteBuffer.wrap(buffer, 0, len);
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+        return len;
+    }
+
+    private InputStream socketInput() throws IOException {
+        InputStream raw = metrics.counting(socket.getInputStream());
+        if (server.bandwidth() == null) {
+            return raw;
+        }
+        flow = server.bandwidth().open(socket.getInetAddress());
+        return flow.throttle(raw);
+    }
+
+    private void sizeKnown(long size) {
+        if (flow != null) {
+            flow.sizeKnown(size);
+        }
+    }
+
+    private void finishTransfer(DataOutputStream out, boolean complete) throws IOException {
+        metrics.finish(complete ? Protocol.STATUS_OK : Protocol.STATUS_INCOMPLETE);
+        if (complete) {
+            out.writeByte(Protocol.STATUS_OK);
+            System.out.println(clientInfo + " transfer completed successfully");
+        } else {
+            out.writeByte(Protocol.STATUS_INCOMPLETE);
+            System.err.println(clientInfo + " size mismatch");
+        }
+        out.flush();
+    }
+
+    private void reply(DataOutputStream out, int status) throws IOException {
+        metrics.finish(status);
+        out.writeByte(status);
+        out.flush();
+    }
+}
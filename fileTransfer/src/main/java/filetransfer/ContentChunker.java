@@ -0,0 +1,84 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+final class ContentChunker {
+
+    static final int MIN_CHUNK = 16 * 1024;
+    static final int AVG_CHUNK = 64 * 1024;
+    static final int MAX_CHUNK = 256 * 1024;
+
+    private static final long MASK_SMALL = (1L << 18) - 1;
+    private static final long MASK_LARGE = (1L << 14) - 1;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x46543032L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    record Chunk(long offset, int length, byte[] hash) {}
+
+    private ContentChunker() {}
+
+    static List<Chunk> split(Path file) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        MessageDigest sha = sha256();
+        byte[] chunk = new byte[MAX_CHUNK];
+
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] block = new byte[1024 * 1024];
+            long offset = 0;
+            int len = 0;
+            long hash = 0;
+            int n;
+            while ((n = in.read(block)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    byte b = block[i];
+                    chunk[len++] = b;
+                    hash = (hash << 1) + GEAR[b & 0xFF];
+
+                    boolean cut;
+                    if (len < MIN_CHUNK) {
+                        cut = false;
+                    } else if (len < AVG_CHUNK) {
+                        cut = (hash & MASK_SMALL) == 0;
+                    } else {
+                        cut = (hash & MASK_LARGE) == 0 || len == MAX_CHUNK;
+                    }
+
+                    if (cut) {
+                        sha.update(chunk, 0, len);
+                        chunks.add(new Chunk(offset, len, sha.digest()));
+                        offset += len;
+                        len = 0;
+                        hash = 0;
+                    }
+                }
+            }
+            if (len > 0) {
+                sha.update(chunk, 0, len);
+                chunks.add(new Chunk(offset, len, sha.digest()));
+            }
+        }
+        return chunks;
+    }
+
+    static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package filetransfer;
+
+final class Crc32c {
+    private Crc32c() {}
+
+    private static final int POLY = 0x82F63B78;
+
+    static int combine(int crc1, int crc2, long len2) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+
+        int[] even = new int[32];
+        int[] odd = new int[32];
+
+        odd[0] = POLY;
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        square(even, odd);
+        square(odd, even);
+
+        int crc = crc1;
+        do {
+            square(even, odd);
+            if ((len2 & 1) != 0) {
+                crc = times(even, crc);
+            }
+            len2 >>>= 1;
+            if (len2 == 0) {
+                break;
+            }
+
+            square(odd, even);
+            if ((len2 & 1) != 0) {
+                crc = times(odd, crc);
+            }
+            len2 >>>= 1;
+        } while (len2 != 0);
+
+        return crc ^ crc2;
+    }
+
+    private static int times(int[] mat, int vec) {
+        int sum = 0;
+        int i = 0;
+        while (vec != 0) {
+            if ((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+            vec >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(mat, mat[n]);
+        }
+    }
+}
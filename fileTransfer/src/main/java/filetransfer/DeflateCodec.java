@@ -0,0 +1,57 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+final class DeflateCodec implements ChunkCodec {
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final Inflater inflater = new Inflater(true);
+
+    @Override
+    public byte id() {
+        return CODEC_DEFLATE;
+    }
+
+    @Override
+    public int compress(byte[] src, int off, int len, byte[] dst, int maxLen) {
+        deflater.reset();
+        deflater.setInput(src, off, len);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished() && n < maxLen) {
+            n += deflater.deflate(dst, n, maxLen - n);
+        }
+        return deflater.finished() ? n : -1;
+    }
+
+    @Override
+    public void beginDecompress(byte[] src, int len) {
+        inflater.reset();
+        inflater.setInput(src, 0, len);
+    }
+
+    @Override
+    public int decompress(byte[] dst, int off, int len) throws IOException {
+        if (inflater.finished()) {
+            return 0;
+        }
+        try {
+            int n = inflater.inflate(dst, off, len);
+            if (n == 0 && inflater.needsInput() && !inflater.finished()) {
+                throw new IOException("Truncated deflate stream");
+            }
+            return n;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted deflate stream", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        deflater.end();
+        inflater.end();
+    }
+}
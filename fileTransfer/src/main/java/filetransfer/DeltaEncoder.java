@@ -0,0 +1,178 @@
+package filetransfer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+final class DeltaEncoder {
+
+    static final int MAX_LITERAL = 64 * 1024;
+
+    private final DeltaSignatures signatures;
+    private final DataOutputStream out;
+    private final Map<Integer, int[]> blocksByWeak = new HashMap<>();
+    private final MessageDigest strongSha = ContentChunker.sha256();
+    private final MessageDigest fileSha = ContentChunker.sha256();
+
+    private int copyStart = -1;
+    private int copyCount;
+    private long literalBytes;
+    private long copiedBytes;
+
+    DeltaEncoder(DeltaSignatures signatures, DataOutputStream out) throws IOException {
+        this.signatures = signatures;
+        this.out = out;
+        for (int i = 0; i < signatures.blockCount(); i++) {
+            int[] prev = blocksByWeak.get(signatures.weak[i]);
+            if (prev == null) {
+                blocksByWeak.put(signatures.weak[i], new int[]{i});
+            } else {
+                int[] next = Arrays.copyOf(prev, prev.length + 1);
+                next[prev.length] = i;
+                blocksByWeak.put(signatures.weak[i], next);
+            }
+        }
+    }
+
+    long literalBytes() {
+        return literalBytes;
+    }
+
+    long copiedBytes() {
+        return copiedBytes;
+    }
+
+    void encode(Path file) throws IOException {
+        int w = signatures.blockSize;
+        byte[] data = new byte[MAX_LITERAL + 2 * w + 1024 * 1024];
+
+        try (InputStream in = Files.newInputStream(file)) {
+            int filled = in.readNBytes(data, 0, data.length);
+            boolean eof = filled < data.length;
+            int literalStart = 0;
+            int pos = 0;
+            int weak = 0;
+            boolean weakValid = false;
+
+            while (true) {
+                if (pos + w > filled && !eof) {
+                    int keep = filled - literalStart;
+                    System.arraycopy(data, literalStart, data, 0, keep);
+                    pos -= literalStart;
+                    literalStart = 0;
+                    int n = in.readNBytes(data, keep, data.length - keep);
+                    filled = keep + n;
+                    eof = filled < data.length;
+                    continue;
+                }
+                if (blocksByWeak.isEmpty() || pos + w > filled) {
+                    break;
+                }
+
+                if (!weakValid) {
+                    weak = DeltaSignatures.weak(data, pos, w);
+                    weakValid = true;
+                }
+
+                int match = findBlock(weak, data, pos);
+                if (match >= 0) {
+                    emitLiteral(data, literalStart, pos - literalStart);
+                    emitCopy(match, data, pos);
+                    pos += w;
+                    literalStart = pos;
+                    weakValid = false;
+                    continue;
+                }
+
+                if (pos + w < filled) {
+                    weak = DeltaSignatures.roll(weak, w, data[pos], data[pos + w]);
+                } else {
+                    weakValid = false;
+                }
+                pos++;
+                if (pos - literalStart >= MAX_LITERAL) {
+                    emitLiteral(data, literalStart, pos - literalStart);
+                    literalStart = pos;
+                }
+            }
+
+            emitLiteral(data, literalStart, filled - literalStart);
+            if (blocksByWeak.isEmpty()) {
+                int n;
+                while ((n = in.readNBytes(data, 0, data.length)) > 0) {
+                    emitLiteral(data, 0, n);
+                }
+            }
+        }
+
+        flushCopy();
+        out.writeByte(Protocol.DELTA_END);
+        out.write(fileSha.digest());
+    }
+
+    private int findBlock(int weak, byte[] data, int pos) {
+        int[] candidates = blocksByWeak.get(weak);
+        if (candidates == null) {
+            return -1;
+        }
+        byte[] strong = DeltaSignatures.strong(strongSha, data, pos, signatures.blockSize);
+        int expected = copyStart >= 0 ? copyStart + copyCount : -1;
+        int found = -1;
+        for (int idx : candidates) {
+            if (Arrays.equals(strong, signatures.strong[idx])) {
+                if (idx == expected) {
+                    return idx;
+                }
+                if (found < 0) {
+                    found = idx;
+                }
+            }
+        }
+        return found;
+    }
+
+    private void emitCopy(int block, byte[] data, int pos) throws IOException {
+        fileSha.update(data, pos, signatures.blockSize);
+        copiedBytes += signatures.blockSize;
+        if (copyStart >= 0 && copyStart + copyCount == block) {
+            copyCount++;
+            return;
+        }
+        flushCopy();
+        copyStart = block;
+        copyCount = 1;
+    }
+
+    private void flushCopy() throws IOException {
+        if (copyStart >= 0) {
+            out.writeByte(Protocol.DELTA_COPY);
+            out.writeInt(copyStart);
+            out.writeInt(copyCount);
+            copyStart = -1;
+            copyCount = 0;
+        }
+    }
+
+    private void emitLiteral(byte[] data, int off, int len) throws IOException {
+        if (len <= 0) {
+            return;
+        }
+        flushCopy();
+        fileSha.update(data, off, len);
+        literalBytes += len;
+        while (len > 0) {
+            int n = Math.min(len, MAX_LITERAL);
+            out.writeByte(Protocol.DELTA_LITERAL);
+            out.writeInt(n);
+            out.write(data, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+}
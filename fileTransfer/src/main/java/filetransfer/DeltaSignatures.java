@@ -0,0 +1,113 @@
+package filetransfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+final class DeltaSignatures {
+
+    static final int STRONG_BYTES = 16;
+    static final int MIN_BLOCK = 2 * 1024;
+    static final int MAX_BLOCK = 128 * 1024;
+
+    final int blockSize;
+    final int[] weak;
+    final byte[][] strong;
+
+    private DeltaSignatures(int blockSize, int[] weak, byte[][] strong) {
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    int blockCount() {
+        return weak.length;
+    }
+
+    static int blockSizeFor(long baseSize) {
+        long size = (long) Math.sqrt((double) baseSize);
+        size = (size + 1023) / 1024 * 1024;
+        return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, size));
+    }
+
+    static DeltaSignatures empty() {
+        return new DeltaSignatures(MIN_BLOCK, new int[0], new byte[0][]);
+    }
+
+    static DeltaSignatures compute(Path base) throws IOException {
+        long baseSize = Files.size(base);
+        int blockSize = blockSizeFor(baseSize);
+        int count = (int) (baseSize / blockSize);
+        int[] weak = new int[count];
+        byte[][] strong = new byte[count][];
+
+        MessageDigest sha = ContentChunker.sha256();
+        byte[] block = new byte[blockSize];
+        try (InputStream in = Files.newInputStream(base)) {
+            for (int i = 0; i < count; i++) {
+                if (in.readNBytes(block, 0, blockSize) != blockSize) {
+                    throw new IOException("Base file shrank while computing signatures");
+                }
+                weak[i] = weak(block, 0, blockSize);
+                strong[i] = strong(sha, block, 0, blockSize);
+            }
+        }
+        return new DeltaSignatures(blockSize, weak, strong);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(blockSize);
+        out.writeInt(weak.length);
+        for (int i = 0; i < weak.length; i++) {
+            out.writeInt(weak[i]);
+            out.write(strong[i]);
+        }
+    }
+
+    static DeltaSignatures read(DataInputStream in) throws IOException {
+        int blockSize = in.readInt();
+        int count = in.readInt();
+        if (blockSize < MIN_BLOCK || blockSize > MAX_BLOCK || count < 0
+                || (long) count * blockSize > Protocol.MAX_FILE_SIZE) {
+            throw new IOException("Invalid delta signature header");
+        }
+        int[] weak = new int[count];
+        byte[][] strong = new byte[count][STRONG_BYTES];
+        for (int i = 0; i < count; i++) {
+            weak[i] = in.readInt();
+            in.readFully(strong[i]);
+        }
+        return new DeltaSignatures(blockSize, weak, strong);
+    }
+
+    static int weak(byte[] buf, int off, int len) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < len; i++) {
+            int x = buf[off + i] & 0xFF;
+            a += x;
+            b += (len - i) * x;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    static int roll(int weak, int blockSize, byte out, byte in) {
+        int a = weak & 0xFFFF;
+        int b = weak >>> 16;
+        int x = out & 0xFF;
+        int y = in & 0xFF;
+        a = (a - x + y) & 0xFFFF;
+        b = (b - blockSize * x + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    static byte[] strong(MessageDigest sha, byte[] buf, int off, int len) {
+        sha.update(buf, off, len);
+        return Arrays.copyOf(sha.digest(), STRONG_BYTES);
+    }
+}
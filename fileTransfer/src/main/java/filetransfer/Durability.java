@@ -0,0 +1,128 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class Durability {
+
+    enum Mode {
+        NONE,
+        FSYNC,
+        GROUP
+    }
+
+    private static final int FORCE_THREADS = 4;
+
+    private final Mode mode;
+    private final ExecutorService forcers;
+    private final Object lock = new Object();
+    // channels with a force queued or running, and the commits waiting for the next force of each
+    private final Map<FileChannel, List<CompletableFuture<Void>>> waiting = new IdentityHashMap<>();
+
+    Durability(Mode mode) {
+        this.mode = mode;
+        if (mode != Mode.NONE) {
+            AtomicInteger counter = new AtomicInteger();
+            forcers = Executors.newFixedThreadPool(FORCE_THREADS, r -> {
+                Thread t = new Thread(r, "fsync-" + counter.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+        } else {
+            forcers = null;
+        }
+    }
+
+    Mode mode() {
+        return mode;
+    }
+
+    void commit(FileChannel channel) throws IOException {
+        switch (mode) {
+            case NONE -> {
+            }
+            case FSYNC -> channel.force(false);
+            case GROUP -> {
+                try {
+                    commitAsync(channel).join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof UncheckedIOException io) {
+                        throw io.getCause();
+                    }
+                    throw e;
+                }
+            }
+        }
+    }
+
+    CompletableFuture<Void> commitAsync(FileChannel channel) {
+        if (mode == Mode.NONE) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (mode == Mode.FSYNC) {
+            forcers.execute(() -> finish(List.of(done), force(channel)));
+            return done;
+        }
+        synchronized (lock) {
+            List<CompletableFuture<Void>> list = waiting.get(channel);
+            if (list != null) {
+                list.add(done);
+                return done;
+            }
+            list = new ArrayList<>();
+            list.add(done);
+            waiting.put(channel, list);
+        }
+        forcers.execute(() -> drain(channel));
+        return done;
+    }
+
+    // fsync works on one file, so only commits to the same channel (a pack) can share a force;
+    // different files are forced side by side on the pool
+    private void drain(FileChannel channel) {
+        while (true) {
+            List<CompletableFuture<Void>> batch;
+            synchronized (lock) {
+                batch = waiting.get(channel);
+                if (batch.isEmpty()) {
+                    waiting.remove(channel);
+                    return;
+                }
+                // commits arriving while this force runs wait for the next one
+                waiting.put(channel, new ArrayList<>());
+            }
+
+            finish(batch, force(channel));
+        }
+    }
+
+    private static void finish(List<CompletableFuture<Void>> commits, IOException error) {
+        for (CompletableFuture<Void> done : commits) {
+            if (error == null) {
+                done.complete(null);
+            } else {
+                done.completeExceptionally(new UncheckedIOException(error));
+            }
+        }
+    }
+
+    private static IOException force(FileChannel channel) {
+        try {
+            channel.force(false);
+            return null;
+        } catch (IOException e) {
+            return e;
+        }
+    }
+}
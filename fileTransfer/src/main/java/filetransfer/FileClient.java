@@ -1,77 +1,544 @@
 package filetransfer;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
 
 public class FileClient {
 
-    private static final byte[] MAGIC = new byte[]{'F', 'T', '0', '1'};
-    private static final int MAX_NAME_BYTES = 4096;
+    private static final int FINGERPRINT_SAMPLE_BYTES = 64 * 1024;
+
+    private final int rawSegment;
+
+    private boolean legacy;
+    private boolean crc;
+    private boolean dedup;
+    private boolean delta;
+    private boolean compress;
+    private boolean batch;
+    private boolean sync;
+    private BufferTuner.Bounds autotune;
+    private long connectNanos;
+    private Path syncIndex;
+    private boolean list;
+    private boolean get;
+    private int parallel = 4;
+    private boolean udp;
+    private double udpMaxRate = 1e9;
+    private double udpLoss;
+    private long udpDelayMs;
+    private long udpLinkRate;
+
+    public FileClient() {
+        this(UploadSender.RAW_SEGMENT_BYTES);
+    }
+
+    // rawSegment is how much of the file each read-ahead buffer carries to the socket without chunk flags
+    FileClient(int rawSegment) {
+        this.rawSegment = rawSegment;
+    }
 
     public static void main(String[] args) throws Exception {
-        if (args.length != 3) {
-            System.err.println("Usage: java -jar file-transfer.jar client <host> <port> <file-path>");
+        FileClient client = new FileClient();
+        int argi = 0;
+        while (argi < args.length && args[argi].startsWith("--")) {
+            switch (args[argi]) {
+                case "--v1" -> client.legacy = true;
+                case "--crc" -> client.crc = true;
+                case "--dedup" -> client.dedup = true;
+                case "--delta" -> client.delta = true;
+                case "--compress" -> client.compress = true;
+                case "--batch" -> client.batch = true;
+                case "--sync" -> client.sync = true;
+                case "--autotune" -> client.autotune = BufferTuner.Bounds.parse(args[argi], optionValue(args, argi++));
+                case "--sync-index" -> client.syncIndex = Paths.get(optionValue(args, argi++));
+                case "--list" -> client.list = true;
+                case "--get" -> client.get = true;
+                case "--parallel" -> client.parallel = Math.max(1, Integer.parseInt(optionValue(args, argi++)));
+                case "--udp" -> client.udp = true;
+                case "--udp-max-rate" -> client.udpMaxRate = Double.parseDouble(optionValue(args, argi++));
+                case "--udp-loss" -> client.udpLoss = Double.parseDouble(optionValue(args, argi++));
+                case "--udp-delay" -> client.udpDelayMs = Long.parseLong(optionValue(args, argi++));
+                case "--udp-link-rate" -> client.udpLinkRate = Long.parseLong(optionValue(args, argi++));
+                default -> {
+                    System.err.println("Unknown option: " + args[argi]);
+                    System.exit(1);
+                }
+            }
+            argi++;
+        }
+
+        if (client.list && args.length - argi == 2) {
+            client.listFiles(args[argi], Integer.parseInt(args[argi + 1]));
+            return;
+        }
+        if (args.length - argi != 3) {
+            System.err.println("Usage: java -jar file-transfer.jar client [--v1] [--crc] [--dedup] [--delta] [--compress] [--batch]" +
+                    " [--autotune MIN_BYTES:MAX_BYTES] <host> <port> <file-path>");
+            System.err.println("       java -jar file-transfer.jar client --list <host> <port>");
+            System.err.println("       java -jar file-transfer.jar client --get [--parallel N] <host> <port> <remote-name>");
+            System.err.println("       java -jar file-transfer.jar client --udp [--udp-max-rate BYTES_PER_SEC] [--udp-loss P]" +
+                    " [--udp-delay MS] [--udp-link-rate BYTES_PER_SEC] <host> <port> <file-path>");
+            System.err.println("       java -jar file-transfer.jar client --sync [--sync-index PATH] <host> <port> <directory>");
             System.exit(1);
         }
 
-        String host = args[0];
-        int port = Integer.parseInt(args[1]);
-        Path filePath = Paths.get(args[2]);
+        String host = args[argi];
+        int port = Integer.parseInt(args[argi + 1]);
+        if (client.get) {
+            client.download(host, port, args[argi + 2]);
+            return;
+        }
+        Path filePath = Paths.get(args[argi + 2]);
+
+        if (client.sync) {
+            if (!Files.isDirectory(filePath)) {
+                System.err.println("Not a directory: " + filePath);
+                System.exit(1);
+            }
+            new FolderSync(host, port, filePath, client.syncIndex).run();
+            return;
+        }
 
+        if (client.batch && Files.isDirectory(filePath)) {
+            client.sendBatch(host, port, filePath);
+            return;
+        }
         if (!Files.isRegularFile(filePath)) {
             System.err.println("File not found or not a regular file: " + filePath);
             System.exit(1);
         }
 
-        new FileClient().sendFile(host, port, filePath);
+        if (client.batch) {
+            client.sendBatch(host, port, filePath);
+        } else if (client.udp) {
+            client.sendFileUdp(host, port, filePath);
+        } else if (client.legacy) {
+            client.sendFileLegacy(host, port, filePath);
+        } else if (client.dedup) {
+            client.sendFileDedup(host, port, filePath);
+        } else if (client.delta) {
+            client.sendFileDelta(host, port, filePath);
+        } else {
+            client.sendFile(host, port, filePath);
+        }
+    }
+
+    private void sendFileLegacy(String host, int port, Path filePath) throws IOException {
+        byte[] nameBytes = Protocol.encodeName(filePath.getFileName().toString());
+        long size = Files.size(filePath);
+
+        System.out.println("Connecting to " + host + ":" + port);
+        try (Socket socket = new Socket(host, port);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             InputStream fileIn = new BufferedInputStream(Files.newInputStream(filePath))) {
+
+            out.write(Protocol.MAGIC_V1);
+            Protocol.writeName(out, nameBytes);
+            out.writeLong(size);
+
+            try {
+                copy(fileIn, out, size);
+                out.flush();
+            } catch (IOException e) {
+                printEarlyStatus(in, e);
+                return;
+            }
+
+            printStatus(in.read());
+        }
+    }
+
+    private static String optionValue(String[] args, int argi) {
+        if (argi + 1 >= args.length) {
+            System.err.println("Missing value for " + args[argi]);
+            System.exit(1);
+        }
+        return args[argi + 1];
+    }
+
+    private static void printEarlyStatus(DataInputStream in, IOException cause) throws IOException {
+        int status;
+        try {
+            status = in.read();
+        } catch (IOException e) {
+            throw cause;
+        }
+        if (status == -1) {
+            throw cause;
+        }
+        printStatus(status);
     }
 
     private void sendFile(String host, int port, Path filePath) throws IOException {
-        String fileName = filePath.getFileName().toString();
-        byte[] nameBytes = fileName.getBytes(StandardCharsets.UTF_8);
-        if (nameBytes.length == 0 || nameBytes.length > MAX_NAME_BYTES) {
-            throw new IOException("File name length in UTF-8 is invalid: " + nameBytes.length);
+        long size = Files.size(filePath);
+        printStatus(upload(host, port, filePath, filePath.getFileName().toString(), transferId(filePath, size)));
+    }
+
+    // returns the final status, or -1 if the server closed the connection without one
+    int upload(String host, int port, Path filePath, String remoteName, UUID transferId) throws IOException {
+        byte[] nameBytes = Protocol.encodeName(remoteName);
+        long size = Files.size(filePath);
+        long fingerprint = fingerprint(filePath, size);
+
+        System.out.println("Connecting to " + host + ":" + port);
+        try (SocketChannel channel = connect(host, port);
+             Socket socket = channel.socket();
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+
+            out.write(Protocol.MAGIC_V2);
+            out.writeByte(Protocol.OP_PUT);
+            out.writeInt((crc ? Protocol.FLAG_CRC32C : 0) | (compress ? Protocol.FLAG_COMPRESS : 0));
+            Protocol.writeName(out, nameBytes);
+            out.writeLong(size);
+            out.writeLong(transferId.getMostSignificantBits());
+            out.writeLong(transferId.getLeastSignificantBits());
+            out.writeLong(fingerprint);
+            long requestSent = System.nanoTime();
+            out.flush();
+
+            int status = in.read();
+            if (status != Protocol.STATUS_OK) {
+                return status;
+            }
+            BufferTuner tuner = null;
+            if (autotune != null) {
+                tuner = new BufferTuner(socket, autotune, true, null);
+                // the handshake is one round trip with no server work in it
+                tuner.rtt(connectNanos);
+                tuner.rtt(System.nanoTime() - requestSent);
+            }
+            int acceptedFlags = in.readInt();
+            boolean verified = (acceptedFlags & Protocol.FLAG_CRC32C) != 0;
+            boolean compressed = (acceptedFlags & Protocol.FLAG_COMPRESS) != 0;
+            long offset = in.readLong();
+            int prefixCrc = verified ? in.readInt() : 0;
+            if (offset < 0 || offset > size) {
+                System.err.println("Server proposed invalid resume offset " + offset);
+                return Protocol.STATUS_ERROR;
+            }
+            if (offset > 0) {
+                System.out.println("Resuming transfer " + transferId + " at byte " + offset + " of " + size);
+            }
+            if (crc && !verified) {
+                System.out.println("Server does not support CRC32C chunks, sending without them.");
+            }
+            if (compress && !compressed) {
+                System.out.println("Server does not support compression, sending raw bytes.");
+            }
+
+            try (ChunkCodec codec = compressed ? new DeflateCodec() : null) {
+                UploadSender sender = new UploadSender(in, out, fileChannel, size, verified, codec, tuner, rawSegment);
+                if (!verified && !compressed) {
+                    sender.sendRaw(offset, channel);
+                    System.out.println(sender.pipelineSummary());
+                    if (tuner != null) {
+                        System.out.println(tuner.summary());
+                    }
+                    return in.read();
+                }
+
+                int fileCrc = sender.sendChunks(offset, prefixCrc);
+                System.out.println(sender.pipelineSummary());
+                if (tuner != null) {
+                    System.out.println(tuner.summary());
+                }
+                if (compressed) {
+                    System.out.println(sender.compressionSummary());
+                }
+                if (verified) {
+                    if (!sender.repairChunks()) {
+                        return in.read();
+                    }
+                    out.writeInt(fileCrc);
+                    out.flush();
+                }
+                return in.read();
+            }
+        }
+    }
+
+    private SocketChannel connect(String host, int port) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        SocketChannel channel = SocketChannel.open();
+        try {
+            long start = System.nanoTime();
+            channel.connect(address);
+            connectNanos = System.nanoTime() - start;
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
         }
+    }
 
+    private void sendFileUdp(String host, int port, Path filePath) throws IOException {
+        byte[] nameBytes = Protocol.encodeName(filePath.getFileName().toString());
         long size = Files.size(filePath);
+        LinkEmulator.Settings emulation = udpLoss > 0 || udpDelayMs > 0 || udpLinkRate > 0
+                ? new LinkEmulator.Settings(udpLoss, udpDelayMs, udpLinkRate)
+                : null;
 
         System.out.println("Connecting to " + host + ":" + port);
         try (Socket socket = new Socket(host, port);
              DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
              DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-             InputStream fileIn = new BufferedInputStream(Files.newInputStream(filePath))) {
+             FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+
+            out.write(Protocol.MAGIC_V2);
+            out.writeByte(Protocol.OP_UDP_PUT);
+            Protocol.writeName(out, nameBytes);
+            out.writeLong(size);
+            out.flush();
+
+            int status = in.read();
+            if (status != Protocol.STATUS_OK) {
+                printStatus(status);
+                return;
+            }
+            int udpPort = in.readInt();
+            long session = in.readLong();
+
+            UdpSender sender = new UdpSender(new InetSocketAddress(socket.getInetAddress(), udpPort), session,
+                    fileChannel, size, udpMaxRate, emulation);
+            sender.send();
+            System.out.println(sender.summary());
+            printStatus(in.read());
+        }
+    }
+
+    private void sendFileDedup(String host, int port, Path filePath) throws IOException {
+        byte[] nameBytes = Protocol.encodeName(filePath.getFileName().toString());
+        long size = Files.size(filePath);
+
+        List<ContentChunker.Chunk> chunks = ContentChunker.split(filePath);
+        System.out.println("Split into " + chunks.size() + " content-defined chunks");
+
+        System.out.println("Connecting to " + host + ":" + port);
+        try (Socket socket = new Socket(host, port);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
 
-            out.write(MAGIC);
-            out.writeInt(nameBytes.length);
-            out.write(nameBytes);
+            out.write(Protocol.MAGIC_V2);
+            out.writeByte(Protocol.OP_PUT_DEDUP);
+            out.writeInt(0);
+            Protocol.writeName(out, nameBytes);
             out.writeLong(size);
+            out.writeInt(chunks.size());
+            for (ContentChunker.Chunk chunk : chunks) {
+                out.write(chunk.hash());
+                out.writeInt(chunk.length());
+            }
+            out.flush();
+
+            int status = in.read();
+            if (status != Protocol.STATUS_OK) {
+                printStatus(status);
+                return;
+            }
+            byte[] missing = new byte[(chunks.size() + 7) / 8];
+            in.readFully(missing);
 
-            byte[] buffer = new byte[64 * 1024];
-            long remaining = size;
-            while (remaining > 0) {
-                int toRead = (int) Math.min(buffer.length, remaining);
-                int n = fileIn.read(buffer, 0, toRead);
-                if (n == -1) {
-                    throw new EOFException("Unexpected EOF while reading file");
+            long sent = 0;
+            ByteBuffer buffer = ByteBuffer.allocate(ContentChunker.MAX_CHUNK);
+            for (int i = 0; i < chunks.size(); i++) {
+                if ((missing[i >> 3] & (1 << (i & 7))) == 0) {
+                    continue;
+                }
+                ContentChunker.Chunk chunk = chunks.get(i);
+                buffer.clear().limit(chunk.length());
+                while (buffer.hasRemaining()) {
+                    if (fileChannel.read(buffer, chunk.offset() + buffer.position()) == -1) {
+                        throw new EOFException("Unexpected EOF while reading file");
+                    }
                 }
-                out.write(buffer, 0, n);
-                remaining -= n;
+                out.write(buffer.array(), 0, chunk.length());
+                sent += chunk.length();
+            }
+            out.flush();
+            System.out.println("Sent " + sent + " of " + size + " bytes, the rest was already on the server");
+
+            printStatus(in.read());
+        }
+    }
+
+    private void sendFileDelta(String host, int port, Path filePath) throws IOException {
+        byte[] nameBytes = Protocol.encodeName(filePath.getFileName().toString());
+        long size = Files.size(filePath);
+
+        System.out.println("Connecting to " + host + ":" + port);
+        try (Socket socket = new Socket(host, port);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+
+            out.write(Protocol.MAGIC_V2);
+            out.writeByte(Protocol.OP_PUT_DELTA);
+            out.writeInt(0);
+            Protocol.writeName(out, nameBytes);
+            out.writeLong(size);
+            out.flush();
+
+            int status = in.read();
+            if (status != Protocol.STATUS_OK) {
+                printStatus(status);
+                return;
+            }
+            DeltaSignatures signatures = DeltaSignatures.read(in);
+            System.out.println("Server has " + signatures.blockCount() + " blocks of " +
+                    signatures.blockSize + " bytes for this file");
+
+            DeltaEncoder encoder = new DeltaEncoder(signatures, out);
+            encoder.encode(filePath);
+            out.flush();
+            System.out.println("Sent " + encoder.literalBytes() + " literal bytes, reused " +
+                    encoder.copiedBytes() + " bytes from the server copy");
+
+            printStatus(in.read());
+        }
+    }
+
+    private void sendBatch(String host, int port, Path path) throws IOException {
+        Path root = Files.isDirectory(path) ? path : path.toAbsolutePath().getParent();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(path)) {
+            files = walk.filter(Files::isRegularFile).sorted().toList();
+        }
+        System.out.println("Found " + files.size() + " file(s) under " + path);
+
+        System.out.println("Connecting to " + host + ":" + port);
+        try (Socket socket = new Socket(host, port);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+
+            out.write(Protocol.MAGIC_V2);
+            out.writeByte(Protocol.OP_BATCH);
+            out.writeInt(Protocol.MAX_BATCH_WINDOW);
+            out.flush();
+
+            int status = in.read();
+            if (status != Protocol.STATUS_OK) {
+                printStatus(status);
+                return;
             }
+            int window = in.readInt();
+            new BatchSender(in, out, window).send(root.toAbsolutePath(), files.stream().map(Path::toAbsolutePath).toList());
+        }
+    }
+
+    private void download(String host, int port, String name) throws IOException {
+        Path target = Paths.get(FileServer.sanitizeFilename(name));
+        RangeDownloader downloader = new RangeDownloader(host, port, name);
+        long size;
+        try {
+            size = downloader.size();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        System.out.println("Downloading \"" + name + "\" (" + size + " bytes) to " + target.toAbsolutePath());
+        try (FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            downloader.download(file, size, parallel);
+        }
+    }
+
+    private void listFiles(String host, int port) throws IOException {
+        try (Socket socket = new Socket(host, port);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+
+            out.write(Protocol.MAGIC_V2);
+            out.writeByte(Protocol.OP_LIST);
             out.flush();
 
             int status = in.read();
-            if (status == -1) {
-                System.err.println("Server closed connection without status");
+            if (status != Protocol.STATUS_OK) {
+                printStatus(status);
                 return;
             }
-            if (status == 0) {
-                System.out.println("File transfer succeeded.");
-            } else if (status == 1) {
-                System.out.println("File transfer failed: size mismatch or partial data.");
-            } else {
-                System.out.println("File transfer failed: server reported error.");
+            int files = 0;
+            long totalBytes = 0;
+            String name;
+            while ((name = Protocol.readName(in)) != null) {
+                long size = in.readLong();
+                System.out.println(size + "\t" + name);
+                files++;
+                totalBytes += size;
+            }
+            System.out.println(files + " file(s), " + totalBytes + " bytes");
+        }
+    }
+
+    private static void copy(InputStream fileIn, OutputStream out, long size) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long remaining = size;
+        while (remaining > 0) {
+            int toRead = (int) Math.min(buffer.length, remaining);
+            int n = fileIn.read(buffer, 0, toRead);
+            if (n == -1) {
+                throw new EOFException("Unexpected EOF while reading file");
+            }
+            out.write(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+
+    private static void printStatus(int status) {
+        if (status == -1) {
+            System.err.println("Server closed connection without status");
+            return;
+        }
+        System.out.println(Protocol.describeStatus(status));
+    }
+
+    private static UUID transferId(Path filePath, long size) throws IOException {
+        String key = filePath.toAbsolutePath().normalize() + "|" + size + "|" +
+                Files.getLastModifiedTime(filePath).toMillis();
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long fingerprint(Path filePath, long size) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        ByteBuffer header = ByteBuffer.allocate(16);
+        header.putLong(size).putLong(Files.getLastModifiedTime(filePath).toMillis());
+        digest.update(header.array());
+
+        try (FileChannel ch = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            ByteBuffer sample = ByteBuffer.allocate(FINGERPRINT_SAMPLE_BYTES);
+            readSample(ch, 0, sample);
+            digest.update(sample.flip());
+            if (size > FINGERPRINT_SAMPLE_BYTES) {
+                readSample(ch, Math.max(FINGERPRINT_SAMPLE_BYTES, size - FINGERPRINT_SAMPLE_BYTES), sample.clear());
+                digest.update(sample.flip());
+            }
+        }
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    private static void readSample(FileChannel ch, long position, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position + buf.position());
+            if (n == -1) {
+                break;
             }
         }
     }
@@ -1,164 +1,218 @@
 package filetransfer;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class FileServer {
 
-    private static final byte[] MAGIC = new byte[]{'F', 'T', '0', '1'};
-    private static final int MAX_NAME_BYTES = 4096;
-    private static final long MAX_FILE_SIZE = 1024L *1024*1024*1024;
-    private static final long REPORT_INTERVAL_MS = 3000;
+    private static final long PARTIAL_TTL_MS = 24L * 60 * 60 * 1000;
+    private static final long PARTIAL_GC_INTERVAL_MS = 60L * 60 * 1000;
+    static final int ACCEPT_BACKLOG = 4096;
+    private static final long PLATFORM_HANDLER_STACK = 256 * 1024;
+    private static final long PACK_ROLLOVER_BYTES = 256L * 1024 * 1024;
+    private static final long PACK_COMPACT_INTERVAL_MS = 10L * 60 * 1000;
+    private static final int BATCH_WRITERS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    private final ServerConfig config;
+    private final Metrics metrics = new Metrics();
+    private StorageRoots storage;
+    private ChunkStore chunks;
+    private PackStore packs;
+    private Durability durability;
+    private BandwidthScheduler bandwidth;
+
+    FileServer(ServerConfig config) {
+        this.config = config;
+    }
 
     public static void main(String[] args) throws Exception {
-        if (args.length != 1) {
-            System.err.println("Usage: java -jar file-transfer.jar server <port>");
+        ServerConfig config;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(ServerConfig.USAGE);
             System.exit(1);
+            return;
         }
-        int port = Integer.parseInt(args[0]);
-        new FileServer().run(port);
+        new FileServer(config).run();
     }
 
-    private void run(int port) throws IOException {
-        Path uploadsDir = Paths.get("uploads");
-        Files.createDirectories(uploadsDir);
-        Path uploadsReal = uploadsDir.toRealPath();
+    void run() throws IOException {
+        // with one root it keeps the whole former batch pool, with several each disk gets a share
+        int rootWriters = config.rootWriters > 0 ? config.rootWriters
+                : Math.max(2, BATCH_WRITERS / config.roots.size());
+        storage = new StorageRoots(config.roots, config.placement, rootWriters, PARTIAL_TTL_MS);
+        metrics.storage(storage);
+        Path primary = storage.primary().dir();
+        durability = new Durability(config.durability);
+        chunks = new ChunkStore(primary);
+        if (config.metricsPort > 0) {
+            metrics.serve(config.metricsPort);
+        }
+        if (config.bandwidth > 0) {
+            bandwidth = new BandwidthScheduler(config.bandwidth, config.addressWeights, config.sizeWeights);
+            System.out.println("Upload bandwidth limited to " + config.bandwidth + " bytes/s, shared by weight");
+        }
 
-        AtomicInteger clientCounter = new AtomicInteger(1);
+        ScheduledExecutorService gc = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "storage-gc");
+            t.setDaemon(true);
+            return t;
+        });
+        gc.scheduleAtFixedRate(storage::collectStale, 0, PARTIAL_GC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        if (config.packStorage) {
+            packs = new PackStore(primary, PACK_ROLLOVER_BYTES);
+            System.out.println("Files up to " + config.packMaxFile + " bytes go to pack storage (" +
+                    packs.entryCount() + " entries indexed)");
+            gc.scheduleWithFixedDelay(packs::compact, PACK_COMPACT_INTERVAL_MS, PACK_COMPACT_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+        }
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("File server listening on port " + port);
-            System.out.println("Uploads directory: " + uploadsReal);
+        ExecutorService handlers = newHandlerExecutor();
+        if (config.nio) {
+            new NioServer(this, config, handlers).run();
+            return;
+        }
+
+        AtomicInteger clientCounter = new AtomicInteger(1);
+        Semaphore admission = new Semaphore(config.maxTransfers);
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            // channel-backed sockets let downloads use FileChannel.transferTo
+            listenWithAutotune(serverChannel);
+            serverChannel.bind(new InetSocketAddress(config.port), ACCEPT_BACKLOG);
+            ServerSocket serverSocket = serverChannel.socket();
+            System.out.println("File server listening on port " + config.port);
+            System.out.println("Uploads directory: " + storage.describe());
+            System.out.println("Concurrent transfers: up to " + config.maxTransfers +
+                    (config.rejectWhenFull ? ", excess clients rejected" : ", excess clients wait in accept queue"));
+            System.out.println("Durability: " + config.durability.name().toLowerCase());
 
             while (true) {
-                Socket socket = serverSocket.accept();
+                if (!config.rejectWhenFull) {
+                    admission.acquireUninterruptibly();
+                }
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    if (!config.rejectWhenFull) {
+                        admission.release();
+                    }
+                    throw e;
+                }
                 int clientId = clientCounter.getAndIncrement();
-                Thread t = new Thread(() ->
-                        handleClient(socket, uploadsReal, clientId)
-                );
-                t.setDaemon(true);
-                t.start();
+
+                if (config.rejectWhenFull && !admission.tryAcquire()) {
+                    rejectBusy(socket, clientId);
+                    continue;
+                }
+                ClientHandler handler = new ClientHandler(this, socket, clientId);
+                handlers.execute(() -> {
+                    try {
+                        handler.run();
+                    } finally {
+                        admission.release();
+                    }
+                });
             }
         }
     }
 
-    private void handleClient(Socket socket, Path uploadsReal, int clientId) {
-        String clientInfo = "Client#" + clientId + " [" + socket.getRemoteSocketAddress() + "]";
-        System.out.println(clientInfo + " connected");
-
-        try (socket;
-             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+    private static void rejectBusy(Socket socket, int clientId) {
+        try (socket) {
+            socket.getOutputStream().write(Protocol.STATUS_BUSY);
+            socket.shutdownOutput();
+        } catch (IOException ignored) {
+            // client is gone anyway
+        }
+        System.err.println("Client#" + clientId + " [" + socket.getRemoteSocketAddress() + "] rejected: server busy");
+    }
 
-            byte[] magicBuf = new byte[4];
-            in.readFully(magicBuf);
-            if (!matchesMagic(magicBuf)) {
-                out.writeByte(2);
-                out.flush();
-                return;
-            }
+    private static ExecutorService newHandlerExecutor() {
+        try {
+            ExecutorService virtual = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            System.out.println("Client handlers run on virtual threads");
+            return virtual;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("Virtual threads unavailable on this JVM, using platform threads");
+            AtomicInteger threadCounter = new AtomicInteger(1);
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(null, r, "client-handler-" + threadCounter.getAndIncrement(),
+                        PLATFORM_HANDLER_STACK);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
 
-            int nameLen = in.readInt();
-            if (nameLen <= 0 || nameLen > MAX_NAME_BYTES) {
-                out.writeByte(2);
-                out.flush();
-                return;
-            }
+    StorageRoots storage() {
+        return storage;
+    }
 
-            byte[] nameBytes = new byte[nameLen];
-            in.readFully(nameBytes);
-            String originalName = new String(nameBytes, StandardCharsets.UTF_8);
+    ChunkStore chunks() {
+        return chunks;
+    }
 
-            long fileSize = in.readLong();
-            if (fileSize < 0 || fileSize > MAX_FILE_SIZE) {
-                out.writeByte(2);
-                out.flush();
-                return;
-            }
+    PackStore packs() {
+        return packs;
+    }
 
-            String safeName = sanitizeFilename(originalName);
-            Path target = resolveInUploads(uploadsReal, safeName);
-
-            System.out.println(clientInfo + " sending \"" + originalName + "\" → " +
-                    target.getFileName() + " (" + fileSize + " bytes)");
-
-            long startTime = System.nanoTime();
-            long lastReportTime = startTime;
-            long lastReportedBytes = 0;
-            long totalBytes = 0;
-            boolean reported = false;
-
-            byte[] buffer = new byte[64 * 1024];
-            long remaining = fileSize;
-
-            try (OutputStream fileOut =
-                         new BufferedOutputStream(Files.newOutputStream(
-                                 target,
-                                 StandardOpenOption.CREATE_NEW,
-                                 StandardOpenOption.WRITE
-                         ))) {
-
-                while (remaining > 0) {
-                    int toRead = (int) Math.min(buffer.length, remaining);
-                    int n = in.read(buffer, 0, toRead);
-                    if (n == -1) {
-                        out.writeByte(1);
-                        out.flush();
-                        return;
-                    }
+    boolean packable(long size) {
+        return packs != null && size <= config.packMaxFile;
+    }
 
-                    fileOut.write(buffer, 0, n);
-                    totalBytes += n;
-                    remaining -= n;
-
-                    long now = System.nanoTime();
-                    if (now - lastReportTime >= REPORT_INTERVAL_MS * 1_000_000L) {
-                        reportSpeed(clientInfo, startTime, now,
-                                lastReportTime, totalBytes, lastReportedBytes);
-                        lastReportTime = now;
-                        lastReportedBytes = totalBytes;
-                        reported = true;
-                    }
-                }
+    Durability durability() {
+        return durability;
+    }
 
-                fileOut.flush();
-            }
+    static void preallocate(FileChannel channel, long size) throws IOException {
+        // the JDK has no fallocate; sizing the file once means data writes and
+        // fdatasync no longer have to update the inode size on every extension
+        if (size > channel.size()) {
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+    }
 
-            long endTime = System.nanoTime();
-            if (!reported) {
-                reportSpeed(clientInfo, startTime, endTime,
-                        lastReportTime, totalBytes, lastReportedBytes);
-            }
+    void listenWithAutotune(ServerSocketChannel serverChannel) throws IOException {
+        // the window scale is fixed at the handshake, so the probe buffer has to be set on the listener
+        if (config.autotune != null) {
+            serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, config.autotune.max());
+            System.out.println("Socket buffers tuned per transfer between " + config.autotune.min() +
+                    " and " + config.autotune.max() + " bytes");
+        }
+    }
 
-            if (totalBytes == fileSize) {
-                out.writeByte(0);
-                System.out.println(clientInfo + " transfer completed successfully");
-            } else {
-                out.writeByte(1);
-                System.err.println(clientInfo + " size mismatch");
-            }
-            out.flush();
+    BufferTuner.Bounds autotune() {
+        return config.autotune;
+    }
 
-        } catch (IOException e) {
-            System.err.println(clientInfo + " error: " + e.getMessage());
-        } finally {
-            System.out.println(clientInfo + " disconnected");
-        }
+    BandwidthScheduler bandwidth() {
+        return bandwidth;
     }
 
-    private static boolean matchesMagic(byte[] buf) {
-        if (buf.length != MAGIC.length) return false;
-        for (int i = 0; i < MAGIC.length; i++) {
-            if (buf[i] != MAGIC[i]) return false;
-        }
-        return true;
+    Metrics metrics() {
+        return metrics;
     }
 
-    private static String sanitizeFilename(String name) {
+    static String sanitizeFilename(String name) {
         String base = name.replace('\\', '/');
         int idx = base.lastIndexOf('/');
         if (idx >= 0) base = base.substring(idx + 1);
@@ -170,7 +224,18 @@ public class FileServer {
         return base;
     }
 
-    private static Path resolveInUploads(Path uploadsReal, String safeName) throws IOException {
+    static String flattenPath(String name) {
+        // sync keeps the relative path in the stored name, the uploads directory itself stays flat
+        StringBuilder flat = new StringBuilder();
+        for (String part : name.replace('\\', '/').split("/")) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) continue;
+            if (flat.length() > 0) flat.append("__");
+            flat.append(part);
+        }
+        return sanitizeFilename(flat.toString());
+    }
+
+    static Path resolveInUploads(Path uploadsReal, String safeName) throws IOException {
         Path candidate = uploadsReal.resolve(safeName).normalize();
         if (!candidate.startsWith(uploadsReal)) {
             candidate = uploadsReal.resolve("file_" + System.currentTimeMillis()).normalize();
@@ -182,27 +247,4 @@ public class FileServer {
         }
         return candidate;
     }
-
-    private static void reportSpeed(String clientInfo,
-                                    long startTimeNs,
-                                    long nowNs,
-                                    long lastReportTimeNs,
-                                    long totalBytes,
-                                    long lastReportedBytes) {
-
-        double totalSec = (nowNs - startTimeNs) / 1_000_000_000.0;
-        double intervalSec = (nowNs - lastReportTimeNs) / 1_000_000_000.0;
-        if (intervalSec <= 0) intervalSec = 1e-9;
-        if (totalSec <= 0) totalSec = 1e-9;
-
-        long intervalBytes = totalBytes - lastReportedBytes;
-
-        double inst = intervalBytes / intervalSec;
-        double avg = totalBytes / totalSec;
-
-        System.out.printf(
-                "%s speed: instant=%.2f B/s, avg=%.2f B/s%n",
-                clientInfo, inst, avg
-        );
-    }
 }
@@ -0,0 +1,336 @@
+package filetransfer;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+final class FolderSync {
+
+    private static final long DEBOUNCE_MS = 500;
+    private static final long MAX_DEBOUNCE_MS = 5000;
+    private static final long IDLE_POLL_MS = 1000;
+    private static final long UNWATCHED_RESCAN_MS = 60_000;
+
+    private record Pending(String name, Path path, long size, long modified, byte[] digest) {}
+
+    private final String host;
+    private final int port;
+    private final Path root;
+    private final SyncIndex index;
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+    private final Set<Path> dirty = new LinkedHashSet<>();
+    private final List<Path> newDirs = new ArrayList<>();
+    private volatile boolean unwatched;
+    private boolean overflow;
+    private long lastFullScan;
+    private Connection connection;
+
+    FolderSync(String host, int port, Path root, Path indexFile) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.root = root.toRealPath();
+        this.index = new SyncIndex(this.root, indexFile != null ? indexFile.toAbsolutePath()
+                : this.root.resolve(".ftsync-index"));
+        this.watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    void run() throws IOException {
+        index.load();
+        System.out.println("Syncing " + root + " to " + host + ":" + port + " (" + index.size() + " file(s) in index)");
+        Runtime.getRuntime().addShutdownHook(new Thread(this::saveQuietly, "sync-index-save"));
+
+        fullScan();
+        while (true) {
+            upload();
+            awaitChanges();
+            if (overflow || unwatched && System.nanoTime() - lastFullScan > UNWATCHED_RESCAN_MS * 1_000_000) {
+                overflow = false;
+                fullScan();
+            }
+            for (Path dir : newDirs) {
+                dirty.addAll(index.scan(dir, this::watch).changed());
+            }
+            newDirs.clear();
+        }
+    }
+
+    private void fullScan() {
+        long start = System.nanoTime();
+        SyncIndex.ScanResult scan = index.scan(root, this::watch);
+        lastFullScan = System.nanoTime();
+        dirty.addAll(scan.changed());
+        System.out.printf("Scanned %d file(s) in %.2f s: %d new or changed%n",
+                scan.files(), (lastFullScan - start) / 1_000_000_000.0, scan.changed().size());
+    }
+
+    private void watch(Path dir) {
+        try {
+            keys.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+        } catch (IOException e) {
+            // typically the inotify watch limit; such directories are picked up by periodic rescans
+            if (!unwatched) {
+                unwatched = true;
+                System.err.println("Cannot watch " + dir + " (" + e.getMessage() + "), falling back to a rescan every " +
+                        UNWATCHED_RESCAN_MS / 1000 + " s for unwatched directories");
+            }
+        }
+    }
+
+    private void upload() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        try {
+            if (connection == null) {
+                connection = new Connection();
+            }
+            int files = 0;
+            long bytes = 0;
+            for (var it = dirty.iterator(); it.hasNext(); ) {
+                Path path = it.next();
+                String name = index.nameOf(path);
+                if (connection.inFlight(name)) {
+                    // the older copy must be stored before the newer one can replace it
+                    continue;
+                }
+                it.remove();
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (!attrs.isRegularFile() || !index.changed(path, attrs)) {
+                        continue;
+                    }
+                } catch (NoSuchFileException e) {
+                    index.removeTree(name);
+                    continue;
+                } catch (IOException e) {
+                    System.err.println("Skipping " + path + ": " + e.getMessage());
+                    continue;
+                }
+                if (connection.send(path, name, attrs)) {
+                    files++;
+                    bytes += attrs.size();
+                }
+            }
+            connection.flush();
+            if (files > 0) {
+                System.out.println("Uploading " + files + " changed file(s), " + bytes + " bytes");
+            }
+        } catch (IOException e) {
+            System.err.println("Sync connection to " + host + ":" + port + " failed: " + e.getMessage());
+            if (connection != null) {
+                dirty.addAll(connection.close());
+                connection = null;
+            }
+        }
+    }
+
+    private void awaitChanges() throws IOException {
+        try {
+            WatchKey key;
+            while ((key = watcher.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS)) == null) {
+                saveQuietly();
+                if (connection != null && connection.broken()) {
+                    dirty.addAll(connection.close());
+                    connection = null;
+                }
+                if (!dirty.isEmpty() || unwatched && System.nanoTime() - lastFullScan > UNWATCHED_RESCAN_MS * 1_000_000) {
+                    return;
+                }
+            }
+            // a burst of events (an editor save, a copied tree) settles into one upload round
+            long deadline = System.nanoTime() + MAX_DEBOUNCE_MS * 1_000_000;
+            while (key != null) {
+                collect(key);
+                key = System.nanoTime() < deadline ? watcher.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS) : watcher.poll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while watching " + root);
+        }
+    }
+
+    private void collect(WatchKey key) {
+        Path dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+            Path child = dir.resolve((Path) event.context());
+            if (index.ignored(child)) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                    && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                newDirs.add(child);
+            } else {
+                dirty.add(child);
+            }
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+    }
+
+    private void saveQuietly() {
+        try {
+            index.save();
+        } catch (IOException e) {
+            System.err.println("Failed to save sync index: " + e.getMessage());
+        }
+    }
+
+    private final class Connection {
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final int windowSize;
+        private final Semaphore window;
+        private final Map<Integer, Pending> unacked = new ConcurrentHashMap<>();
+        private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+        private final byte[] buffer = new byte[64 * 1024];
+        private int nextSeq;
+        private volatile IOException ackError;
+
+        Connection() throws IOException {
+            socket = new Socket(host, port);
+            try {
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.write(Protocol.MAGIC_V2);
+                out.writeByte(Protocol.OP_SYNC);
+                out.writeInt(Protocol.MAX_BATCH_WINDOW);
+                out.flush();
+                int status = in.read();
+                if (status != Protocol.STATUS_OK) {
+                    throw new IOException(status == -1 ? "connection closed" : Protocol.describeStatus(status));
+                }
+                windowSize = in.readInt();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            window = new Semaphore(windowSize);
+            Thread ackReader = new Thread(this::readAcks, "sync-acks");
+            ackReader.setDaemon(true);
+            ackReader.start();
+            System.out.println("Connected to " + host + ":" + port);
+        }
+
+        boolean broken() {
+            return ackError != null;
+        }
+
+        boolean inFlight(String name) {
+            return inFlight.contains(name);
+        }
+
+        boolean send(Path path, String name, BasicFileAttributes attrs) throws IOException {
+            byte[] nameBytes = Protocol.encodeName(name);
+            InputStream fileIn;
+            try {
+                fileIn = Files.newInputStream(path);
+            } catch (IOException e) {
+                System.err.println("Skipping " + path + ": " + e.getMessage());
+                return false;
+            }
+            try (fileIn) {
+                if (!window.tryAcquire()) {
+                    out.flush();
+                    window.acquireUninterruptibly();
+                }
+                if (ackError != null) {
+                    throw ackError;
+                }
+
+                long size = attrs.size();
+                long modified = attrs.lastModifiedTime().toMillis();
+                int seq = nextSeq++;
+                inFlight.add(name);
+                unacked.put(seq, new Pending(name, path, size, modified, null));
+                Protocol.writeName(out, nameBytes);
+                out.writeLong(size);
+
+                // the digest is taken from the bytes actually sent, so new files are read only once
+                MessageDigest sha = ContentChunker.sha256();
+                long remaining = size;
+                while (remaining > 0) {
+                    int n = fileIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (n == -1) {
+                        // the record length is already on the wire: only dropping the connection keeps the
+                        // server from storing a truncated file; the path goes back to dirty with the rest
+                        throw new IOException(path + " shrank while being sent");
+                    }
+                    sha.update(buffer, 0, n);
+                    if (n == remaining) {
+                        // the ack may come as soon as the last bytes leave, so record the digest first
+                        unacked.put(seq, new Pending(name, path, size, modified, sha.digest()));
+                    }
+                    out.write(buffer, 0, n);
+                    remaining -= n;
+                }
+                if (size == 0) {
+                    unacked.put(seq, new Pending(name, path, size, modified, sha.digest()));
+                }
+                return true;
+            }
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        List<Path> close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // reconnecting anyway
+            }
+            List<Path> resend = new ArrayList<>();
+            for (Pending p : unacked.values()) {
+                resend.add(p.path());
+            }
+            return resend;
+        }
+
+        private void readAcks() {
+            try {
+                while (true) {
+                    int seq = in.readInt();
+                    int status = in.readUnsignedByte();
+                    Pending p = unacked.remove(seq);
+                    if (p == null) {
+                        throw new IOException("Server acknowledged unknown record " + seq);
+                    }
+                    inFlight.remove(p.name());
+                    if (status != Protocol.STATUS_OK) {
+                        System.err.println(p.name() + ": " + Protocol.describeStatus(status));
+                    } else if (p.digest() != null) {
+                        index.put(p.name(), new SyncIndex.Entry(p.size(), p.modified(), p.digest()));
+                    }
+                    window.release();
+                }
+            } catch (IOException e) {
+                ackError = e;
+                window.release(windowSize);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+final class LinkEmulator {
+
+    private static final long QUEUE_LIMIT_NANOS = 50_000_000;
+
+    record Settings(double loss, long delayMs, long linkRate) {}
+
+    private record Pending(DatagramPacket packet, long deliverAt) implements Delayed {
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deliverAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(deliverAt, ((Pending) other).deliverAt);
+        }
+    }
+
+    private final DatagramSocket socket;
+    private final double loss;
+    private final long delayNanos;
+    private final long linkRate;
+    private final DelayQueue<Pending> queue = new DelayQueue<>();
+    private long linkFreeAt;
+    private long dropped;
+    private long queueDrops;
+
+    LinkEmulator(DatagramSocket socket, Settings settings) {
+        this.socket = socket;
+        this.loss = settings.loss();
+        this.delayNanos = settings.delayMs() * 1_000_000L;
+        this.linkRate = settings.linkRate();
+        Thread t = new Thread(this::runDelivery, "link-emulator");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    boolean dropIncoming() {
+        return loss > 0 && ThreadLocalRandom.current().nextDouble() < loss;
+    }
+
+    synchronized void send(DatagramPacket packet) {
+        long now = System.nanoTime();
+        long departure = now;
+        if (linkRate > 0) {
+            // a bottleneck with a 50 ms tail-drop queue, like a router in front of the slow link
+            departure = Math.max(now, linkFreeAt);
+            if (departure - now > QUEUE_LIMIT_NANOS) {
+                queueDrops++;
+                return;
+            }
+            linkFreeAt = departure + packet.getLength() * 1_000_000_000L / linkRate;
+        }
+        if (loss > 0 && ThreadLocalRandom.current().nextDouble() < loss) {
+            dropped++;
+            return;
+        }
+        byte[] copy = new byte[packet.getLength()];
+        System.arraycopy(packet.getData(), packet.getOffset(), copy, 0, copy.length);
+        queue.add(new Pending(new DatagramPacket(copy, copy.length, packet.getSocketAddress()),
+                departure + delayNanos));
+    }
+
+    synchronized String summary() {
+        return String.format("Link emulator: loss %.1f%%, one-way delay %d ms, link %s; %d random drops, %d queue drops",
+                loss * 100, delayNanos / 1_000_000, linkRate > 0 ? linkRate + " B/s" : "unlimited",
+                dropped, queueDrops);
+    }
+
+    private void runDelivery() {
+        while (true) {
+            try {
+                socket.send(queue.take().packet());
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                if (socket.isClosed()) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -20,7 +20,18 @@ public class Main {
 
     private static void printUsage() {
         System.err.println("Usage:");
-        System.err.println("  Server: java -jar <jar> server <port>");
-        System.err.println("  Client: java -jar <jar> client <host> <port> <file-path>");
+        System.err.println("  Server: java -jar <jar> server [--max-transfers N] [--overload park|reject]" +
+                " [--engine threads|nio] [--reactors N] [--storage files|pack] [--pack-max-file BYTES]" +
+                " [--durability none|fsync|group] [--metrics-port N]" +
+                " [--bandwidth BYTES_PER_SEC] [--weight-addr PREFIX=W]... [--weight-size MAX_BYTES=W]..." +
+                " [--autotune MIN_BYTES:MAX_BYTES] [--root DIR]... [--placement hash|space|least-busy]" +
+                " [--root-writers N] <port>");
+        System.err.println("  Client: java -jar <jar> client [--v1] [--crc] [--dedup] [--delta] [--compress] [--batch]" +
+                " [--autotune MIN_BYTES:MAX_BYTES] <host> <port> <file-path>");
+        System.err.println("          java -jar <jar> client --list <host> <port>");
+        System.err.println("          java -jar <jar> client --get [--parallel N] <host> <port> <remote-name>");
+        System.err.println("          java -jar <jar> client --udp [--udp-max-rate BYTES_PER_SEC] [--udp-loss P]" +
+                " [--udp-delay MS] [--udp-link-rate BYTES_PER_SEC] <host> <port> <file-path>");
+        System.err.println("          java -jar <jar> client --sync [--sync-index PATH] <host> <port> <directory>");
     }
 }
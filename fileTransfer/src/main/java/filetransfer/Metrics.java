@@ -0,0 +1,320 @@
+package filetransfer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+final class Metrics {
+
+    private static final String[] STATUS_NAMES = {"ok", "incomplete", "error", "corrupt", "busy", "not_found"};
+
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder activeTransfers = new LongAdder();
+    private final LongAdder aborted = new LongAdder();
+    private final LongAdder[] completions = new LongAdder[STATUS_NAMES.length];
+    private final Histogram durationMs = new Histogram();
+    private final Histogram throughput = new Histogram();
+    private final Histogram tunedRttMicros = new Histogram();
+    private final Histogram tunedSocketBuffer = new Histogram();
+    private final Histogram tunedChunk = new Histogram();
+    private final Map<Integer, Client> clients = new ConcurrentHashMap<>();
+    private volatile StorageRoots storage;
+
+    Metrics() {
+        for (int i = 0; i < completions.length; i++) {
+            completions[i] = new LongAdder();
+        }
+    }
+
+    Client open(int clientId, String remote) {
+        connections.increment();
+        Client client = new Client(clientId, remote);
+        clients.put(clientId, client);
+        return client;
+    }
+
+    void storage(StorageRoots storage) {
+        this.storage = storage;
+    }
+
+    void completed(int status) {
+        if (status >= 0 && status < completions.length) {
+            completions[status].increment();
+        }
+    }
+
+    void serve(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", this::handle);
+        http.start();
+        System.out.println("Metrics: http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" +
+                http.getAddress().getPort() + "/metrics");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        counter(sb, "filetransfer_bytes_received_total", bytesReceived.sum());
+        counter(sb, "filetransfer_bytes_sent_total", bytesSent.sum());
+        counter(sb, "filetransfer_connections_total", connections.sum());
+        gauge(sb, "filetransfer_connections_active", clients.size());
+        gauge(sb, "filetransfer_transfers_active", activeTransfers.sum());
+
+        sb.append("# TYPE filetransfer_transfers_completed_total counter\n");
+        for (int i = 0; i < completions.length; i++) {
+            sb.append("filetransfer_transfers_completed_total{status=\"").append(STATUS_NAMES[i]).append("\"} ")
+                    .append(completions[i].sum()).append('\n');
+        }
+        sb.append("filetransfer_transfers_completed_total{status=\"aborted\"} ").append(aborted.sum()).append('\n');
+
+        durationMs.render(sb, "filetransfer_transfer_duration_ms");
+        throughput.render(sb, "filetransfer_transfer_bytes_per_second");
+        tunedRttMicros.render(sb, "filetransfer_tuned_rtt_microseconds");
+        tunedSocketBuffer.render(sb, "filetransfer_tuned_socket_buffer_bytes");
+        tunedChunk.render(sb, "filetransfer_tuned_chunk_bytes");
+
+        if (storage != null) {
+            renderRoots(sb, storage);
+        }
+
+        long now = System.nanoTime();
+        sb.append("# TYPE filetransfer_client_bytes_received gauge\n");
+        for (Client c : clients.values()) {
+            c.labels(sb.append("filetransfer_client_bytes_received")).append(c.received.sum()).append('\n');
+        }
+        sb.append("# TYPE filetransfer_client_bytes_sent gauge\n");
+        for (Client c : clients.values()) {
+            c.labels(sb.append("filetransfer_client_bytes_sent")).append(c.sent.sum()).append('\n');
+        }
+        sb.append("# TYPE filetransfer_client_bytes_per_second gauge\n");
+        for (Client c : clients.values()) {
+            double sec = Math.max((now - c.connectedNanos) / 1_000_000_000.0, 1e-9);
+            c.labels(sb.append("filetransfer_client_bytes_per_second"))
+                    .append(Math.round((c.received.sum() + c.sent.sum()) / sec)).append('\n');
+        }
+        sb.append("# TYPE filetransfer_client_socket_buffer_bytes gauge\n");
+        for (Client c : clients.values()) {
+            if (c.socketBuffer > 0) {
+                c.labels(sb.append("filetransfer_client_socket_buffer_bytes")).append(c.socketBuffer).append('\n');
+            }
+        }
+        sb.append("# TYPE filetransfer_client_chunk_bytes gauge\n");
+        for (Client c : clients.values()) {
+            if (c.chunkSize > 0) {
+                c.labels(sb.append("filetransfer_client_chunk_bytes")).append(c.chunkSize).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void renderRoots(StringBuilder sb, StorageRoots storage) {
+        sb.append("# TYPE filetransfer_root_writes_active gauge\n");
+        for (StorageRoots.Root r : storage.roots()) {
+            rootLabel(sb.append("filetransfer_root_writes_active"), r).append(r.writes()).append('\n');
+        }
+        sb.append("# TYPE filetransfer_root_pending_bytes gauge\n");
+        for (StorageRoots.Root r : storage.roots()) {
+            rootLabel(sb.append("filetransfer_root_pending_bytes"), r).append(r.pendingBytes()).append('\n');
+        }
+        sb.append("# TYPE filetransfer_root_bytes_written_total counter\n");
+        for (StorageRoots.Root r : storage.roots()) {
+            rootLabel(sb.append("filetransfer_root_bytes_written_total"), r).append(r.bytesWritten()).append('\n');
+        }
+        sb.append("# TYPE filetransfer_root_files_written_total counter\n");
+        for (StorageRoots.Root r : storage.roots()) {
+            rootLabel(sb.append("filetransfer_root_files_written_total"), r).append(r.filesWritten()).append('\n');
+        }
+        sb.append("# TYPE filetransfer_root_free_bytes gauge\n");
+        for (StorageRoots.Root r : storage.roots()) {
+            long free;
+            try {
+                free = r.usableSpace();
+            } catch (IOException e) {
+                continue;
+            }
+            rootLabel(sb.append("filetransfer_root_free_bytes"), r).append(free).append('\n');
+        }
+    }
+
+    private static StringBuilder rootLabel(StringBuilder sb, StorageRoots.Root root) {
+        return sb.append("{root=\"").append(escape(root.dir().toString())).append("\"} ");
+    }
+
+    private static void counter(StringBuilder sb, String name, long value) {
+        sb.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, long value) {
+        sb.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    final class Client {
+
+        private final int id;
+        private final String remote;
+        private final long connectedNanos = System.nanoTime();
+        private final LongAdder received = new LongAdder();
+        private final LongAdder sent = new LongAdder();
+        private volatile String file = "";
+        private volatile int socketBuffer;
+        private volatile int chunkSize;
+        private long transferStart;
+        private long transferBytesBefore;
+        private boolean inTransfer;
+
+        private Client(int id, String remote) {
+            this.id = id;
+            this.remote = remote;
+        }
+
+        void received(long n) {
+            received.add(n);
+            bytesReceived.add(n);
+        }
+
+        void sent(long n) {
+            sent.add(n);
+            bytesSent.add(n);
+        }
+
+        InputStream counting(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        received(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        received(n);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        void tuned(long rttNanos, int buffer, int chunk) {
+            socketBuffer = buffer;
+            chunkSize = chunk;
+            tunedRttMicros.record(rttNanos / 1000);
+            tunedSocketBuffer.record(buffer);
+            tunedChunk.record(chunk);
+        }
+
+        void begin(String name) {
+            if (inTransfer) {
+                return;
+            }
+            file = name;
+            inTransfer = true;
+            transferStart = System.nanoTime();
+            transferBytesBefore = received.sum() + sent.sum();
+            activeTransfers.increment();
+        }
+
+        void finish(int status) {
+            completed(status);
+            if (!inTransfer) {
+                return;
+            }
+            inTransfer = false;
+            activeTransfers.decrement();
+            if (status == Protocol.STATUS_OK) {
+                long nanos = Math.max(System.nanoTime() - transferStart, 1);
+                long bytes = received.sum() + sent.sum() - transferBytesBefore;
+                durationMs.record(nanos / 1_000_000);
+                throughput.record((long) (bytes * 1_000_000_000.0 / nanos));
+            }
+        }
+
+        void close() {
+            if (inTransfer) {
+                inTransfer = false;
+                activeTransfers.decrement();
+                aborted.increment();
+            }
+            clients.remove(id, this);
+        }
+
+        private StringBuilder labels(StringBuilder sb) {
+            return sb.append("{client=\"").append(id).append("\",remote=\"").append(escape(remote))
+                    .append("\",file=\"").append(escape(file)).append("\"} ");
+        }
+    }
+
+    private static final class Histogram {
+
+        private static final int BUCKETS = 64;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder sum = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            long v = Math.max(value, 0);
+            // bucket i holds values up to 2^i
+            int bucket = v <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(v - 1);
+            buckets[Math.min(bucket, BUCKETS - 1)].increment();
+            sum.add(v);
+        }
+
+        void render(StringBuilder sb, String name) {
+            long[] counts = new long[BUCKETS];
+            int last = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                if (counts[i] > 0) {
+                    last = i;
+                }
+            }
+            sb.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i <= last && i < BUCKETS - 1; i++) {
+                cumulative += counts[i];
+                sb.append(name).append("_bucket{le=\"").append(1L << i).append("\"} ").append(cumulative).append('\n');
+            }
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            sb.append(name).append("_bucket{le=\"+Inf\"} ").append(total).append('\n');
+            sb.append(name).append("_sum ").append(sum.sum()).append('\n');
+            sb.append(name).append("_count ").append(total).append('\n');
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class NioServer {
+
+    private final FileServer server;
+    private final ServerConfig config;
+    private final ExecutorService handlers;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger clientCounter = new AtomicInteger(1);
+
+    private Selector selector;
+    private volatile boolean paused;
+
+    NioServer(FileServer server, ServerConfig config, ExecutorService handlers) {
+        this.server = server;
+        this.config = config;
+        this.handlers = handlers;
+    }
+
+    void run() throws IOException {
+        Reactor[] reactors = new Reactor[config.reactors];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(server, this, handlers);
+            Thread t = new Thread(reactors[i], "reactor-" + (i + 1));
+            t.setDaemon(true);
+            t.start();
+        }
+
+        selector = Selector.open();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.configureBlocking(false);
+            server.listenWithAutotune(serverChannel);
+            serverChannel.bind(new InetSocketAddress(config.port), FileServer.ACCEPT_BACKLOG);
+            SelectionKey acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            System.out.println("File server listening on port " + config.port +
+                    " (selector engine, " + reactors.length + " reactor(s))");
+            System.out.println("Uploads directory: " + server.storage().describe());
+            System.out.println("Concurrent transfers: up to " + config.maxTransfers +
+                    (config.rejectWhenFull ? ", excess clients rejected" : ", excess clients wait in accept queue"));
+            System.out.println("Durability: " + config.durability.name().toLowerCase());
+
+            int next = 0;
+            while (true) {
+                selector.select();
+                selector.selectedKeys().clear();
+                if (paused && active.get() < config.maxTransfers) {
+                    paused = false;
+                    acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                }
+
+                while (!paused) {
+                    if (!config.rejectWhenFull && active.get() >= config.maxTransfers) {
+                        pauseAccepting(acceptKey);
+                        break;
+                    }
+                    SocketChannel client = serverChannel.accept();
+                    if (client == null) {
+                        break;
+                    }
+                    int clientId = clientCounter.getAndIncrement();
+                    if (active.incrementAndGet() > config.maxTransfers) {
+                        active.decrementAndGet();
+                        rejectBusy(client, clientId);
+                        continue;
+                    }
+                    client.configureBlocking(false);
+                    reactors[next].register(client, clientId);
+                    next = (next + 1) % reactors.length;
+                }
+            }
+        }
+    }
+
+    void release() {
+        if (active.decrementAndGet() < config.maxTransfers && paused) {
+            selector.wakeup();
+        }
+    }
+
+    private void pauseAccepting(SelectionKey acceptKey) {
+        acceptKey.interestOps(0);
+        paused = true;
+        // a slot may have been released before the flag became visible
+        if (active.get() < config.maxTransfers) {
+            paused = false;
+            acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    private static void rejectBusy(SocketChannel client, int clientId) {
+        try (client) {
+            System.err.println("Client#" + clientId + " [" + client.getRemoteAddress() + "] rejected: server busy");
+            client.configureBlocking(false);
+            client.write(ByteBuffer.wrap(new byte[]{Protocol.STATUS_BUSY}));
+            client.shutdownOutput();
+        } catch (IOException ignored) {
+            // client is gone anyway
+        }
+    }
+}
@@ -0,0 +1,553 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+final class PackStore {
+
+    private static final String PACK_PREFIX = "pack-";
+    private static final String PACK_EXT = ".dat";
+    private static final String INDEX_FILE = "index.db";
+    private static final String TMP_EXT = ".tmp";
+
+    private static final int RECORD_MAGIC = 0x504B5231;
+    private static final int RECORD_HEADER_BYTES = 20;
+
+    private static final int INDEX_MAGIC = 0x504B4958;
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_BYTES = 64;
+    private static final int SLOT_BYTES = 32;
+    private static final int INITIAL_SLOTS = 1 << 16;
+    private static final int MAX_SLOTS = 1 << 25;
+    private static final double MAX_LOAD = 0.7;
+    private static final double COMPACT_BELOW_LIVE = 0.5;
+    private static final int LIST_BATCH = 4096;
+
+    record Entry(String name, long size) {}
+
+    record Stored(String name, FileChannel channel) {}
+
+    interface EntryConsumer {
+        void accept(String name, long size) throws IOException;
+    }
+
+    private final Path dir;
+    private final long rolloverBytes;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<Integer, FileChannel> packs = new TreeMap<>();
+    private final Map<Integer, Long> liveBytes = new HashMap<>();
+
+    private MappedByteBuffer index;
+    private int capacity;
+    private int count;
+    private int activePack;
+    private long activeLength;
+
+    PackStore(Path uploadsReal, long rolloverBytes) throws IOException {
+        this.dir = uploadsReal.resolve(".packs");
+        this.rolloverBytes = rolloverBytes;
+        Files.createDirectories(dir);
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PACK_PREFIX + "*" + PACK_EXT)) {
+            for (Path p : stream) {
+                String fileName = p.getFileName().toString();
+                int id = Integer.parseInt(fileName.substring(PACK_PREFIX.length(), fileName.length() - PACK_EXT.length()));
+                packs.put(id, FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            }
+        }
+
+        if (loadIndex()) {
+            for (int i = 0; i < capacity; i++) {
+                int pos = slotPos(i);
+                if (index.getLong(pos) != 0) {
+                    addLive(index.getInt(pos + 8), recordSize(index.getInt(pos + 12), index.getLong(pos + 24)));
+                }
+            }
+            for (Map.Entry<Integer, FileChannel> e : packs.tailMap(activePack, true).entrySet()) {
+                scanPack(e.getKey(), e.getKey() == activePack ? index.getLong(24) : 0);
+            }
+        } else {
+            createIndex(dir.resolve(INDEX_FILE), INITIAL_SLOTS);
+            for (int id : packs.keySet()) {
+                scanPack(id, 0);
+            }
+        }
+
+        if (packs.isEmpty()) {
+            packs.put(1, FileChannel.open(packPath(1), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE));
+        }
+        activePack = packs.lastKey();
+        activeLength = packs.get(activePack).size();
+        index.putInt(16, activePack);
+        index.putLong(24, activeLength);
+    }
+
+    int entryCount() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    byte[] get(String name) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            int pos = slotPos(findSlot(hash(nameBytes), nameBytes));
+            if (index.getLong(pos) == 0) {
+                return null;
+            }
+            byte[] data = new byte[(int) index.getLong(pos + 24)];
+            readFully(packs.get(index.getInt(pos + 8)), ByteBuffer.wrap(data),
+                    index.getLong(pos + 16) + RECORD_HEADER_BYTES + nameBytes.length);
+            return data;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    FileChannel put(String name, byte[] data, int length) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, length);
+        lock.writeLock().lock();
+        try {
+            append(nameBytes, data, length, (int) crc.getValue());
+            return packs.get(activePack);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // unlike put, never replaces an existing record: a taken name gets a suffix the way
+    // FileServer.resolveInUploads does for loose files
+    Stored add(String name, byte[] data, int length) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, length);
+        lock.writeLock().lock();
+        try {
+            String stored = name;
+            byte[] nameBytes = stored.getBytes(StandardCharsets.UTF_8);
+            String suffixed = name + "_" + System.currentTimeMillis();
+            for (int n = 1; contains(nameBytes); n++) {
+                stored = n == 1 ? suffixed : suffixed + "_" + n;
+                nameBytes = stored.getBytes(StandardCharsets.UTF_8);
+            }
+            append(nameBytes, data, length, (int) crc.getValue());
+            return new Stored(stored, packs.get(activePack));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void forEach(EntryConsumer consumer) throws IOException {
+        int[] slotPacks;
+        long[] slotOffsets;
+        int n = 0;
+        lock.readLock().lock();
+        try {
+            slotPacks = new int[count];
+            slotOffsets = new long[count];
+            for (int i = 0; i < capacity && n < count; i++) {
+                int pos = slotPos(i);
+                if (index.getLong(pos) != 0) {
+                    slotPacks[n] = index.getInt(pos + 8);
+                    slotOffsets[n] = index.getLong(pos + 16);
+                    n++;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.<Integer>comparingInt(i -> slotPacks[i]).thenComparingLong(i -> slotOffsets[i]));
+
+        List<Entry> batch = new ArrayList<>(LIST_BATCH);
+        for (int from = 0; from < n; from += LIST_BATCH) {
+            batch.clear();
+            lock.readLock().lock();
+            try {
+                for (int k = from; k < Math.min(n, from + LIST_BATCH); k++) {
+                    Entry entry = readEntry(slotPacks[order[k]], slotOffsets[order[k]]);
+                    if (entry != null) {
+                        batch.add(entry);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            for (Entry entry : batch) {
+                consumer.accept(entry.name(), entry.size());
+            }
+        }
+    }
+
+    void compact() {
+        List<Integer> candidates = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<Integer, FileChannel> e : packs.entrySet()) {
+                if (e.getKey() != activePack
+                        && liveBytes.getOrDefault(e.getKey(), 0L) < e.getValue().size() * COMPACT_BELOW_LIVE) {
+                    candidates.add(e.getKey());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Pack compaction failed: " + e.getMessage());
+            return;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        for (int id : candidates) {
+            try {
+                compactPack(id);
+            } catch (IOException e) {
+                System.err.println("Compaction of pack " + id + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void compactPack(int id) throws IOException {
+        FileChannel ch;
+        long size;
+        int firstTarget;
+        lock.readLock().lock();
+        try {
+            ch = packs.get(id);
+            size = ch.size();
+            firstTarget = activePack;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        int moved = 0;
+        long pos = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        while (pos < size) {
+            readFully(ch, header.clear(), pos);
+            header.flip();
+            header.getInt();
+            int nameLen = header.getInt();
+            long length = header.getLong();
+            int crc = header.getInt();
+            byte[] nameBytes = new byte[nameLen];
+            readFully(ch, ByteBuffer.wrap(nameBytes), pos + RECORD_HEADER_BYTES);
+
+            lock.writeLock().lock();
+            try {
+                int pos0 = slotPos(findSlot(hash(nameBytes), nameBytes));
+                if (index.getLong(pos0) != 0 && index.getInt(pos0 + 8) == id && index.getLong(pos0 + 16) == pos) {
+                    byte[] body = new byte[(int) length];
+                    readFully(ch, ByteBuffer.wrap(body), pos + RECORD_HEADER_BYTES + nameLen);
+                    append(nameBytes, body, body.length, crc);
+                    moved++;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            pos += recordSize(nameLen, length);
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (liveBytes.getOrDefault(id, 0L) == 0) {
+                // the moved copies and the slots pointing at them must be on disk before the only
+                // other copy goes away, or a crash leaves the index referring to a deleted pack
+                for (FileChannel target : packs.tailMap(firstTarget, true).values()) {
+                    target.force(false);
+                }
+                index.force();
+                packs.remove(id).close();
+                liveBytes.remove(id);
+                Files.deleteIfExists(packPath(id));
+                System.out.println("Compacted pack " + id + ": moved " + moved + " live record(s), freed " + size + " bytes");
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void append(byte[] nameBytes, byte[] data, int length, int crc) throws IOException {
+        long size = recordSize(nameBytes.length, length);
+        if (activeLength > 0 && activeLength + size > rolloverBytes) {
+            rollPack();
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES + nameBytes.length);
+        header.putInt(RECORD_MAGIC).putInt(nameBytes.length).putLong(length).putInt(crc).put(nameBytes).flip();
+        FileChannel ch = packs.get(activePack);
+        writeFully(ch, header, activeLength);
+        writeFully(ch, ByteBuffer.wrap(data, 0, length), activeLength + header.capacity());
+
+        upsert(nameBytes, activePack, activeLength, length);
+        activeLength += size;
+        index.putLong(24, activeLength);
+    }
+
+    private void rollPack() throws IOException {
+        int id = activePack + 1;
+        packs.put(id, FileChannel.open(packPath(id), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE));
+        activePack = id;
+        activeLength = 0;
+        index.putInt(16, activePack);
+        index.putLong(24, 0);
+    }
+
+    private void scanPack(int id, long from) throws IOException {
+        FileChannel ch = packs.get(id);
+        long size = ch.size();
+        long pos = from;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        ByteBuffer body = ByteBuffer.allocate(64 * 1024);
+        CRC32C crc = new CRC32C();
+        int recovered = 0;
+
+        while (pos + RECORD_HEADER_BYTES <= size) {
+            readFully(ch, header.clear(), pos);
+            header.flip();
+            int magic = header.getInt();
+            int nameLen = header.getInt();
+            long length = header.getLong();
+            int expectedCrc = header.getInt();
+            if (magic != RECORD_MAGIC || nameLen <= 0 || nameLen > Protocol.MAX_NAME_BYTES
+                    || length < 0 || pos + recordSize(nameLen, length) > size) {
+                break;
+            }
+            byte[] nameBytes = new byte[nameLen];
+            readFully(ch, ByteBuffer.wrap(nameBytes), pos + RECORD_HEADER_BYTES);
+
+            crc.reset();
+            long bodyPos = pos + RECORD_HEADER_BYTES + nameLen;
+            for (long done = 0; done < length; ) {
+                body.clear().limit((int) Math.min(body.capacity(), length - done));
+                readFully(ch, body, bodyPos + done);
+                crc.update(body.flip());
+                done += body.limit();
+            }
+            if ((int) crc.getValue() != expectedCrc) {
+                break;
+            }
+
+            upsert(nameBytes, id, pos, length);
+            pos += recordSize(nameLen, length);
+            recovered++;
+        }
+
+        if (pos < size) {
+            System.err.println("Pack " + id + ": dropping " + (size - pos) + " bytes of torn records at offset " + pos);
+            ch.truncate(pos);
+        }
+        if (from > 0 && recovered > 0) {
+            System.out.println("Pack " + id + ": recovered " + recovered + " unindexed record(s)");
+        }
+    }
+
+    private void upsert(byte[] nameBytes, int pack, long recordOffset, long length) throws IOException {
+        long h = hash(nameBytes);
+        int pos = slotPos(findSlot(h, nameBytes));
+        if (index.getLong(pos) != 0) {
+            addLive(index.getInt(pos + 8), -recordSize(index.getInt(pos + 12), index.getLong(pos + 24)));
+        } else {
+            count++;
+            index.putInt(12, count);
+        }
+        index.putLong(pos, h);
+        index.putInt(pos + 8, pack);
+        index.putInt(pos + 12, nameBytes.length);
+        index.putLong(pos + 16, recordOffset);
+        index.putLong(pos + 24, length);
+        addLive(pack, recordSize(nameBytes.length, length));
+
+        if (count > capacity * MAX_LOAD) {
+            grow();
+        }
+    }
+
+    private int findSlot(long h, byte[] nameBytes) throws IOException {
+        int mask = capacity - 1;
+        int i = (int) h & mask;
+        while (true) {
+            int pos = slotPos(i);
+            long slotHash = index.getLong(pos);
+            if (slotHash == 0) {
+                return i;
+            }
+            if (slotHash == h && index.getInt(pos + 12) == nameBytes.length
+                    && nameMatches(index.getInt(pos + 8), index.getLong(pos + 16), nameBytes)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private boolean contains(byte[] nameBytes) throws IOException {
+        return index.getLong(slotPos(findSlot(hash(nameBytes), nameBytes))) != 0;
+    }
+
+    private boolean nameMatches(int pack, long recordOffset, byte[] nameBytes) throws IOException {
+        byte[] stored = new byte[nameBytes.length];
+        readFully(packs.get(pack), ByteBuffer.wrap(stored), recordOffset + RECORD_HEADER_BYTES);
+        return Arrays.equals(stored, nameBytes);
+    }
+
+    private Entry readEntry(int pack, long recordOffset) throws IOException {
+        FileChannel ch = packs.get(pack);
+        if (ch == null) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        readFully(ch, header, recordOffset);
+        header.flip();
+        header.getInt();
+        int nameLen = header.getInt();
+        long length = header.getLong();
+        byte[] nameBytes = new byte[nameLen];
+        readFully(ch, ByteBuffer.wrap(nameBytes), recordOffset + RECORD_HEADER_BYTES);
+        return new Entry(new String(nameBytes, StandardCharsets.UTF_8), length);
+    }
+
+    private boolean loadIndex() throws IOException {
+        Path path = dir.resolve(INDEX_FILE);
+        if (!Files.exists(path)) {
+            return false;
+        }
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (ch.size() < INDEX_HEADER_BYTES) {
+                return false;
+            }
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+            int slots = map.getInt(8);
+            if (map.getInt(0) != INDEX_MAGIC || map.getInt(4) != INDEX_VERSION
+                    || Integer.bitCount(slots) != 1 || slots > MAX_SLOTS
+                    || ch.size() != INDEX_HEADER_BYTES + (long) slots * SLOT_BYTES
+                    || (!packs.isEmpty() && !packs.containsKey(map.getInt(16)))
+                    || (packs.containsKey(map.getInt(16)) && map.getLong(24) > packs.get(map.getInt(16)).size())) {
+                System.err.println("Pack index is damaged, rebuilding from packs");
+                return false;
+            }
+            for (int i = 0; i < slots; i++) {
+                int pos = slotPos(i);
+                if (map.getLong(pos) == 0) {
+                    continue;
+                }
+                FileChannel pack = packs.get(map.getInt(pos + 8));
+                if (pack == null || map.getLong(pos + 16) + recordSize(map.getInt(pos + 12), map.getLong(pos + 24))
+                        > pack.size()) {
+                    System.err.println("Pack index refers to a missing pack or record, rebuilding from packs");
+                    return false;
+                }
+            }
+            index = map;
+            capacity = slots;
+            count = map.getInt(12);
+            activePack = map.getInt(16);
+            return true;
+        }
+    }
+
+    private void createIndex(Path path, int slots) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            index = ch.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_BYTES + (long) slots * SLOT_BYTES);
+        }
+        capacity = slots;
+        count = 0;
+        index.putInt(0, INDEX_MAGIC);
+        index.putInt(4, INDEX_VERSION);
+        index.putInt(8, capacity);
+        index.putInt(12, 0);
+        index.putInt(16, activePack);
+        index.putLong(24, activeLength);
+    }
+
+    private void grow() throws IOException {
+        if (capacity >= MAX_SLOTS) {
+            throw new IOException("Pack index is full (" + count + " entries)");
+        }
+        MappedByteBuffer old = index;
+        int oldCapacity = capacity;
+        int oldCount = count;
+        Path path = dir.resolve(INDEX_FILE);
+        Path tmp = dir.resolve(INDEX_FILE + TMP_EXT);
+
+        createIndex(tmp, oldCapacity * 2);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldCapacity; i++) {
+            int from = slotPos(i);
+            long h = old.getLong(from);
+            if (h == 0) {
+                continue;
+            }
+            int j = (int) h & mask;
+            while (index.getLong(slotPos(j)) != 0) {
+                j = (j + 1) & mask;
+            }
+            int to = slotPos(j);
+            for (int k = 0; k < SLOT_BYTES; k += 8) {
+                index.putLong(to + k, old.getLong(from + k));
+            }
+        }
+        count = oldCount;
+        index.putInt(12, count);
+        index.force();
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void addLive(int pack, long delta) {
+        liveBytes.merge(pack, delta, Long::sum);
+    }
+
+    private Path packPath(int id) {
+        return dir.resolve(String.format("%s%06d%s", PACK_PREFIX, id, PACK_EXT));
+    }
+
+    private static int slotPos(int slot) {
+        return INDEX_HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    private static long recordSize(int nameLen, long length) {
+        return RECORD_HEADER_BYTES + nameLen + length;
+    }
+
+    private static long hash(byte[] nameBytes) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : nameBytes) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) == -1) {
+                throw new IOException("Unexpected end of pack file");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            ch.write(buf, position + buf.position());
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package filetransfer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+final class PartialStore {
+
+    private static final String PART_EXT = ".part";
+    private static final String JOURNAL_EXT = ".journal";
+    private static final String TMP_EXT = ".tmp";
+    private static final int JOURNAL_VERSION = 2;
+
+    private final Path dir;
+    private final long ttlMs;
+    private final Set<String> active = ConcurrentHashMap.newKeySet();
+
+    PartialStore(Path uploadsReal, long ttlMs) throws IOException {
+        this.dir = uploadsReal.resolve(".partial");
+        this.ttlMs = ttlMs;
+        Files.createDirectories(dir);
+    }
+
+    Path dir() {
+        return dir;
+    }
+
+    boolean has(UUID transferId) {
+        return Files.exists(dir.resolve(transferId + JOURNAL_EXT));
+    }
+
+    Partial open(UUID transferId, String name, long size, long fingerprint) throws IOException {
+        String key = transferId.toString();
+        if (!active.add(key)) {
+            return null;
+        }
+        try {
+            Path part = dir.resolve(key + PART_EXT);
+            Path journal = dir.resolve(key + JOURNAL_EXT);
+
+            long offset = 0;
+            int crc = 0;
+            JournalEntry entry = readJournal(journal);
+            if (entry != null && entry.size == size && entry.fingerprint == fingerprint
+                    && Files.exists(part) && entry.committed <= Files.size(part)) {
+                offset = entry.committed;
+                crc = entry.committedCrc;
+            }
+
+            FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                channel.truncate(offset);
+                FileServer.preallocate(channel, size);
+                channel.position(offset);
+                Partial partial = new Partial(key, part, journal, name, size, fingerprint, channel);
+                partial.checkpoint(offset, crc);
+                return partial;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            active.remove(key);
+            throw e;
+        }
+    }
+
+    void collectStale() {
+        long cutoff = System.currentTimeMillis() - ttlMs;
+        Map<String, List<Path>> byKey = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path p : stream) {
+                String fileName = p.getFileName().toString();
+                int dot = fileName.indexOf('.');
+                String key = dot > 0 ? fileName.substring(0, dot) : fileName;
+                byKey.computeIfAbsent(key, k -> new ArrayList<>()).add(p);
+            }
+        } catch (IOException e) {
+            System.err.println("Partial GC failed: " + e.getMessage());
+            return;
+        }
+
+        for (Map.Entry<String, List<Path>> e : byKey.entrySet()) {
+            if (active.contains(e.getKey())) {
+                continue;
+            }
+            try {
+                long newest = 0;
+                for (Path p : e.getValue()) {
+                    newest = Math.max(newest, Files.getLastModifiedTime(p).toMillis());
+                }
+                if (newest >= cutoff) {
+                    continue;
+                }
+                for (Path p : e.getValue()) {
+                    Files.deleteIfExists(p);
+                }
+                System.out.println("Removed stale partial upload " + e.getKey());
+            } catch (IOException ex) {
+                System.err.println("Partial GC failed for " + e.getKey() + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    private static JournalEntry readJournal(Path journal) {
+        if (!Files.exists(journal)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journal)))) {
+            if (in.readInt() != JOURNAL_VERSION) {
+                return null;
+            }
+            String name = in.readUTF();
+            long size = in.readLong();
+            long fingerprint = in.readLong();
+            long committed = in.readLong();
+            int committedCrc = in.readInt();
+            return new JournalEntry(name, size, fingerprint, committed, committedCrc);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private record JournalEntry(String name, long size, long fingerprint, long committed, int committedCrc) {}
+
+    final class Partial implements Closeable {
+        private final String key;
+        private final Path part;
+        private final Path journal;
+        private final String name;
+        private final long size;
+        private final long fingerprint;
+        private final FileChannel channel;
+        private long committed;
+        private int committedCrc;
+
+        private Partial(String key, Path part, Path journal, String name, long size,
+                        long fingerprint, FileChannel channel) {
+            this.key = key;
+            this.part = part;
+            this.journal = journal;
+            this.name = name;
+            this.size = size;
+            this.fingerprint = fingerprint;
+            this.channel = channel;
+        }
+
+        FileChannel channel() {
+            return channel;
+        }
+
+        long committedOffset() {
+            return committed;
+        }
+
+        int committedCrc() {
+            return committedCrc;
+        }
+
+        void checkpoint(long offset, int crc) throws IOException {
+            channel.force(false);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(JOURNAL_VERSION);
+            out.writeUTF(name);
+            out.writeLong(size);
+            out.writeLong(fingerprint);
+            out.writeLong(offset);
+            out.writeInt(crc);
+            out.flush();
+
+            Path tmp = dir.resolve(key + JOURNAL_EXT + TMP_EXT);
+            try (FileChannel jc = FileChannel.open(tmp,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+                while (buf.hasRemaining()) {
+                    jc.write(buf);
+                }
+                jc.force(true);
+            }
+            Files.move(tmp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = offset;
+            committedCrc = crc;
+        }
+
+        Path complete(Path target, Durability durability) throws IOException {
+            durability.commit(channel);
+            channel.close();
+            // a rename would silently replace a file another upload of the same name just finished;
+            // a hard link fails instead, and the loser retries under a suffixed name
+            Path stored = target;
+            String suffixed = target.getFileName() + "_" + System.currentTimeMillis();
+            for (int n = 1; ; n++) {
+                try {
+                    Files.createLink(stored, part);
+                    break;
+                } catch (FileAlreadyExistsException e) {
+                    stored = target.resolveSibling(n == 1 ? suffixed : suffixed + "_" + n);
+                }
+            }
+            Files.delete(part);
+            Files.deleteIfExists(journal);
+            return stored;
+        }
+
+        String completeInto(PackStore packs, String target, Durability durability) throws IOException {
+            byte[] data = new byte[(int) size];
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, buf.position()) == -1) {
+                    throw new EOFException("Partial file is shorter than " + size + " bytes");
+                }
+            }
+            PackStore.Stored stored = packs.add(target, data, data.length);
+            durability.commit(stored.channel());
+            channel.close();
+            Files.deleteIfExists(part);
+            Files.deleteIfExists(journal);
+            return stored.name();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                active.remove(key);
+            }
+        }
+    }
+}
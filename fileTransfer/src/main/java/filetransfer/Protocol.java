@@ -0,0 +1,98 @@
+package filetransfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+final class Protocol {
+    private Protocol() {}
+
+    static final byte[] MAGIC_V1 = new byte[]{'F', 'T', '0', '1'};
+    static final byte[] MAGIC_V2 = new byte[]{'F', 'T', '0', '2'};
+
+    static final int MAX_NAME_BYTES = 4096;
+    static final long MAX_FILE_SIZE = 1024L * 1024 * 1024 * 1024;
+
+    static final byte OP_PUT = 1;
+    static final byte OP_PUT_DEDUP = 2;
+    static final byte OP_PUT_DELTA = 3;
+    static final byte OP_BATCH = 4;
+    static final byte OP_LIST = 5;
+    static final byte OP_GET = 6;
+    static final byte OP_UDP_PUT = 7;
+    static final byte OP_SYNC = 8;
+
+    static final byte DELTA_END = 0;
+    static final byte DELTA_COPY = 1;
+    static final byte DELTA_LITERAL = 2;
+
+    static final int BATCH_END = 0;
+    static final int BATCH_ACKS_END = -1;
+    static final int MAX_BATCH_WINDOW = 256;
+    static final int BATCH_INLINE_MAX = 256 * 1024;
+
+    static final int FLAG_CRC32C = 1;
+    static final int FLAG_COMPRESS = 2;
+    static final int SUPPORTED_FLAGS = FLAG_CRC32C | FLAG_COMPRESS;
+
+    static final int CHUNK_SIZE = 1024 * 1024;
+    static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    static final int MAX_DEDUP_CHUNKS = 1 << 22;
+
+    static final long UDP_MAX_FILE_SIZE = 16L * 1024 * 1024 * 1024;
+    static final int UDP_BLOCK_BYTES = 1400;
+    static final byte UDP_DATA = 1;
+    static final byte UDP_FEEDBACK = 2;
+    static final int UDP_DATA_HEADER_BYTES = 8 + 1 + 4 + 8 + 8;
+    static final int UDP_MAX_NACKS = 256;
+
+    static final int STATUS_OK = 0;
+    static final int STATUS_INCOMPLETE = 1;
+    static final int STATUS_ERROR = 2;
+    static final int STATUS_CORRUPT = 3;
+    static final int STATUS_BUSY = 4;
+    static final int STATUS_NOT_FOUND = 5;
+
+    static boolean matchesMagic(byte[] buf, byte[] magic) {
+        if (buf.length != magic.length) return false;
+        for (int i = 0; i < magic.length; i++) {
+            if (buf[i] != magic[i]) return false;
+        }
+        return true;
+    }
+
+    static byte[] encodeName(String name) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length == 0 || nameBytes.length > MAX_NAME_BYTES) {
+            throw new IOException("File name length in UTF-8 is invalid: " + nameBytes.length);
+        }
+        return nameBytes;
+    }
+
+    static void writeName(DataOutputStream out, byte[] nameBytes) throws IOException {
+        out.writeInt(nameBytes.length);
+        out.write(nameBytes);
+    }
+
+    static String readName(DataInputStream in) throws IOException {
+        int nameLen = in.readInt();
+        if (nameLen <= 0 || nameLen > MAX_NAME_BYTES) {
+            return null;
+        }
+        byte[] nameBytes = new byte[nameLen];
+        in.readFully(nameBytes);
+        return new String(nameBytes, StandardCharsets.UTF_8);
+    }
+
+    static String describeStatus(int status) {
+        return switch (status) {
+            case STATUS_OK -> "File transfer succeeded.";
+            case STATUS_INCOMPLETE -> "File transfer failed: size mismatch or partial data.";
+            case STATUS_CORRUPT -> "File transfer failed: data corrupted in transit.";
+            case STATUS_BUSY -> "File transfer rejected: server is at its transfer limit, try again later.";
+            case STATUS_NOT_FOUND -> "File not found on server.";
+            default -> "File transfer failed: server reported error.";
+        };
+    }
+}
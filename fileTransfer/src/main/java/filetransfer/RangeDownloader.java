@@ -0,0 +1,131 @@
+package filetransfer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class RangeDownloader {
+
+    private static final long MIN_RANGE = 4L * 1024 * 1024;
+    private static final int RANGE_HEADER_BYTES = 24;
+
+    private final InetSocketAddress address;
+    private final byte[] nameBytes;
+    private final AtomicLong received = new AtomicLong();
+
+    RangeDownloader(String host, int port, String name) throws IOException {
+        this.address = new InetSocketAddress(host, port);
+        this.nameBytes = Protocol.encodeName(name);
+    }
+
+    long size() throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            return request(channel, 0, 0)[0];
+        }
+    }
+
+    void download(FileChannel file, long size, int parallel) throws IOException {
+        int ranges = (int) Math.max(1, Math.min(parallel, size / MIN_RANGE));
+        long step = (size + ranges - 1) / ranges;
+        if (size > 0) {
+            // transferFrom does nothing past the end of the file, so extend it up front
+            file.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        }
+
+        List<Thread> workers = new ArrayList<>();
+        List<IOException> errors = new ArrayList<>();
+        for (int i = 0; i < ranges; i++) {
+            long offset = i * step;
+            long length = Math.min(step, size - offset);
+            Thread t = new Thread(() -> {
+                try {
+                    fetch(file, offset, length);
+                } catch (IOException e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }, "range-" + i);
+            t.start();
+            workers.add(t);
+        }
+
+        SpeedMeter meter = new SpeedMeter("Download");
+        for (Thread t : workers) {
+            while (t.isAlive()) {
+                try {
+                    t.join(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while downloading");
+                }
+                meter.onProgress(received.get());
+            }
+        }
+        meter.finish(received.get());
+
+        if (!errors.isEmpty()) {
+            IOException first = errors.get(0);
+            for (int i = 1; i < errors.size(); i++) {
+                first.addSuppressed(errors.get(i));
+            }
+            throw first;
+        }
+        System.out.println("Downloaded " + size + " bytes over " + ranges + " connection(s)");
+    }
+
+    private void fetch(FileChannel file, long offset, long length) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            long count = request(channel, offset, length)[2];
+            if (count != length) {
+                throw new IOException("Server returned " + count + " bytes for range at " + offset +
+                        ", expected " + length);
+            }
+            long position = offset;
+            long end = offset + count;
+            while (position < end) {
+                long n = file.transferFrom(channel, position, end - position);
+                if (n <= 0) {
+                    throw new EOFException("Connection closed inside range at offset " + position);
+                }
+                position += n;
+                received.addAndGet(n);
+            }
+        }
+    }
+
+    private long[] request(SocketChannel channel, long offset, long length) throws IOException {
+        ByteBuffer req = ByteBuffer.allocate(Protocol.MAGIC_V2.length + 1 + 4 + nameBytes.length + 16);
+        req.put(Protocol.MAGIC_V2).put(Protocol.OP_GET).putInt(nameBytes.length).put(nameBytes)
+                .putLong(offset).putLong(length).flip();
+        while (req.hasRemaining()) {
+            channel.write(req);
+        }
+
+        ByteBuffer status = ByteBuffer.allocate(1);
+        readFully(channel, status);
+        int code = status.get(0);
+        if (code != Protocol.STATUS_OK) {
+            throw new IOException(Protocol.describeStatus(code) + " (" +
+                    new String(nameBytes, StandardCharsets.UTF_8) + ")");
+        }
+        ByteBuffer header = ByteBuffer.allocate(RANGE_HEADER_BYTES);
+        readFully(channel, header);
+        header.flip();
+        return new long[]{header.getLong(), header.getLong(), header.getLong()};
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) == -1) {
+                throw new EOFException("Server closed connection without status");
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+final class Reactor implements Runnable {
+
+    private static final int BODY_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_IDLE_BUFFERS = 4;
+
+    private final FileServer server;
+    private final NioServer acceptor;
+    private final ExecutorService handlers;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final List<UploadSession> handoffs = new ArrayList<>();
+    private final BufferPool buffers = new BufferPool(BODY_BUFFER_SIZE, MAX_IDLE_BUFFERS);
+
+    Reactor(FileServer server, NioServer acceptor, ExecutorService handlers) throws IOException {
+        this.server = server;
+        this.acceptor = acceptor;
+        this.handlers = handlers;
+        this.selector = Selector.open();
+    }
+
+    FileServer server() {
+        return server;
+    }
+
+    BufferPool buffers() {
+        return buffers;
+    }
+
+    void register(SocketChannel channel, int clientId) {
+        execute(() -> {
+            try {
+                UploadSession session = new UploadSession(this, channel, clientId);
+                session.setKey(channel.register(selector, SelectionKey.OP_READ, session));
+            } catch (IOException e) {
+                System.err.println("Client#" + clientId + " registration failed: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // already broken
+                }
+                acceptor.release();
+            }
+        });
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void handOff(UploadSession session) {
+        handoffs.add(session);
+    }
+
+    void onSessionClosed() {
+        acceptor.release();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    UploadSession session = (UploadSession) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            session.onRead();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.onWrite();
+                        }
+                    } catch (CancelledKeyException ignored) {
+                        // session closed while handling the event
+                    } catch (IOException e) {
+                        session.fail(e);
+                    }
+                }
+
+                if (!handoffs.isEmpty()) {
+                    completeHandoffs();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Reactor failed: " + e.getMessage());
+        }
+    }
+
+    private void completeHandoffs() throws IOException {
+        // cancelled keys are only deregistered by the next selection operation
+        selector.selectNow();
+        for (UploadSession session : handoffs) {
+            SocketChannel channel = session.channel();
+            try {
+                channel.configureBlocking(true);
+            } catch (IOException e) {
+                channel.close();
+                session.metrics().close();
+                acceptor.release();
+                continue;
+            }
+            ClientHandler handler = new ClientHandler(server, channel.socket(), session.clientId(),
+                    session.magic(), session.metrics());
+            handlers.execute(() -> {
+                try {
+                    handler.run();
+                } finally {
+                    acceptor.release();
+                }
+            });
+        }
+        handoffs.clear();
+    }
+}
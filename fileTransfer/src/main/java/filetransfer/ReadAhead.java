@@ -0,0 +1,138 @@
+package filetransfer;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+final class ReadAhead implements Closeable {
+
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final FileChannel file;
+    private final long end;
+    private final BufferPool pool;
+    private final ByteBuffer[] ring;
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> filled;
+    private final Thread reader;
+    private volatile int segmentSize;
+
+    private volatile IOException failure;
+    private volatile boolean closed;
+    private volatile long readerStallNanos;
+    private long senderStallNanos;
+    private long startNanos;
+
+    ReadAhead(FileChannel file, long start, long end, int segmentSize, int depth) {
+        this(file, start, end, segmentSize, segmentSize, depth);
+    }
+
+    // buffers hold up to capacity bytes, each read fills segmentSize of them; the segment size
+    // can be changed while reading
+    ReadAhead(FileChannel file, long start, long end, int segmentSize, int capacity, int depth) {
+        this.file = file;
+        this.end = end;
+        this.segmentSize = segmentSize;
+        this.free = new ArrayBlockingQueue<>(depth + 1);
+        this.filled = new ArrayBlockingQueue<>(depth + 1);
+        this.pool = BufferPool.shared(capacity);
+        this.ring = new ByteBuffer[depth];
+        for (int i = 0; i < depth; i++) {
+            ring[i] = pool.acquire();
+            free.add(ring[i]);
+        }
+        this.reader = new Thread(() -> runReader(start), "read-ahead");
+        reader.setDaemon(true);
+        startNanos = System.nanoTime();
+        reader.start();
+    }
+
+    ByteBuffer next() throws IOException {
+        long t0 = System.nanoTime();
+        ByteBuffer buf;
+        try {
+            buf = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for file data");
+        }
+        senderStallNanos += System.nanoTime() - t0;
+        if (buf == END) {
+            filled.add(END);
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+        return buf;
+    }
+
+    void release(ByteBuffer buf) {
+        free.add(buf);
+    }
+
+    void segmentSize(int size) {
+        segmentSize = size;
+    }
+
+    String summary() {
+        long total = Math.max(System.nanoTime() - startNanos, 1);
+        long readerStall = readerStallNanos;
+        String bound = senderStallNanos > readerStall ? "disk-bound" : "network-bound";
+        return String.format("Pipeline: reader stalled %d ms (%.0f%%) on a full ring, sender stalled %d ms (%.0f%%) on disk reads, %s",
+                readerStall / 1_000_000, readerStall * 100.0 / total,
+                senderStallNanos / 1_000_000, senderStallNanos * 100.0 / total, bound);
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        free.offer(END);
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            // the reader may still be filling a buffer, so it cannot go back to the pool
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (ByteBuffer buf : ring) {
+            pool.release(buf);
+        }
+    }
+
+    private void runReader(long position) {
+        try {
+            while (position < end) {
+                long t0 = System.nanoTime();
+                ByteBuffer buf = free.take();
+                readerStallNanos += System.nanoTime() - t0;
+                if (closed) {
+                    return;
+                }
+                buf.clear();
+                buf.limit((int) Math.min(Math.min(buf.capacity(), segmentSize), end - position));
+                while (buf.hasRemaining()) {
+                    if (file.read(buf, position + buf.position()) == -1) {
+                        throw new EOFException("Unexpected EOF while reading file");
+                    }
+                }
+                buf.flip();
+                position += buf.limit();
+                filled.add(buf);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            return;
+        }
+        filled.add(END);
+    }
+}
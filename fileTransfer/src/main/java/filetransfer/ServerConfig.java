@@ -0,0 +1,125 @@
+package filetransfer;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+final class ServerConfig {
+
+    static final String USAGE =
+            "Usage: java -jar file-transfer.jar server [--max-transfers N] [--overload park|reject]" +
+            " [--engine threads|nio] [--reactors N] [--storage files|pack] [--pack-max-file BYTES]" +
+            " [--durability none|fsync|group] [--metrics-port N]" +
+            " [--bandwidth BYTES_PER_SEC] [--weight-addr PREFIX=W]... [--weight-size MAX_BYTES=W]..." +
+            " [--autotune MIN_BYTES:MAX_BYTES] [--root DIR]... [--placement hash|space|least-busy]" +
+            " [--root-writers N] <port>";
+
+    int port;
+    int maxTransfers = 1024;
+    boolean rejectWhenFull;
+    boolean nio;
+    int reactors = Runtime.getRuntime().availableProcessors();
+    boolean packStorage;
+    int packMaxFile = 64 * 1024;
+    Durability.Mode durability = Durability.Mode.NONE;
+    int metricsPort;
+    long bandwidth;
+    final List<BandwidthScheduler.AddressWeight> addressWeights = new ArrayList<>();
+    final List<BandwidthScheduler.SizeWeight> sizeWeights = new ArrayList<>();
+    BufferTuner.Bounds autotune;
+    final List<Path> roots = new ArrayList<>();
+    StorageRoots.Placement placement = StorageRoots.Placement.HASH;
+    int rootWriters;
+
+    static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        int i = 0;
+        while (i < args.length && args[i].startsWith("--")) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[i + 1];
+            switch (option) {
+                case "--max-transfers" -> config.maxTransfers = positive(option, value);
+                case "--overload" -> config.rejectWhenFull = switch (value) {
+                    case "park" -> false;
+                    case "reject" -> true;
+                    default -> throw new IllegalArgumentException("Unknown overload policy: " + value);
+                };
+                case "--engine" -> config.nio = switch (value) {
+                    case "threads" -> false;
+                    case "nio" -> true;
+                    default -> throw new IllegalArgumentException("Unknown engine: " + value);
+                };
+                case "--reactors" -> config.reactors = positive(option, value);
+                case "--storage" -> config.packStorage = switch (value) {
+                    case "files" -> false;
+                    case "pack" -> true;
+                    default -> throw new IllegalArgumentException("Unknown storage: " + value);
+                };
+                case "--pack-max-file" -> config.packMaxFile = positive(option, value);
+                case "--durability" -> config.durability = switch (value) {
+                    case "none" -> Durability.Mode.NONE;
+                    case "fsync" -> Durability.Mode.FSYNC;
+                    case "group" -> Durability.Mode.GROUP;
+                    default -> throw new IllegalArgumentException("Unknown durability mode: " + value);
+                };
+                case "--metrics-port" -> config.metricsPort = positive(option, value);
+                case "--bandwidth" -> config.bandwidth = positiveLong(option, value);
+                case "--weight-addr" -> {
+                    int eq = value.lastIndexOf('=');
+                    if (eq <= 0) {
+                        throw new IllegalArgumentException("Expected PREFIX=W for " + option);
+                    }
+                    config.addressWeights.add(new BandwidthScheduler.AddressWeight(
+                            value.substring(0, eq), positive(option, value.substring(eq + 1))));
+                }
+                case "--weight-size" -> {
+                    int eq = value.indexOf('=');
+                    if (eq <= 0) {
+                        throw new IllegalArgumentException("Expected MAX_BYTES=W for " + option);
+                    }
+                    config.sizeWeights.add(new BandwidthScheduler.SizeWeight(
+                            positiveLong(option, value.substring(0, eq)), positive(option, value.substring(eq + 1))));
+                }
+                case "--autotune" -> config.autotune = BufferTuner.Bounds.parse(option, value);
+                case "--root" -> config.roots.add(Paths.get(value));
+                case "--placement" -> config.placement = switch (value) {
+                    case "hash" -> StorageRoots.Placement.HASH;
+                    case "space" -> StorageRoots.Placement.SPACE;
+                    case "least-busy" -> StorageRoots.Placement.LEAST_BUSY;
+                    default -> throw new IllegalArgumentException("Unknown placement policy: " + value);
+                };
+                case "--root-writers" -> config.rootWriters = positive(option, value);
+                default -> throw new IllegalArgumentException("Unknown option: " + option);
+            }
+            i += 2;
+        }
+        if (args.length - i != 1) {
+            throw new IllegalArgumentException("Expected exactly one port argument");
+        }
+        config.port = Integer.parseInt(args[i]);
+        if (config.roots.isEmpty()) {
+            config.roots.add(Paths.get("uploads"));
+        }
+        return config;
+    }
+
+    private static long positiveLong(String option, String value) {
+        long n = Long.parseLong(value);
+        if (n <= 0) {
+            throw new IllegalArgumentException(option + " must be positive");
+        }
+        return n;
+    }
+
+    private static int positive(String option, String value) {
+        int n = Integer.parseInt(value);
+        if (n <= 0) {
+            throw new IllegalArgumentException(option + " must be positive");
+        }
+        return n;
+    }
+}
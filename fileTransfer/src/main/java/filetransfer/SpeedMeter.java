@@ -0,0 +1,57 @@
+package filetransfer;
+
+final class SpeedMeter {
+
+    private static final long REPORT_INTERVAL_MS = 3000;
+
+    private final String clientInfo;
+    private final long startTime;
+    private long lastReportTime;
+    private long lastReportedBytes;
+    private boolean reported;
+
+    SpeedMeter(String clientInfo) {
+        this.clientInfo = clientInfo;
+        this.startTime = System.nanoTime();
+        this.lastReportTime = startTime;
+    }
+
+    void onProgress(long totalBytes) {
+        long now = System.nanoTime();
+        if (now - lastReportTime >= REPORT_INTERVAL_MS * 1_000_000L) {
+            reportSpeed(clientInfo, startTime, now, lastReportTime, totalBytes, lastReportedBytes);
+            lastReportTime = now;
+            lastReportedBytes = totalBytes;
+            reported = true;
+        }
+    }
+
+    void finish(long totalBytes) {
+        if (!reported) {
+            reportSpeed(clientInfo, startTime, System.nanoTime(), lastReportTime, totalBytes, lastReportedBytes);
+        }
+    }
+
+    private static void reportSpeed(String clientInfo,
+                                    long startTimeNs,
+                                    long nowNs,
+                                    long lastReportTimeNs,
+                                    long totalBytes,
+                                    long lastReportedBytes) {
+
+        double totalSec = (nowNs - startTimeNs) / 1_000_000_000.0;
+        double intervalSec = (nowNs - lastReportTimeNs) / 1_000_000_000.0;
+        if (intervalSec <= 0) intervalSec = 1e-9;
+        if (totalSec <= 0) totalSec = 1e-9;
+
+        long intervalBytes = totalBytes - lastReportedBytes;
+
+        double inst = intervalBytes / intervalSec;
+        double avg = totalBytes / totalSec;
+
+        System.out.printf(
+                "%s speed: instant=%.2f B/s, avg=%.2f B/s%n",
+                clientInfo, inst, avg
+        );
+    }
+}
@@ -0,0 +1,305 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+final class StorageRoots {
+
+    enum Placement { HASH, SPACE, LEAST_BUSY }
+
+    private static final int VIRTUAL_NODES = 64;
+
+    private final List<Root> roots = new ArrayList<>();
+    private final TreeMap<Long, Root> ring = new TreeMap<>();
+    private final Placement placement;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+
+    private record Entry(Root root, long size) {}
+
+    StorageRoots(List<Path> dirs, Placement placement, int writersPerRoot, long partialTtlMs) throws IOException {
+        this.placement = placement;
+        for (Path dir : dirs) {
+            Files.createDirectories(dir);
+            Path real = dir.toRealPath();
+            for (Root other : roots) {
+                if (other.dir.equals(real)) {
+                    throw new IOException("Storage root listed twice: " + real);
+                }
+            }
+            Root root = new Root(roots.size(), real, writersPerRoot, new PartialStore(real, partialTtlMs));
+            roots.add(root);
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring.put(mix(hash(real + "#" + v)), root);
+            }
+        }
+        // the directories are read once here; after that only committed uploads change the index
+        for (Root root : roots) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(root.dir)) {
+                for (Path p : stream) {
+                    String name = p.getFileName().toString();
+                    if (name.startsWith(".")) {
+                        continue;
+                    }
+                    BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                    if (attrs.isRegularFile() && index.putIfAbsent(name, new Entry(root, attrs.size())) != null) {
+                        System.err.println("\"" + name + "\" exists in several storage roots, serving it from " +
+                                index.get(name).root.dir);
+                    }
+                }
+            }
+        }
+    }
+
+    List<Root> roots() {
+        return roots;
+    }
+
+    // chunks and packs are shared by all uploads and stay on the first root
+    Root primary() {
+        return roots.get(0);
+    }
+
+    // a stored name keeps its root, so replacements and same-name uploads meet in one directory;
+    // null when that root (or, for a new name, every root) lacks the space. nothing is pinned
+    // here: a failed or abandoned upload must not tie the name to a root, only stored() does
+    Root place(String safeName, long size) throws IOException {
+        Entry pinned = index.get(safeName);
+        if (pinned == null) {
+            return choose(safeName, size);
+        }
+        return pinned.root.hasSpaceFor(size) ? pinned.root : null;
+    }
+
+    // a resumed upload continues on the root that already holds its partial file
+    Root placeResumable(UUID transferId, String safeName, long size) throws IOException {
+        for (Root root : roots) {
+            if (root.partials.has(transferId)) {
+                return root;
+            }
+        }
+        return place(safeName, size);
+    }
+
+    Path locate(String safeName) {
+        Entry entry = index.get(safeName);
+        if (entry != null) {
+            Path path = entry.root.resolve(safeName);
+            if (path != null && Files.isRegularFile(path)) {
+                return path;
+            }
+        }
+        for (Root r : roots) {
+            Path path = r.resolve(safeName);
+            if (path != null && Files.isRegularFile(path)) {
+                try {
+                    index.put(safeName, new Entry(r, Files.size(path)));
+                } catch (IOException e) {
+                    // still servable; the index catches up on the next lookup
+                }
+                return path;
+            }
+        }
+        return null;
+    }
+
+    // bytes is the size of the committed file
+    void stored(Root root, Path file, long bytes) {
+        index.put(file.getFileName().toString(), new Entry(root, bytes));
+        root.bytesWritten.add(bytes);
+        root.filesWritten.increment();
+    }
+
+    // LIST is answered from the index, without walking the directories
+    void forEach(PackStore.EntryConsumer consumer) throws IOException {
+        for (Map.Entry<String, Entry> e : index.entrySet()) {
+            consumer.accept(e.getKey(), e.getValue().size);
+        }
+    }
+
+    void collectStale() {
+        for (Root root : roots) {
+            root.partials.collectStale();
+        }
+    }
+
+    String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (Root root : roots) {
+            sb.append(sb.length() == 0 ? "" : ", ").append(root.dir);
+        }
+        return sb + (roots.size() > 1 ? " (placement " + placement.name().toLowerCase().replace('_', '-') +
+                ", " + primary().writers.getMaximumPoolSize() + " writer(s) per root, " + index.size() +
+                " file(s) indexed)" : "");
+    }
+
+    private Root choose(String safeName, long size) throws IOException {
+        if (roots.size() == 1) {
+            return primary().hasSpaceFor(size) ? primary() : null;
+        }
+        return switch (placement) {
+            case HASH -> {
+                // walk the ring from the name's position, passing over roots that are full
+                long key = mix(hash(safeName));
+                List<Root> tried = new ArrayList<>();
+                for (Map<Long, Root> part : List.of(ring.tailMap(key), ring.headMap(key))) {
+                    for (Root root : part.values()) {
+                        if (!tried.contains(root)) {
+                            if (root.hasSpaceFor(size)) {
+                                yield root;
+                            }
+                            tried.add(root);
+                        }
+                    }
+                }
+                yield null;
+            }
+            case SPACE -> {
+                Root best = null;
+                long bestFree = size - 1;
+                for (Root root : roots) {
+                    long free = root.usableSpace();
+                    if (free > bestFree) {
+                        best = root;
+                        bestFree = free;
+                    }
+                }
+                yield best;
+            }
+            case LEAST_BUSY -> {
+                Root best = null;
+                long bestDepth = Long.MAX_VALUE;
+                long bestFree = 0;
+                for (Root root : roots) {
+                    long depth = root.pendingBytes();
+                    if (depth > bestDepth) {
+                        continue;
+                    }
+                    long free = root.usableSpace();
+                    if (free >= size && (depth < bestDepth || free > bestFree)) {
+                        best = root;
+                        bestDepth = depth;
+                        bestFree = free;
+                    }
+                }
+                yield best;
+            }
+        };
+    }
+
+    private static long hash(String s) {
+        long h = 1125899906842597L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h = 31 * h + b;
+        }
+        return h;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    static final class Root {
+
+        private final int id;
+        private final Path dir;
+        private final FileStore store;
+        // only buffered batch records are written here; other uploads write on their own
+        // connection threads, so load is measured by writes and pendingBytes, which every path updates
+        private final ThreadPoolExecutor writers;
+        private final PartialStore partials;
+        private final AtomicInteger writes = new AtomicInteger();
+        private final AtomicLong pendingBytes = new AtomicLong();
+        private final LongAdder bytesWritten = new LongAdder();
+        private final LongAdder filesWritten = new LongAdder();
+
+        private Root(int id, Path dir, int writerCount, PartialStore partials) throws IOException {
+            this.id = id;
+            this.dir = dir;
+            this.store = Files.getFileStore(dir);
+            this.partials = partials;
+            AtomicInteger counter = new AtomicInteger(1);
+            this.writers = new ThreadPoolExecutor(writerCount, writerCount, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "root" + id + "-writer-" + counter.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        Path dir() {
+            return dir;
+        }
+
+        PartialStore partials() {
+            return partials;
+        }
+
+        ThreadPoolExecutor writers() {
+            return writers;
+        }
+
+        Path resolve(String safeName) {
+            Path path = dir.resolve(safeName).normalize();
+            return path.startsWith(dir) ? path : null;
+        }
+
+        boolean hasSpaceFor(long bytes) throws IOException {
+            return usableSpace() >= bytes;
+        }
+
+        long usableSpace() throws IOException {
+            return store.getUsableSpace();
+        }
+
+        int writes() {
+            return writes.get();
+        }
+
+        // announced size of the uploads being written here, queued batch records included
+        long pendingBytes() {
+            return pendingBytes.get();
+        }
+
+        long bytesWritten() {
+            return bytesWritten.sum();
+        }
+
+        long filesWritten() {
+            return filesWritten.sum();
+        }
+
+        void writeStarted(long bytes) {
+            writes.incrementAndGet();
+            pendingBytes.addAndGet(bytes);
+        }
+
+        void writeFinished(long bytes) {
+            writes.decrementAndGet();
+            pendingBytes.addAndGet(-bytes);
+        }
+
+        @Override
+        public String toString() {
+            return "root" + id + " " + dir;
+        }
+    }
+}
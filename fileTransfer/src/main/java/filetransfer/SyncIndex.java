@@ -0,0 +1,233 @@
+package filetransfer;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class SyncIndex {
+
+    private static final byte[] MAGIC = new byte[]{'F', 'T', 'S', 'I'};
+    private static final int DIGEST_BYTES = 32;
+    private static final int HASH_BUFFER = 64 * 1024;
+
+    record Entry(long size, long modified, byte[] digest) {}
+
+    record ScanResult(long files, List<Path> changed) {}
+
+    interface DirectoryVisitor {
+        void visit(Path dir) throws IOException;
+    }
+
+    private final Path root;
+    private final Path file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty;
+
+    SyncIndex(Path root, Path file) {
+        this.root = root;
+        this.file = file;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    void load() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Protocol.matchesMagic(magic, MAGIC)) {
+                throw new IOException("Not a sync index: " + file);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = Protocol.readName(in);
+                if (name == null) {
+                    throw new IOException("Corrupt sync index: " + file);
+                }
+                long size = in.readLong();
+                long modified = in.readLong();
+                byte[] digest = new byte[DIGEST_BYTES];
+                in.readFully(digest);
+                entries.put(name, new Entry(size, modified, digest));
+            }
+        }
+    }
+
+    synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)))) {
+            out.write(MAGIC);
+            // entries may change while saving, so the count is written from what was actually copied
+            List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(entries.entrySet());
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> e : snapshot) {
+                Protocol.writeName(out, Protocol.encodeName(e.getKey()));
+                out.writeLong(e.getValue().size());
+                out.writeLong(e.getValue().modified());
+                out.write(e.getValue().digest());
+            }
+            out.flush();
+            ch.force(false);
+        } catch (IOException e) {
+            dirty = true;
+            throw e;
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    void put(String name, Entry entry) {
+        entries.put(name, entry);
+        dirty = true;
+    }
+
+    void remove(String name) {
+        if (entries.remove(name) != null) {
+            dirty = true;
+        }
+    }
+
+    void removeTree(String name) {
+        String prefix = name + "/";
+        for (String key : entries.keySet()) {
+            if (key.equals(name) || key.startsWith(prefix)) {
+                remove(key);
+            }
+        }
+    }
+
+    String nameOf(Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    boolean ignored(Path path) {
+        Path name = path.getFileName();
+        return path.equals(file) || name != null && name.toString().equals(file.getFileName() + ".tmp");
+    }
+
+    // true when the file differs from what was last uploaded; a touched file with the same
+    // content only gets its timestamp refreshed
+    boolean changed(Path path, BasicFileAttributes attrs) throws IOException {
+        String name = nameOf(path);
+        Entry known = entries.get(name);
+        long modified = attrs.lastModifiedTime().toMillis();
+        if (known == null || known.size() != attrs.size()) {
+            return true;
+        }
+        if (known.modified() == modified) {
+            return false;
+        }
+        byte[] digest = digest(path);
+        if (!Arrays.equals(digest, known.digest())) {
+            return true;
+        }
+        put(name, new Entry(attrs.size(), modified, digest));
+        return false;
+    }
+
+    // walks the tree with one task per directory; only files whose size or timestamp moved since
+    // the saved index are read, so a restart over an unchanged tree costs one stat per file
+    ScanResult scan(Path dir, DirectoryVisitor onDirectory) {
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        List<Path> changed = new ArrayList<>();
+        AtomicLong files = new AtomicLong();
+        ForkJoinPool.commonPool().invoke(new ScanTask(dir, onDirectory, seen, changed, files));
+        String prefix = dir.equals(root) ? "" : nameOf(dir) + "/";
+        for (String name : entries.keySet()) {
+            if (name.startsWith(prefix) && !seen.contains(name)) {
+                remove(name);
+            }
+        }
+        return new ScanResult(files.get(), changed);
+    }
+
+    static byte[] digest(Path path) throws IOException {
+        MessageDigest sha = ContentChunker.sha256();
+        byte[] buffer = new byte[HASH_BUFFER];
+        try (InputStream in = Files.newInputStream(path)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                sha.update(buffer, 0, n);
+            }
+        }
+        return sha.digest();
+    }
+
+    private final class ScanTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final DirectoryVisitor onDirectory;
+        private final Set<String> seen;
+        private final List<Path> changed;
+        private final AtomicLong files;
+
+        ScanTask(Path dir, DirectoryVisitor onDirectory, Set<String> seen, List<Path> changed, AtomicLong files) {
+            this.dir = dir;
+            this.onDirectory = onDirectory;
+            this.seen = seen;
+            this.changed = changed;
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+            List<ScanTask> children = new ArrayList<>();
+            List<Path> found = new ArrayList<>();
+            try {
+                // watch first, list second: a file created in between is reported by both, never by neither
+                onDirectory.visit(dir);
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path p : stream) {
+                        try {
+                            visitEntry(p, children, found);
+                        } catch (NoSuchFileException e) {
+                            // removed while scanning, the watcher reports it separately
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Skipping " + dir + ": " + e.getMessage());
+            }
+            synchronized (changed) {
+                changed.addAll(found);
+            }
+            invokeAll(children);
+        }
+
+        private void visitEntry(Path p, List<ScanTask> children, List<Path> found) throws IOException {
+            BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attrs.isDirectory()) {
+                children.add(new ScanTask(p, onDirectory, seen, changed, files));
+            } else if (attrs.isRegularFile() && !ignored(p)) {
+                files.incrementAndGet();
+                seen.add(nameOf(p));
+                if (changed(p, attrs)) {
+                    found.add(p);
+                }
+            }
+        }
+    }
+}
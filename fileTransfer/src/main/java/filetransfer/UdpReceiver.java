@@ -0,0 +1,168 @@
+package filetransfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+final class UdpReceiver implements Closeable {
+
+    private static final int FEEDBACK_INTERVAL_MS = 10;
+    private static final int FINAL_FEEDBACKS = 3;
+    private static final int SOCKET_BUFFER_BYTES = 8 * 1024 * 1024;
+    static final int FEEDBACK_HEADER_BYTES = 8 + 1 + 4 + 4 + 8 + 8 + 8 + 8 + 8 + 2;
+
+    private final InetAddress client;
+    private final long session = new SecureRandom().nextLong();
+    private final DatagramSocket socket;
+    private final long size;
+    private final int blocks;
+    private final BitSet received;
+
+    private SocketAddress peer;
+    private int receivedCount;
+    private int cumAck;
+    private int highest = -1;
+    private long echoSendNanos;
+    private long echoSentBytes;
+    private long echoArrivalNanos;
+    private long receivedBytes;
+    private long duplicates;
+    private int nackCursor;
+
+    UdpReceiver(InetAddress local, InetAddress client, long size) throws IOException {
+        this.client = client;
+        this.size = size;
+        this.blocks = (int) ((size + Protocol.UDP_BLOCK_BYTES - 1) / Protocol.UDP_BLOCK_BYTES);
+        this.received = new BitSet(blocks);
+        this.socket = new DatagramSocket(new InetSocketAddress(local, 0));
+        socket.setReceiveBufferSize(SOCKET_BUFFER_BYTES);
+        socket.setSoTimeout(FEEDBACK_INTERVAL_MS);
+    }
+
+    int port() {
+        return socket.getLocalPort();
+    }
+
+    long session() {
+        return session;
+    }
+
+    long duplicates() {
+        return duplicates;
+    }
+
+    boolean receive(FileChannel file, long idleTimeoutMs, IntConsumer onPayload) throws IOException {
+        byte[] buf = new byte[Protocol.UDP_DATA_HEADER_BYTES + Protocol.UDP_BLOCK_BYTES];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        ByteBuffer view = ByteBuffer.wrap(buf);
+        long lastPacket = System.nanoTime();
+        long nextFeedback = lastPacket + FEEDBACK_INTERVAL_MS * 1_000_000L;
+
+        while (receivedCount < blocks) {
+            long now;
+            try {
+                packet.setLength(buf.length);
+                socket.receive(packet);
+                now = System.nanoTime();
+                if (accept(packet, view, file, now, onPayload)) {
+                    lastPacket = now;
+                }
+            } catch (SocketTimeoutException e) {
+                now = System.nanoTime();
+            }
+            if (now - lastPacket > idleTimeoutMs * 1_000_000L) {
+                return false;
+            }
+            if (now >= nextFeedback && peer != null) {
+                sendFeedback(now);
+                nextFeedback = now + FEEDBACK_INTERVAL_MS * 1_000_000L;
+            }
+        }
+        // the sender stops once it sees the full cumulative ack; the TCP status is the fallback if these are lost
+        for (int i = 0; i < FINAL_FEEDBACKS && peer != null; i++) {
+            sendFeedback(System.nanoTime());
+        }
+        return true;
+    }
+
+    private boolean accept(DatagramPacket packet, ByteBuffer view, FileChannel file, long now,
+                           IntConsumer onPayload) throws IOException {
+        int length = packet.getLength();
+        if (length < Protocol.UDP_DATA_HEADER_BYTES || !client.equals(packet.getAddress())) {
+            return false;
+        }
+        view.clear();
+        if (view.getLong() != session || view.get() != Protocol.UDP_DATA) {
+            return false;
+        }
+        int seq = view.getInt();
+        long sendNanos = view.getLong();
+        long sentBytes = view.getLong();
+        int payload = length - Protocol.UDP_DATA_HEADER_BYTES;
+        long offset = (long) seq * Protocol.UDP_BLOCK_BYTES;
+        if (seq < 0 || seq >= blocks || payload != Math.min(Protocol.UDP_BLOCK_BYTES, size - offset)) {
+            return false;
+        }
+
+        peer = packet.getSocketAddress();
+        echoSendNanos = sendNanos;
+        echoSentBytes = sentBytes;
+        echoArrivalNanos = now;
+        receivedBytes += length;
+        onPayload.accept(payload);
+        if (received.get(seq)) {
+            duplicates++;
+            return true;
+        }
+
+        view.limit(length).position(Protocol.UDP_DATA_HEADER_BYTES);
+        while (view.hasRemaining()) {
+            file.write(view, offset + view.position() - Protocol.UDP_DATA_HEADER_BYTES);
+        }
+        received.set(seq);
+        receivedCount++;
+        highest = Math.max(highest, seq);
+        cumAck = received.nextClearBit(cumAck);
+        return true;
+    }
+
+    private void sendFeedback(long now) throws IOException {
+        // the sender derives delivery rate from the echoed byte counters on both ends
+        ByteBuffer fb = ByteBuffer.allocate(FEEDBACK_HEADER_BYTES + 4 * Protocol.UDP_MAX_NACKS);
+        fb.putLong(session).put(Protocol.UDP_FEEDBACK)
+                .putInt(Math.min(cumAck, blocks)).putInt(highest)
+                .putLong(echoSendNanos).putLong(echoSentBytes).putLong(now - echoArrivalNanos)
+                .putLong(echoArrivalNanos).putLong(receivedBytes);
+        int countPos = fb.position();
+        fb.putShort((short) 0);
+        // each report continues where the previous one stopped, so a long list of holes
+        // is covered within a round trip instead of repeating its first entries
+        short nacks = 0;
+        int seq = received.nextClearBit(Math.max(cumAck, nackCursor));
+        if (seq >= highest) {
+            seq = received.nextClearBit(cumAck);
+        }
+        for (; seq < highest && nacks < Protocol.UDP_MAX_NACKS; seq = received.nextClearBit(seq + 1)) {
+            fb.putInt(seq);
+            nacks++;
+        }
+        nackCursor = seq;
+        fb.putShort(countPos, nacks);
+        socket.send(new DatagramPacket(fb.array(), fb.position(), peer));
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
@@ -0,0 +1,322 @@
+package filetransfer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.concurrent.locks.LockSupport;
+
+final class UdpSender {
+
+    private static final double INITIAL_RATE = 1_000_000;
+    private static final double MIN_RATE = 64 * 1024;
+    private static final long MAX_BURST_NANOS = 1_000_000;
+    private static final long MIN_PARK_NANOS = 100_000;
+    private static final long FEEDBACK_INTERVAL_NANOS = 10_000_000;
+    private static final long STALL_NANOS = 1_000_000_000L;
+    private static final long GIVE_UP_NANOS = 30_000_000_000L;
+    private static final int SOCKET_BUFFER_BYTES = 8 * 1024 * 1024;
+    private static final int TAIL_SCAN_BLOCKS = 65536;
+    private static final long QUEUE_DELAY_NANOS = 5_000_000;
+    private static final long MIN_SAMPLE_NANOS = 40_000_000;
+    private static final double SLOW_START_EXIT = 0.7;
+    private static final double PROBE_GAIN = 1.25;
+    private static final double DRAIN_GAIN = 0.9;
+    private static final double APP_LIMITED = 0.5;
+
+    private final InetSocketAddress server;
+    private final long session;
+    private final FileChannel file;
+    private final long size;
+    private final int blocks;
+    private final double maxRate;
+    private final LinkEmulator emulator;
+    private final DatagramSocket socket;
+
+    private final ArrayDeque<Integer> retransmits = new ArrayDeque<>();
+    private final BitSet queued = new BitSet();
+    // last send time of each block in ms since start, to avoid resending blocks still in flight
+    private final int[] lastSentMs;
+    private final long startNanos = System.nanoTime();
+
+    private int nextNew;
+    private int cumAck;
+    private int highest = -1;
+    private double rate = INITIAL_RATE;
+    private double deliveryRate;
+    private boolean slowStart = true;
+    private long rateChangedAt = startNanos;
+    private long srtt;
+    private long minRtt = Long.MAX_VALUE;
+    private long windowMinRtt = Long.MAX_VALUE;
+    private long anchorSendNanos;
+    private long anchorSentBytes;
+    private long anchorArrivalNanos;
+    private long anchorReceivedBytes;
+    private long sentBytes;
+    private long lastFeedback = startNanos;
+    private long sentPackets;
+    private long retransmitted;
+    private IOException failure;
+    private volatile boolean finished;
+
+    UdpSender(InetSocketAddress server, long session, FileChannel file, long size,
+              double maxRate, LinkEmulator.Settings emulation) throws IOException {
+        this.server = server;
+        this.session = session;
+        this.file = file;
+        this.size = size;
+        this.blocks = (int) ((size + Protocol.UDP_BLOCK_BYTES - 1) / Protocol.UDP_BLOCK_BYTES);
+        this.lastSentMs = new int[blocks];
+        this.maxRate = maxRate;
+        this.socket = new DatagramSocket();
+        socket.setReceiveBufferSize(SOCKET_BUFFER_BYTES);
+        socket.setSendBufferSize(SOCKET_BUFFER_BYTES);
+        socket.setSoTimeout(100);
+        this.emulator = emulation != null ? new LinkEmulator(socket, emulation) : null;
+    }
+
+    void send() throws IOException {
+        Thread feedback = new Thread(this::runFeedback, "udp-feedback");
+        feedback.setDaemon(true);
+        feedback.start();
+
+        byte[] buf = new byte[Protocol.UDP_DATA_HEADER_BYTES + Protocol.UDP_BLOCK_BYTES];
+        ByteBuffer view = ByteBuffer.wrap(buf);
+        DatagramPacket packet = new DatagramPacket(buf, buf.length, server);
+        SpeedMeter meter = new SpeedMeter("UDP upload");
+        long next = System.nanoTime();
+        try {
+            while (true) {
+                int seq;
+                double currentRate;
+                long now = System.nanoTime();
+                synchronized (this) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    if (cumAck >= blocks) {
+                        break;
+                    }
+                    checkStall(now);
+                    seq = nextBlock(now);
+                    if (seq < 0) {
+                        waitForFeedback();
+                        continue;
+                    }
+                    currentRate = rate;
+                }
+
+                long offset = (long) seq * Protocol.UDP_BLOCK_BYTES;
+                int length = (int) Math.min(Protocol.UDP_BLOCK_BYTES, size - offset);
+                if (next - now > MIN_PARK_NANOS) {
+                    LockSupport.parkNanos(next - now);
+                } else if (now - next > MAX_BURST_NANOS) {
+                    next = now - MAX_BURST_NANOS;
+                }
+                next += (long) ((Protocol.UDP_DATA_HEADER_BYTES + length) * 1_000_000_000.0 / currentRate);
+
+                view.clear();
+                sentBytes += Protocol.UDP_DATA_HEADER_BYTES + length;
+                view.putLong(session).put(Protocol.UDP_DATA).putInt(seq).putLong(System.nanoTime()).putLong(sentBytes);
+                view.limit(Protocol.UDP_DATA_HEADER_BYTES + length);
+                while (view.hasRemaining()) {
+                    if (file.read(view, offset + view.position() - Protocol.UDP_DATA_HEADER_BYTES) == -1) {
+                        throw new EOFException("Unexpected EOF while reading file");
+                    }
+                }
+                packet.setLength(view.limit());
+                if (emulator != null) {
+                    emulator.send(packet);
+                } else {
+                    socket.send(packet);
+                }
+                sentPackets++;
+                meter.onProgress(Math.min((long) cumAck * Protocol.UDP_BLOCK_BYTES, size));
+            }
+            meter.finish(size);
+        } finally {
+            finished = true;
+            socket.close();
+        }
+    }
+
+    synchronized String summary() {
+        double sec = Math.max((System.nanoTime() - startNanos) / 1_000_000_000.0, 1e-9);
+        String text = String.format("UDP: %d blocks, %d packets sent (%d retransmitted), goodput %.2f MB/s, " +
+                        "final rate %.2f MB/s, delivery %.2f MB/s, rtt %.1f ms (min %.1f ms)",
+                blocks, sentPackets, retransmitted, size / sec / 1e6, rate / 1e6, deliveryRate / 1e6,
+                srtt / 1e6, minRtt == Long.MAX_VALUE ? 0 : minRtt / 1e6);
+        return emulator != null ? text + System.lineSeparator() + emulator.summary() : text;
+    }
+
+    private int nextBlock(long now) {
+        int nowMs = (int) ((now - startNanos) / 1_000_000);
+        for (int pass = 0; pass < 2; pass++) {
+            Integer seq;
+            while ((seq = retransmits.poll()) != null) {
+                queued.clear(seq);
+                if (seq >= cumAck) {
+                    lastSentMs[seq] = nowMs;
+                    retransmitted++;
+                    return seq;
+                }
+            }
+            if (pass > 0) {
+                break;
+            }
+            if (nextNew < blocks) {
+                lastSentMs[nextNew] = nowMs;
+                return nextNew++;
+            }
+            // tail loss: nothing newer exists to expose a gap, so resend what the receiver has not reported
+            int from = Math.max(cumAck, highest + 1);
+            int to = (int) Math.min(blocks, from + (long) TAIL_SCAN_BLOCKS);
+            for (int s = from; s < to && retransmits.size() < Protocol.UDP_MAX_NACKS; s++) {
+                scheduleRetransmit(s, nowMs);
+            }
+            if (retransmits.isEmpty()) {
+                scheduleRetransmit(cumAck, nowMs);
+            }
+        }
+        return -1;
+    }
+
+    private void scheduleRetransmit(int seq, int nowMs) {
+        long waitMs = (srtt + 2 * FEEDBACK_INTERVAL_NANOS) / 1_000_000;
+        if (!queued.get(seq) && nowMs - lastSentMs[seq] > waitMs) {
+            queued.set(seq);
+            retransmits.add(seq);
+        }
+    }
+
+    private void waitForFeedback() throws InterruptedIOException {
+        try {
+            wait(5);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during UDP upload");
+        }
+    }
+
+    private void checkStall(long now) throws IOException {
+        long silent = now - lastFeedback;
+        if (silent > GIVE_UP_NANOS) {
+            throw new IOException("No feedback from server for " + silent / 1_000_000_000L + " s");
+        }
+        if (silent > Math.max(STALL_NANOS, 4 * srtt) && now - rateChangedAt > STALL_NANOS) {
+            rate = Math.max(MIN_RATE, rate / 2);
+            rateChangedAt = now;
+        }
+    }
+
+    private void runFeedback() {
+        byte[] buf = new byte[2048];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        while (!finished) {
+            try {
+                packet.setLength(buf.length);
+                socket.receive(packet);
+                if (emulator != null && emulator.dropIncoming()) {
+                    continue;
+                }
+                onFeedback(ByteBuffer.wrap(buf, 0, packet.getLength()), System.nanoTime());
+            } catch (SocketTimeoutException ignored) {
+                // re-check whether the upload has finished
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (!finished) {
+                        failure = e;
+                    }
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    private synchronized void onFeedback(ByteBuffer fb, long now) {
+        if (fb.remaining() < UdpReceiver.FEEDBACK_HEADER_BYTES || fb.getLong() != session
+                || fb.get() != Protocol.UDP_FEEDBACK) {
+            return;
+        }
+        int ack = fb.getInt();
+        int high = fb.getInt();
+        long echoSend = fb.getLong();
+        long echoSent = fb.getLong();
+        long hold = fb.getLong();
+        long arrival = fb.getLong();
+        long received = fb.getLong();
+        int nacks = fb.getShort();
+        lastFeedback = now;
+        cumAck = Math.max(cumAck, ack);
+        highest = Math.max(highest, high);
+
+        long rtt = now - echoSend - hold;
+        if (echoSend > 0 && rtt > 0) {
+            srtt = srtt == 0 ? rtt : (7 * srtt + rtt) / 8;
+            minRtt = Math.min(minRtt, rtt);
+            windowMinRtt = Math.min(windowMinRtt, rtt);
+        }
+
+        int nowMs = (int) ((now - startNanos) / 1_000_000);
+        for (int i = 0; i < nacks && fb.remaining() >= 4; i++) {
+            int seq = fb.getInt();
+            if (seq >= cumAck && seq < blocks) {
+                scheduleRetransmit(seq, nowMs);
+            }
+        }
+
+        if (echoSend > 0) {
+            sampleRate(echoSend, echoSent, arrival, received, now);
+        }
+        notifyAll();
+    }
+
+    private void sampleRate(long echoSend, long echoSent, long arrival, long received, long now) {
+        if (anchorSendNanos == 0) {
+            anchor(echoSend, echoSent, arrival, received);
+            return;
+        }
+        // one sample per round trip: the rate packets left at against the rate they arrived at
+        long sendSpan = echoSend - anchorSendNanos;
+        long arrivalSpan = arrival - anchorArrivalNanos;
+        if (sendSpan < Math.max(srtt, MIN_SAMPLE_NANOS) || arrivalSpan <= 0) {
+            return;
+        }
+        double sendRate = (echoSent - anchorSentBytes) * 1e9 / sendSpan;
+        double delivered = (received - anchorReceivedBytes) * 1e9 / arrivalSpan;
+        // loss alone never lowers the rate; a standing queue (even the lowest rtt is inflated) does
+        boolean queueing = windowMinRtt != Long.MAX_VALUE
+                && windowMinRtt > minRtt + QUEUE_DELAY_NANOS;
+        anchor(echoSend, echoSent, arrival, received);
+        if (sendRate < rate * APP_LIMITED && !queueing) {
+            // the sender had little to send (the tail or retransmits only), so the sample says nothing about the path
+            return;
+        }
+
+        deliveryRate = delivered;
+        if (slowStart && !queueing && delivered >= sendRate * SLOW_START_EXIT) {
+            rate = Math.min(maxRate, Math.max(rate, delivered * 2));
+        } else {
+            slowStart = false;
+            rate = Math.min(maxRate, Math.max(MIN_RATE, delivered * (queueing ? DRAIN_GAIN : PROBE_GAIN)));
+        }
+        rateChangedAt = now;
+    }
+
+    private void anchor(long echoSend, long echoSent, long arrival, long received) {
+        anchorSendNanos = echoSend;
+        anchorSentBytes = echoSent;
+        anchorArrivalNanos = arrival;
+        anchorReceivedBytes = received;
+        windowMinRtt = Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,294 @@
+package filetransfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.zip.CRC32C;
+
+final class UploadReceiver implements AutoCloseable {
+
+    private static final long CHECKPOINT_BYTES = 64L * 1024 * 1024;
+    private static final int MAX_REPAIR_ROUNDS = 3;
+    private static final int DEFAULT_BUFFER = 64 * 1024;
+
+    private final String clientInfo;
+    private final DataInputStream in;
+    private final PartialStore.Partial partial;
+    private final FileChannel channel;
+    private final long offset;
+    private final long fileSize;
+    private final ChunkLedger ledger;
+    private final SpeedMeter meter;
+    private final CRC32C crc = new CRC32C();
+    private final CRC32C streamCrc = new CRC32C();
+    private final BufferTuner tuner;
+    private byte[] buffer = new byte[DEFAULT_BUFFER];
+    private ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+    private final boolean verify;
+    private final boolean compressed;
+    private final ChunkCodec[] codecs = new ChunkCodec[256];
+    private byte[] wire;
+
+    private long received;
+    private long sinceCheckpoint;
+    private long streamStart;
+    private int streamLength;
+
+    UploadReceiver(String clientInfo, DataInputStream in, PartialStore.Partial partial, long fileSize,
+                   boolean verify, boolean compressed, BufferTuner tuner) {
+        this.clientInfo = clientInfo;
+        this.in = in;
+        this.partial = partial;
+        this.channel = partial.channel();
+        this.offset = partial.committedOffset();
+        this.fileSize = fileSize;
+        this.ledger = new ChunkLedger(offset, partial.committedCrc());
+        this.meter = new SpeedMeter(clientInfo);
+        this.verify = verify;
+        this.compressed = compressed;
+        this.tuner = tuner;
+    }
+
+    long receiveRaw() throws IOException {
+        long position = offset;
+        streamStart = offset;
+        try {
+            while (position < fileSize) {
+                int toRead = (int) Math.min(buffer.length, fileSize - position);
+                int n = in.read(buffer, 0, toRead);
+                if (n == -1) {
+                    break;
+                }
+                streamCrc.update(buffer, 0, n);
+                write(n, position);
+                streamLength += n;
+                position += n;
+                onReceived(n);
+            }
+        } catch (IOException e) {
+            saveProgress();
+            throw e;
+        }
+        return finishBody(position);
+    }
+
+    long receiveChunked() throws IOException {
+        long position = offset;
+        try {
+            while (position < fileSize) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > Protocol.MAX_CHUNK_SIZE || length > fileSize - position) {
+                    throw new IOException("Invalid chunk length " + length + " at offset " + position);
+                }
+                receiveChunk(position, length);
+                position += length;
+            }
+        } catch (EOFException e) {
+            // connection dropped mid-chunk, the verified prefix is kept below
+        } catch (IOException e) {
+            saveProgress();
+            throw e;
+        }
+        return finishBody(position);
+    }
+
+    boolean repairBadChunks(DataOutputStream out) throws IOException {
+        int rounds = 0;
+        while (true) {
+            NavigableMap<Long, Integer> bad = ledger.badChunks();
+            if (bad.isEmpty()) {
+                out.writeInt(0);
+                out.flush();
+                return true;
+            }
+            if (rounds++ >= MAX_REPAIR_ROUNDS) {
+                out.writeInt(-1);
+                out.flush();
+                return false;
+            }
+
+            System.err.println(clientInfo + " requesting " + bad.size() + " corrupted chunk(s) again");
+            out.writeInt(bad.size());
+            for (Map.Entry<Long, Integer> e : bad.entrySet()) {
+                out.writeLong(e.getKey());
+                out.writeInt(e.getValue());
+            }
+            out.flush();
+
+            try {
+                for (int i = 0; i < bad.size(); i++) {
+                    long position = in.readLong();
+                    int length = in.readInt();
+                    if (!ledger.isBad(position, length)) {
+                        throw new IOException("Unexpected repair chunk at offset " + position);
+                    }
+                    receiveChunk(position, length);
+                }
+            } catch (IOException e) {
+                saveProgress();
+                throw e;
+            }
+        }
+    }
+
+    boolean isComplete() {
+        return ledger.isComplete(fileSize);
+    }
+
+    int fileCrc() {
+        return ledger.prefixCrc();
+    }
+
+    private void receiveChunk(long position, int length) throws IOException {
+        crc.reset();
+        byte codecId = compressed ? in.readByte() : ChunkCodec.CODEC_RAW;
+        if (codecId == ChunkCodec.CODEC_RAW) {
+            if (compressed && in.readInt() != length) {
+                throw new IOException("Raw chunk length mismatch at offset " + position);
+            }
+            receivePlain(position, length);
+        } else {
+            receiveCompressed(position, length, codecId);
+        }
+
+        if (!verify) {
+            ledger.accept(position, length, (int) crc.getValue());
+            return;
+        }
+        int expected = in.readInt();
+        if ((int) crc.getValue() == expected) {
+            ledger.accept(position, length, expected);
+        } else {
+            ledger.reject(position, length);
+        }
+    }
+
+    private void receivePlain(long position, int length) throws IOException {
+        long pos = position;
+        int remaining = length;
+        while (remaining > 0) {
+            int n = in.read(buffer, 0, Math.min(buffer.length, remaining));
+            if (n == -1) {
+                throw new EOFException("Connection closed inside chunk at offset " + position);
+            }
+            crc.update(buffer, 0, n);
+            write(n, pos);
+            pos += n;
+            remaining -= n;
+            onReceived(n);
+        }
+    }
+
+    private void receiveCompressed(long position, int length, byte codecId) throws IOException {
+        ChunkCodec codec = codec(codecId);
+        int wireLength = in.readInt();
+        if (wireLength <= 0 || wireLength > length) {
+            throw new IOException("Invalid compressed length " + wireLength + " at offset " + position);
+        }
+        if (wire == null || wire.length < wireLength) {
+            wire = new byte[Math.max(wireLength, Protocol.CHUNK_SIZE)];
+        }
+        in.readFully(wire, 0, wireLength);
+
+        codec.beginDecompress(wire, wireLength);
+        long pos = position;
+        int remaining = length;
+        while (remaining > 0) {
+            int n = codec.decompress(buffer, 0, Math.min(buffer.length, remaining));
+            if (n == 0) {
+                throw new IOException("Compressed chunk at offset " + position + " is shorter than " + length);
+            }
+            crc.update(buffer, 0, n);
+            write(n, pos);
+            pos += n;
+            remaining -= n;
+            onReceived(n);
+        }
+        if (codec.decompress(buffer, 0, 1) != 0) {
+            throw new IOException("Compressed chunk at offset " + position + " is longer than " + length);
+        }
+    }
+
+    private ChunkCodec codec(byte id) throws IOException {
+        ChunkCodec codec = codecs[id & 0xFF];
+        if (codec == null) {
+            codec = ChunkCodec.forId(id);
+            if (codec == null) {
+                throw new IOException("Unknown chunk codec " + id);
+            }
+            codecs[id & 0xFF] = codec;
+        }
+        return codec;
+    }
+
+    @Override
+    public void close() {
+        for (ChunkCodec codec : codecs) {
+            if (codec != null) {
+                codec.close();
+            }
+        }
+    }
+
+    private void write(int n, long position) throws IOException {
+        wrapped.clear().limit(n);
+        while (wrapped.hasRemaining()) {
+            position += channel.write(wrapped, position);
+        }
+    }
+
+    private void onReceived(int n) throws IOException {
+        received += n;
+        sinceCheckpoint += n;
+        meter.onProgress(received);
+        if (tuner != null && !tuner.tuned()) {
+            tuner.onBytes(n);
+            if (tuner.tuned()) {
+                buffer = new byte[Math.min(tuner.chunkSize(), Protocol.CHUNK_SIZE)];
+                wrapped = ByteBuffer.wrap(buffer);
+            }
+        }
+        if (sinceCheckpoint >= CHECKPOINT_BYTES) {
+            foldStream();
+            partial.checkpoint(ledger.verifiedPrefix(), ledger.prefixCrc());
+            sinceCheckpoint = 0;
+        }
+    }
+
+    private void foldStream() {
+        if (streamLength > 0) {
+            ledger.accept(streamStart, streamLength, (int) streamCrc.getValue());
+            streamStart += streamLength;
+            streamLength = 0;
+            streamCrc.reset();
+        }
+    }
+
+    private long finishBody(long position) {
+        foldStream();
+        meter.finish(received);
+        if (position < fileSize) {
+            saveProgress();
+        }
+        return position;
+    }
+
+    private void saveProgress() {
+        foldStream();
+        try {
+            partial.checkpoint(ledger.verifiedPrefix(), ledger.prefixCrc());
+        } catch (IOException e) {
+            System.err.println(clientInfo + " failed to save progress: " + e.getMessage());
+        }
+    }
+}
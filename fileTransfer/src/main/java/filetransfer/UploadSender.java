@@ -0,0 +1,189 @@
+package filetransfer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32C;
+
+final class UploadSender {
+
+    private static final int SAMPLE_BYTES = 64 * 1024;
+    private static final double SAMPLE_RATIO = 0.9;
+    private static final double MIN_SAVING = 0.97;
+    static final int RAW_SEGMENT_BYTES = 256 * 1024;
+    static final int RING_DEPTH = 4;
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final FileChannel file;
+    private final long size;
+    private final boolean verify;
+    private final ChunkCodec codec;
+    private final BufferTuner tuner;
+    private final int rawSegment;
+    private final byte[] chunk;
+    private final byte[] packed;
+    private final CRC32C crc = new CRC32C();
+
+    private long rawBytes;
+    private long wireBytes;
+    private int compressedChunks;
+    private int plainChunks;
+    private String pipeline = "Pipeline: not used";
+
+    UploadSender(DataInputStream in, DataOutputStream out, FileChannel file, long size,
+                 boolean verify, ChunkCodec codec, BufferTuner tuner, int rawSegment) {
+        this.in = in;
+        this.out = out;
+        this.file = file;
+        this.size = size;
+        this.verify = verify;
+        this.codec = codec;
+        this.tuner = tuner;
+        this.rawSegment = rawSegment;
+        this.chunk = new byte[capacity(Protocol.CHUNK_SIZE)];
+        this.packed = codec != null ? new byte[chunk.length] : null;
+    }
+
+    void sendRaw(long offset, WritableByteChannel socket) throws IOException {
+        out.flush();
+        try (ReadAhead ring = new ReadAhead(file, offset, size, rawSegment, capacity(rawSegment),
+                RING_DEPTH)) {
+            ByteBuffer buf;
+            while ((buf = ring.next()) != null) {
+                int length = buf.remaining();
+                while (buf.hasRemaining()) {
+                    socket.write(buf);
+                }
+                ring.release(buf);
+                retune(ring, length);
+            }
+            pipeline = ring.summary();
+        }
+    }
+
+    int sendChunks(long offset, int prefixCrc) throws IOException {
+        int fileCrc = prefixCrc;
+        try (ReadAhead ring = new ReadAhead(file, offset, size, Protocol.CHUNK_SIZE, chunk.length, RING_DEPTH)) {
+            ByteBuffer buf;
+            while ((buf = ring.next()) != null) {
+                int length = buf.remaining();
+                buf.get(chunk, 0, length);
+                ring.release(buf);
+                out.writeInt(length);
+                int c = writePayload(length);
+                fileCrc = Crc32c.combine(fileCrc, c, length);
+                retune(ring, length);
+            }
+            pipeline = ring.summary();
+        }
+        out.flush();
+        return fileCrc;
+    }
+
+    boolean repairChunks() throws IOException {
+        while (true) {
+            int count = in.readInt();
+            if (count == 0) {
+                return true;
+            }
+            if (count < 0) {
+                return false;
+            }
+
+            long[] offsets = new long[count];
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = in.readLong();
+                lengths[i] = in.readInt();
+            }
+            System.out.println("Server requested " + count + " chunk(s) again");
+
+            for (int i = 0; i < count; i++) {
+                if (lengths[i] <= 0 || lengths[i] > chunk.length
+                        || offsets[i] < 0 || offsets[i] + lengths[i] > size) {
+                    throw new IOException("Server requested invalid chunk at offset " + offsets[i]);
+                }
+                readChunk(offsets[i], lengths[i]);
+                out.writeLong(offsets[i]);
+                out.writeInt(lengths[i]);
+                writePayload(lengths[i]);
+            }
+            out.flush();
+        }
+    }
+
+    String pipelineSummary() {
+        return pipeline;
+    }
+
+    String compressionSummary() {
+        double ratio = rawBytes == 0 ? 1.0 : (double) wireBytes / rawBytes;
+        return String.format("Compression: %d of %d chunks compressed, %d -> %d bytes (%.1f%%)",
+                compressedChunks, compressedChunks + plainChunks, rawBytes, wireBytes, ratio * 100);
+    }
+
+    private int capacity(int segment) {
+        return tuner != null ? Math.max(segment, tuner.maxChunk()) : segment;
+    }
+
+    private void retune(ReadAhead ring, int length) throws IOException {
+        if (tuner != null && !tuner.tuned()) {
+            tuner.onBytes(length);
+            if (tuner.tuned()) {
+                ring.segmentSize(tuner.chunkSize());
+            }
+        }
+    }
+
+    private void readChunk(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(chunk, 0, length);
+        while (buf.hasRemaining()) {
+            if (file.read(buf, position + buf.position()) == -1) {
+                throw new EOFException("Unexpected EOF while reading file");
+            }
+        }
+    }
+
+    private int writePayload(int length) throws IOException {
+        crc.reset();
+        crc.update(chunk, 0, length);
+        int value = (int) crc.getValue();
+
+        if (codec != null) {
+            int packedLength = worthCompressing(length)
+                    ? codec.compress(chunk, 0, length, packed, (int) (length * MIN_SAVING))
+                    : -1;
+            rawBytes += length;
+            if (packedLength > 0) {
+                out.writeByte(codec.id());
+                out.writeInt(packedLength);
+                out.write(packed, 0, packedLength);
+                wireBytes += packedLength;
+                compressedChunks++;
+            } else {
+                out.writeByte(ChunkCodec.CODEC_RAW);
+                out.writeInt(length);
+                out.write(chunk, 0, length);
+                wireBytes += length;
+                plainChunks++;
+            }
+        } else {
+            out.write(chunk, 0, length);
+        }
+
+        if (verify) {
+            out.writeInt(value);
+        }
+        return value;
+    }
+
+    private boolean worthCompressing(int length) {
+        if (length <= SAMPLE_BYTES) {
+            return true;
+        }
+        int start = (length - SAMPLE_BYTES) / 2;
+        return codec.compress(chunk, start, SAMPLE_BYTES, packed, (int) (SAMPLE_BYTES * SAMPLE_RATIO)) > 0;
+    }
+}
@@ -0,0 +1,381 @@
+package filetransfer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+final class UploadSession {
+
+    private enum State {
+        MAGIC,
+        NAME_LENGTH,
+        NAME,
+        SIZE,
+        BODY,
+        COMMITTING,
+        REPLY,
+        HANDED_OFF,
+        CLOSED
+    }
+
+    private static final int MAX_READS_PER_EVENT = 16;
+
+    private final Reactor reactor;
+    private final SocketChannel channel;
+    private final int clientId;
+    private final String clientInfo;
+    private final Metrics.Client metrics;
+    private SelectionKey key;
+
+    private State state = State.MAGIC;
+    private boolean announced;
+
+    private final ByteBuffer header = ByteBuffer.allocate(8);
+    private ByteBuffer nameBuf;
+    private ByteBuffer replyBuf;
+    private byte[] magic;
+
+    private String originalName;
+    private long fileSize;
+    private long received;
+    private FileChannel file;
+    private StorageRoots.Root root;
+    private boolean writing;
+    private Path target;
+    private String packName;
+    private byte[] packed;
+    private SpeedMeter meter;
+    private BandwidthScheduler.Flow flow;
+
+    UploadSession(Reactor reactor, SocketChannel channel, int clientId) throws IOException {
+        this.reactor = reactor;
+        this.channel = channel;
+        this.clientId = clientId;
+        this.clientInfo = "Client#" + clientId + " [" + channel.getRemoteAddress() + "]";
+        this.metrics = reactor.server().metrics().open(clientId, String.valueOf(channel.getRemoteAddress()));
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    int clientId() {
+        return clientId;
+    }
+
+    byte[] magic() {
+        return magic;
+    }
+
+    Metrics.Client metrics() {
+        return metrics;
+    }
+
+    void onRead() throws IOException {
+        boolean progress = true;
+        while (progress) {
+            progress = switch (state) {
+                case MAGIC -> fill(header, 4) && onMagic();
+                case NAME_LENGTH -> fill(header, 4) && onNameLength();
+                case NAME -> fill(nameBuf, nameBuf.capacity()) && onName();
+                case SIZE -> fill(header, 8) && onSize();
+                case BODY -> readBody();
+                case COMMITTING, REPLY, HANDED_OFF, CLOSED -> false;
+            };
+        }
+    }
+
+    void onWrite() throws IOException {
+        if (state != State.REPLY) {
+            return;
+        }
+        channel.write(replyBuf);
+        if (!replyBuf.hasRemaining()) {
+            close();
+        }
+    }
+
+    void fail(IOException e) {
+        if (state == State.CLOSED || state == State.HANDED_OFF) {
+            return;
+        }
+        if (!(e instanceof EOFException) || state == State.BODY) {
+            System.err.println(clientInfo + " error: " + e.getMessage());
+        }
+        close();
+    }
+
+    void close() {
+        if (state == State.CLOSED || state == State.HANDED_OFF) {
+            return;
+        }
+        state = State.CLOSED;
+        if (key != null) {
+            key.cancel();
+        }
+        closeFile();
+        metrics.close();
+        if (flow != null) {
+            flow.close();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // nothing left to do with this connection
+        }
+        if (announced) {
+            System.out.println(clientInfo + " disconnected");
+        }
+        reactor.onSessionClosed();
+    }
+
+    private boolean fill(ByteBuffer buf, int size) throws IOException {
+        buf.limit(size);
+        int n = channel.read(buf);
+        if (n == -1) {
+            throw new EOFException("Connection closed during header");
+        }
+        metrics.received(n);
+        if (buf.hasRemaining()) {
+            return false;
+        }
+        buf.flip();
+        return true;
+    }
+
+    private boolean onMagic() throws IOException {
+        magic = new byte[4];
+        header.get(magic);
+        header.clear();
+        if (Protocol.matchesMagic(magic, Protocol.MAGIC_V1)) {
+            System.out.println(clientInfo + " connected");
+            announced = true;
+            state = State.NAME_LENGTH;
+            return true;
+        }
+        if (Protocol.matchesMagic(magic, Protocol.MAGIC_V2)) {
+            state = State.HANDED_OFF;
+            key.cancel();
+            reactor.handOff(this);
+            return false;
+        }
+        reply(Protocol.STATUS_ERROR);
+        return false;
+    }
+
+    private boolean onNameLength() throws IOException {
+        int nameLen = header.getInt();
+        header.clear();
+        if (nameLen <= 0 || nameLen > Protocol.MAX_NAME_BYTES) {
+            reply(Protocol.STATUS_ERROR);
+            return false;
+        }
+        nameBuf = ByteBuffer.allocate(nameLen);
+        state = State.NAME;
+        return true;
+    }
+
+    private boolean onName() {
+        originalName = new String(nameBuf.array(), 0, nameBuf.limit(), StandardCharsets.UTF_8);
+        nameBuf = null;
+        state = State.SIZE;
+        return true;
+    }
+
+    private boolean onSize() throws IOException {
+        fileSize = header.getLong();
+        header.clear();
+        if (fileSize < 0 || fileSize > Protocol.MAX_FILE_SIZE) {
+            reply(Protocol.STATUS_ERROR);
+            return false;
+        }
+
+        metrics.begin(originalName);
+        if (reactor.server().bandwidth() != null) {
+            flow = reactor.server().bandwidth().open(channel.socket().getInetAddress());
+            flow.sizeKnown(fileSize);
+        }
+        String safeName = FileServer.sanitizeFilename(originalName);
+        if (reactor.server().packable(fileSize)) {
+            packName = safeName;
+            packed = new byte[(int) fileSize];
+        } else {
+            StorageRoots.Root placed = reactor.server().storage().place(safeName, fileSize);
+            if (placed == null) {
+                System.err.println(clientInfo + " not enough disk space for " + fileSize + " bytes");
+                reply(Protocol.STATUS_ERROR);
+                return false;
+            }
+            Path target = FileServer.resolveInUploads(placed.dir(), safeName);
+            System.out.println(clientInfo + " sending \"" + originalName + "\" → " +
+                    target.getFileName() + " (" + fileSize + " bytes)");
+            file = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            root = placed;
+            this.target = target;
+            startWrite();
+            FileServer.preallocate(file, fileSize);
+        }
+        meter = new SpeedMeter(clientInfo);
+        state = State.BODY;
+        if (fileSize == 0) {
+            finishBody();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean readBody() throws IOException {
+        ByteBuffer buf = reactor.buffers().acquire();
+        try {
+            for (int i = 0; i < MAX_READS_PER_EVENT; i++) {
+                if (flow != null && !flow.tryAcquire()) {
+                    key.interestOps(0);
+                    flow.whenCredited(() -> reactor.execute(this::resumeBody));
+                    return false;
+                }
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), fileSize - received));
+                int n = channel.read(buf);
+                if (n == -1) {
+                    if (file != null) {
+                        file.truncate(received);
+                    }
+                    closeFile();
+                    System.err.println(clientInfo + " size mismatch");
+                    reply(Protocol.STATUS_INCOMPLETE);
+                    return false;
+                }
+                if (n == 0) {
+                    return false;
+                }
+                metrics.received(n);
+                if (flow != null) {
+                    flow.consume(n);
+                }
+                buf.flip();
+                if (packed != null) {
+                    buf.get(packed, (int) received, n);
+                }
+                while (buf.hasRemaining()) {
+                    file.write(buf);
+                }
+                received += n;
+                meter.onProgress(received);
+                if (received == fileSize) {
+                    finishBody();
+                    return false;
+                }
+            }
+            return false;
+        } finally {
+            reactor.buffers().release(buf);
+        }
+    }
+
+    private void resumeBody() {
+        if (state != State.BODY) {
+            return;
+        }
+        try {
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (CancelledKeyException ignored) {
+            // connection closed while throttled
+        }
+    }
+
+    private void finishBody() throws IOException {
+        FileChannel written = file;
+        if (packed != null) {
+            // packs live on the first root
+            root = reactor.server().storage().primary();
+            startWrite();
+            PackStore.Stored stored = reactor.server().packs().add(packName, packed, packed.length);
+            written = stored.channel();
+            packed = null;
+            System.out.println(clientInfo + " stored \"" + originalName + "\" in pack as " + stored.name() +
+                    " (" + fileSize + " bytes)");
+        }
+        state = State.COMMITTING;
+        key.interestOps(0);
+        CompletableFuture<Void> commit = reactor.server().durability().commitAsync(written);
+        if (commit.isDone() && !commit.isCompletedExceptionally()) {
+            onCommitted(null);
+        } else {
+            commit.whenComplete((ignored, error) -> reactor.execute(() -> onCommitted(error)));
+        }
+    }
+
+    private void onCommitted(Throwable error) {
+        if (state != State.COMMITTING) {
+            return;
+        }
+        try {
+            finishWrite();
+            if (file != null) {
+                FileChannel written = file;
+                file = null;
+                written.close();
+                meter.finish(received);
+            }
+            if (error != null) {
+                System.err.println(clientInfo + " failed to persist upload: " + error.getMessage());
+                reply(Protocol.STATUS_ERROR);
+                return;
+            }
+            if (target != null) {
+                reactor.server().storage().stored(root, target, received);
+            }
+            System.out.println(clientInfo + " transfer completed successfully");
+            reply(Protocol.STATUS_OK);
+        } catch (CancelledKeyException ignored) {
+            // connection closed while waiting for the disk
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void reply(int status) throws IOException {
+        metrics.finish(status);
+        state = State.REPLY;
+        replyBuf = ByteBuffer.wrap(new byte[]{(byte) status});
+        key.interestOps(SelectionKey.OP_WRITE);
+        onWrite();
+    }
+
+    private void startWrite() {
+        writing = true;
+        root.writeStarted(fileSize);
+    }
+
+    private void finishWrite() {
+        if (writing) {
+            writing = false;
+            root.writeFinished(fileSize);
+        }
+    }
+
+    private void closeFile() {
+        finishWrite();
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            System.err.println(clientInfo + " failed to close file: " + e.getMessage());
+        }
+        file = null;
+    }
+}
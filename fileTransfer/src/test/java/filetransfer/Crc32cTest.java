@@ -0,0 +1,52 @@
+package filetransfer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class Crc32cTest {
+
+    @Test
+    void combineMatchesCrcOfConcatenation() {
+        Random rnd = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            byte[] data = new byte[rnd.nextInt(10_000) + 1];
+            rnd.nextBytes(data);
+            int split = rnd.nextInt(data.length + 1);
+            int left = crc(data, 0, split);
+            int right = crc(data, split, data.length - split);
+            assertEquals(crc(data, 0, data.length), Crc32c.combine(left, right, data.length - split),
+                    "split " + split + " of " + data.length);
+        }
+    }
+
+    @Test
+    void combineWithEmptySuffixKeepsPrefix() {
+        byte[] data = "resumable".getBytes();
+        int crc = crc(data, 0, data.length);
+        assertEquals(crc, Crc32c.combine(crc, 0, 0));
+    }
+
+    @Test
+    void combineFoldsManyChunks() {
+        Random rnd = new Random(2);
+        byte[] data = new byte[1 << 20];
+        rnd.nextBytes(data);
+        int folded = 0;
+        for (int off = 0; off < data.length; ) {
+            int len = Math.min(rnd.nextInt(70_000) + 1, data.length - off);
+            folded = Crc32c.combine(folded, crc(data, off, len), len);
+            off += len;
+        }
+        assertEquals(crc(data, 0, data.length), folded);
+    }
+
+    private static int crc(byte[] data, int off, int len) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, off, len);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,122 @@
+package filetransfer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeltaEncoderTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void editedFileIsRebuiltFromBase() throws Exception {
+        Random rnd = new Random(3);
+        byte[] base = new byte[3_000_000];
+        rnd.nextBytes(base);
+
+        // вставка, удаление и замена посередине, остальное должно уйти ссылками на блоки
+        ByteArrayOutputStream edited = new ByteArrayOutputStream();
+        edited.write(base, 0, 500_000);
+        byte[] inserted = new byte[12_345];
+        rnd.nextBytes(inserted);
+        edited.write(inserted);
+        edited.write(base, 500_000, 1_000_000);
+        edited.write(base, 1_600_000, 900_000);
+        byte[] replaced = Arrays.copyOfRange(base, 2_500_000, base.length);
+        replaced[1000] ^= 1;
+        edited.write(replaced);
+        byte[] target = edited.toByteArray();
+
+        Result r = roundTrip(base, target);
+        assertArrayEquals(target, r.rebuilt);
+        assertTrue(r.copied > target.length * 9L / 10, "copied only " + r.copied + " bytes");
+        assertEquals(target.length, r.copied + r.literal);
+    }
+
+    @Test
+    void emptyBaseSendsEverythingAsLiterals() throws Exception {
+        byte[] target = new byte[200_000];
+        new Random(4).nextBytes(target);
+        Result r = roundTrip(null, target);
+        assertArrayEquals(target, r.rebuilt);
+        assertEquals(0, r.copied);
+    }
+
+    @Test
+    void identicalAndShortFiles() throws Exception {
+        Random rnd = new Random(5);
+        for (int size : new int[]{0, 1, DeltaSignatures.MIN_BLOCK - 1, DeltaSignatures.MIN_BLOCK,
+                DeltaSignatures.MIN_BLOCK * 3 + 7, 1_500_000}) {
+            byte[] data = new byte[size];
+            rnd.nextBytes(data);
+            Result r = roundTrip(data, data);
+            assertArrayEquals(data, r.rebuilt, "size " + size);
+        }
+    }
+
+    private record Result(byte[] rebuilt, long literal, long copied) {}
+
+    private Result roundTrip(byte[] base, byte[] target) throws Exception {
+        Path baseFile = dir.resolve("base");
+        Path targetFile = dir.resolve("target");
+        Files.write(targetFile, target);
+        DeltaSignatures signatures = DeltaSignatures.empty();
+        if (base != null) {
+            Files.write(baseFile, base);
+            // сигнатуры идут к клиенту по сети, так что и здесь через write/read
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(wire);
+            DeltaSignatures.compute(baseFile).write(out);
+            out.flush();
+            signatures = DeltaSignatures.read(new DataInputStream(new ByteArrayInputStream(wire.toByteArray())));
+        }
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(delta);
+        DeltaEncoder encoder = new DeltaEncoder(signatures, out);
+        encoder.encode(targetFile);
+        out.flush();
+
+        byte[] rebuilt = apply(base, signatures.blockSize, delta.toByteArray());
+        assertEquals(target.length, encoder.literalBytes() + encoder.copiedBytes());
+        return new Result(rebuilt, encoder.literalBytes(), encoder.copiedBytes());
+    }
+
+    // то же, что делает сервер в handleDeltaPut
+    private static byte[] apply(byte[] base, int blockSize, byte[] delta) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (true) {
+            byte op = in.readByte();
+            if (op == Protocol.DELTA_END) {
+                byte[] digest = new byte[32];
+                in.readFully(digest);
+                assertArrayEquals(ContentChunker.sha256().digest(out.toByteArray()), digest);
+                assertEquals(-1, in.read());
+                return out.toByteArray();
+            } else if (op == Protocol.DELTA_COPY) {
+                int start = in.readInt();
+                int count = in.readInt();
+                assertNotNull(base);
+                assertTrue(count > 0 && (long) (start + count) * blockSize <= base.length);
+                out.write(base, start * blockSize, count * blockSize);
+            } else if (op == Protocol.DELTA_LITERAL) {
+                int len = in.readInt();
+                assertTrue(len > 0 && len <= DeltaEncoder.MAX_LITERAL);
+                byte[] literal = new byte[len];
+                in.readFully(literal);
+                out.write(literal);
+            } else {
+                throw new IOException("Unknown delta instruction " + op);
+            }
+        }
+    }
+}
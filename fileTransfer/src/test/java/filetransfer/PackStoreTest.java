@@ -0,0 +1,140 @@
+package filetransfer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PackStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void putGetAndList() throws IOException {
+        PackStore packs = new PackStore(dir, 1 << 20);
+        Map<String, byte[]> expected = fill(packs, new Random(6), 300);
+
+        assertEquals(expected.size(), packs.entryCount());
+        for (var e : expected.entrySet()) {
+            assertArrayEquals(e.getValue(), packs.get(e.getKey()), e.getKey());
+        }
+        assertNull(packs.get("missing"));
+
+        Map<String, Long> listed = new HashMap<>();
+        packs.forEach(listed::put);
+        assertEquals(expected.size(), listed.size());
+        for (var e : expected.entrySet()) {
+            assertEquals(Long.valueOf(e.getValue().length), listed.get(e.getKey()), e.getKey());
+        }
+    }
+
+    @Test
+    void addKeepsEarlierRecordOfSameName() throws IOException {
+        PackStore packs = new PackStore(dir, 1 << 20);
+        byte[] first = {1, 2, 3};
+        byte[] second = {4, 5};
+
+        assertEquals("a.txt", packs.add("a.txt", first, first.length).name());
+        String renamed = packs.add("a.txt", second, second.length).name();
+        assertNotEquals("a.txt", renamed);
+        assertTrue(renamed.startsWith("a.txt_"), renamed);
+        assertNotEquals(renamed, packs.add("a.txt", second, second.length).name());
+
+        assertEquals(3, packs.entryCount());
+        assertArrayEquals(first, packs.get("a.txt"));
+        assertArrayEquals(second, packs.get(renamed));
+    }
+
+    @Test
+    void compactionKeepsLatestVersionsAndFreesPacks() throws IOException {
+        PackStore packs = new PackStore(dir, 64 * 1024);
+        Random rnd = new Random(7);
+        Map<String, byte[]> expected = fill(packs, rnd, 200);
+        // перезаписанные версии делают старые паки полупустыми, живые записи из них переезжают
+        for (int round = 0; round < 3; round++) {
+            expected.putAll(fill(packs, rnd, 140));
+        }
+        int before = packFiles();
+        assertTrue(before > 2, "expected several packs, got " + before);
+
+        packs.compact();
+        int after = packFiles();
+        assertTrue(after < before, "compaction left " + after + " of " + before + " packs");
+
+        assertEquals(expected.size(), packs.entryCount());
+        for (var e : expected.entrySet()) {
+            assertArrayEquals(e.getValue(), packs.get(e.getKey()), e.getKey());
+        }
+
+        // после перезапуска индекс и паки читаются с диска
+        PackStore reopened = new PackStore(dir, 64 * 1024);
+        assertEquals(expected.size(), reopened.entryCount());
+        for (var e : expected.entrySet()) {
+            assertArrayEquals(e.getValue(), reopened.get(e.getKey()), e.getKey());
+        }
+    }
+
+    @Test
+    void indexReferringToDeletedPackIsRebuilt() throws IOException {
+        PackStore packs = new PackStore(dir, 64 * 1024);
+        Random rnd = new Random(8);
+        Map<String, byte[]> expected = fill(packs, rnd, 200);
+        // индекс до компактизации — как будто перед сбоем до диска не дошли его изменения
+        Path index = dir.resolve(".packs").resolve("index.db");
+        byte[] stale = Files.readAllBytes(index);
+        for (int round = 0; round < 3; round++) {
+            expected.putAll(fill(packs, rnd, 140));
+        }
+        packs.compact();
+        // заголовок (активный пак и его длина) свежий, устарели только слоты
+        byte[] current = Files.readAllBytes(index);
+        System.arraycopy(current, 0, stale, 0, 64);
+        Files.write(index, stale);
+
+        PackStore reopened = new PackStore(dir, 64 * 1024);
+        assertEquals(expected.size(), reopened.entryCount());
+        for (var e : expected.entrySet()) {
+            assertArrayEquals(e.getValue(), reopened.get(e.getKey()), e.getKey());
+        }
+    }
+
+    @Test
+    void replacedEntryReturnsNewestData() throws IOException {
+        PackStore packs = new PackStore(dir, 1 << 20);
+        packs.put("a.txt", "first".getBytes(), 5);
+        packs.put("a.txt", "second!".getBytes(), 7);
+        assertArrayEquals("second!".getBytes(), packs.get("a.txt"));
+        assertEquals(1, packs.entryCount());
+    }
+
+    private static Map<String, byte[]> fill(PackStore packs, Random rnd, int count) throws IOException {
+        Map<String, byte[]> written = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = "file-" + i + ".bin";
+            byte[] data = new byte[rnd.nextInt(4096)];
+            rnd.nextBytes(data);
+            packs.put(name, data, data.length);
+            written.put(name, data);
+        }
+        return written;
+    }
+
+    private int packFiles() throws IOException {
+        int n = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.resolve(".packs"), "pack-*.dat")) {
+            for (Path ignored : stream) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,120 @@
+package filetransfer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PartialStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void resumesFromJournalledOffset() throws IOException {
+        byte[] data = new byte[500_000];
+        new Random(8).nextBytes(data);
+        UUID id = UUID.randomUUID();
+        int committed = 200_000;
+
+        PartialStore store = new PartialStore(dir, 60_000);
+        try (PartialStore.Partial partial = store.open(id, "a.bin", data.length, 42)) {
+            assertEquals(0, partial.committedOffset());
+            write(partial, data, 0, 300_000);
+            // на диске больше, чем подтверждено в журнале: хвост после обрыва не считается
+            partial.checkpoint(committed, crc(data, 0, committed));
+        }
+        assertTrue(store.has(id));
+
+        // новый экземпляр — как после перезапуска сервера
+        PartialStore restarted = new PartialStore(dir, 60_000);
+        Path target = dir.resolve("a.bin");
+        try (PartialStore.Partial partial = restarted.open(id, "a.bin", data.length, 42)) {
+            assertEquals(committed, partial.committedOffset());
+            assertEquals(crc(data, 0, committed), partial.committedCrc());
+            assertEquals(committed, partial.channel().position());
+
+            write(partial, data, committed, data.length - committed);
+            int rest = crc(data, committed, data.length - committed);
+            assertEquals(crc(data, 0, data.length), Crc32c.combine(partial.committedCrc(), rest, data.length - committed));
+            partial.complete(target, new Durability(Durability.Mode.NONE));
+        }
+        assertArrayEquals(data, Files.readAllBytes(target));
+        assertFalse(store.has(id));
+    }
+
+    @Test
+    void changedSourceStartsOver() throws IOException {
+        byte[] data = new byte[100_000];
+        new Random(9).nextBytes(data);
+        UUID id = UUID.randomUUID();
+
+        PartialStore store = new PartialStore(dir, 60_000);
+        try (PartialStore.Partial partial = store.open(id, "b.bin", data.length, 1)) {
+            write(partial, data, 0, 50_000);
+            partial.checkpoint(50_000, crc(data, 0, 50_000));
+        }
+        // другой отпечаток файла у клиента — продолжать с середины нельзя
+        try (PartialStore.Partial partial = store.open(id, "b.bin", data.length, 2)) {
+            assertEquals(0, partial.committedOffset());
+        }
+        try (PartialStore.Partial partial = store.open(id, "b.bin", data.length + 1, 2)) {
+            assertEquals(0, partial.committedOffset());
+        }
+    }
+
+    @Test
+    void sameTransferCannotBeOpenedTwice() throws IOException {
+        PartialStore store = new PartialStore(dir, 60_000);
+        UUID id = UUID.randomUUID();
+        try (PartialStore.Partial first = store.open(id, "c.bin", 10, 1)) {
+            assertNotNull(first);
+            assertNull(store.open(id, "c.bin", 10, 1));
+        }
+        try (PartialStore.Partial again = store.open(id, "c.bin", 10, 1)) {
+            assertNotNull(again);
+        }
+    }
+
+    @Test
+    void completingOntoExistingFileKeepsBoth() throws IOException {
+        PartialStore store = new PartialStore(dir, 60_000);
+        Durability none = new Durability(Durability.Mode.NONE);
+        Path target = dir.resolve("d.bin");
+        byte[] first = {1, 2, 3};
+        byte[] second = {4, 5, 6, 7};
+
+        // две возобновляемые загрузки с одним именем выбрали один и тот же путь
+        try (PartialStore.Partial a = store.open(UUID.randomUUID(), "d.bin", first.length, 1);
+             PartialStore.Partial b = store.open(UUID.randomUUID(), "d.bin", second.length, 1)) {
+            write(a, first, 0, first.length);
+            write(b, second, 0, second.length);
+            assertEquals(target, a.complete(target, none));
+            Path other = b.complete(target, none);
+            assertNotEquals(target, other);
+            assertArrayEquals(second, Files.readAllBytes(other));
+        }
+        assertArrayEquals(first, Files.readAllBytes(target));
+    }
+
+    private static void write(PartialStore.Partial partial, byte[] data, int off, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data, off, len);
+        while (buf.hasRemaining()) {
+            partial.channel().write(buf);
+        }
+    }
+
+    private static int crc(byte[] data, int off, int len) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, off, len);
+        return (int) crc.getValue();
+    }
+}
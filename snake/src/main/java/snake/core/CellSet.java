@@ -0,0 +1,39 @@
+package snake.core;
+
+import java.util.Arrays;
+
+// множество клеток y*w+x: плотный массив плюс индекс клетки в нём, всё за O(1) и без аллокаций
+public final class CellSet {
+    private final int[] cells;
+    private final int[] slot;
+    private int size = 0;
+
+    public CellSet(int capacity) {
+        this.cells = new int[capacity];
+        this.slot = new int[capacity];
+        Arrays.fill(slot, -1);
+    }
+
+    public int size() { return size; }
+
+    public int get(int i) { return cells[i]; }
+
+    public boolean contains(int cell) { return slot[cell] >= 0; }
+
+    public boolean add(int cell) {
+        if (slot[cell] >= 0) return false;
+        slot[cell] = size;
+        cells[size++] = cell;
+        return true;
+    }
+
+    public boolean remove(int cell) {
+        int i = slot[cell];
+        if (i < 0) return false;
+        int last = cells[--size];
+        cells[i] = last;
+        slot[last] = i;
+        slot[cell] = -1;
+        return true;
+    }
+}
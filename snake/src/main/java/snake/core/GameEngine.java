@@ -16,6 +16,8 @@ public final class GameEngine {
         Pos tail = state.step(head, Dir.LEFT);
         state.snake.addFirst(head);
         state.snake.addLast(tail);
+        state.free.remove(state.cell(head));
+        state.free.remove(state.cell(tail));
         ensureFood();
     }
 
@@ -32,8 +34,14 @@ public final class GameEngine {
 
         boolean ate = state.food.remove(next);
         state.snake.addFirst(next);
-        if (!ate) state.snake.removeLast();
-        else state.score++;
+        state.free.remove(state.cell(next));
+        if (!ate) {
+            Pos tail = state.snake.removeLast();
+            // живая змея себя не пересекает, так что хвост мог остаться занятым только новой головой
+            if (!tail.equals(next)) state.free.add(state.cell(tail));
+        } else {
+            state.score++;
+        }
 
         int i = 0;
         for (Pos p : state.snake) {
@@ -53,10 +61,10 @@ public final class GameEngine {
 
     void ensureFood() {
         int target = desiredFoodCount();
-        while (state.food.size() < target) {
-            Pos p = new Pos(rnd.nextInt(cfg.w()), rnd.nextInt(cfg.h()));
-            if (state.food.contains(p) || state.snake.contains(p)) continue;
-            state.food.add(p);
+        while (state.food.size() < target && state.free.size() > 0) {
+            int c = state.free.get(rnd.nextInt(state.free.size()));
+            state.free.remove(c);
+            state.food.add(new Pos(c % cfg.w(), c / cfg.w()));
         }
     }
 }
@@ -9,6 +9,7 @@ public final class GameState {
     public final int w, h;
     public final Deque<Pos> snake = new ArrayDeque<>();
     public final Set<Pos> food = new HashSet<>();
+    public final CellSet free; // клетки y*w+x без змеи и еды
 
     public Dir dir = Dir.RIGHT;
     public Dir pendingDir = dir;
@@ -17,7 +18,13 @@ public final class GameState {
     public int score = 0;
     public long stateOrder = 0;
 
-    public GameState(int w, int h) { this.w = w; this.h = h; }
+    public GameState(int w, int h) {
+        this.w = w; this.h = h;
+        this.free = new CellSet(w * h);
+        for (int c = 0; c < w * h; c++) free.add(c);
+    }
+
+    public int cell(Pos p) { return p.y() * w + p.x(); }
 
     public Pos wrap(Pos p) {
         int x = p.x() % w; if (x < 0) x += w;
@@ -1,7 +1,6 @@
 package snake.core.multi;
 
 import snake.core.Dir;
-import snake.core.Pos;
 
 import java.util.*;
 
@@ -12,11 +11,13 @@ public final class MultiEngine {
 
     public final MultiState st;
 
-    private final Map<Integer, Dir> steerBuf = new HashMap<>();
+    private final SpawnIndex spawns;
+    private final List<MultiState.Snake> dying = new ArrayList<>();
 
     public MultiEngine(int w, int h, int foodStatic) {
         this.w = w; this.h = h; this.foodStatic = foodStatic;
         this.st = new MultiState(w, h);
+        this.spawns = new SpawnIndex(st);
     }
 
     public void upsertPlayer(int id, String name) {
@@ -32,36 +33,29 @@ public final class MultiEngine {
         MultiState.Snake s = st.snakes.get(playerId);
         if (s == null) return;
         if (st.players.get(playerId) != null && st.players.get(playerId).viewer) return;
-        if (!d.opposite(s.dir)) steerBuf.put(playerId, d);
+        if (!d.opposite(s.dir)) s.steer = d;
     }
 
     public boolean placeNewSnakeForPlayer(int playerId) {
-        final int tries = w * h;
-        for (int t = 0; t < tries; t++) {
-            int cx = rnd.nextInt(w);
-            int cy = rnd.nextInt(h);
-
-            if (!squareEmptyNoFood(cx, cy, 5)) continue;
-
-            Pos head = new Pos(cx, cy);
-
-            List<Dir> dirs = new ArrayList<>(List.of(Dir.UP, Dir.DOWN, Dir.LEFT, Dir.RIGHT));
-            Collections.shuffle(dirs, rnd);
-
-            for (Dir tailDir : dirs) {
-                Pos tail = st.wrap(new Pos(head.x() - tailDir.dx, head.y() - tailDir.dy));
-                if (occupied(tail) || st.food.contains(tail) || st.food.contains(head)) continue;
+        int head = spawns.pick(rnd);
+        if (head < 0) return false;
+
+        // квадрат вокруг головы пуст, так что хвост в любую сторону тоже свободен
+        Dir tailDir = Dir.values()[rnd.nextInt(4)];
+        int tail = st.cell(st.x(head) - tailDir.dx, st.y(head) - tailDir.dy);
+
+        MultiState.Snake s = new MultiState.Snake(playerId, tailDir);
+        s.dir = opposite(tailDir);
+        s.pendingDir = s.dir;
+        s.pushTail(head);
+        s.pushTail(tail);
+        st.addSnake(s);
+        spawns.invalidate();
+        return true;
+    }
 
-                MultiState.Snake s = new MultiState.Snake(playerId, tailDir);
-                s.dir = opposite(tailDir);
-                s.pendingDir = s.dir;
-                s.body.addFirst(head);
-                s.body.addLast(tail);
-                st.snakes.put(playerId, s);
-                return true;
-            }
-        }
-        return false;
+    public boolean canSpawn() {
+        return spawns.count() > 0;
     }
 
     private Dir opposite(Dir d) {
@@ -73,30 +67,14 @@ public final class MultiEngine {
         };
     }
 
-    private boolean squareEmptyNoFood(int cx, int cy, int size) {
-        int r = size / 2;
-        for (int dy = -r; dy <= r; dy++) {
-            for (int dx = -r; dx <= r; dx++) {
-                Pos p = st.wrap(new Pos(cx + dx, cy + dy));
-                if (occupied(p)) return false;
-                if (st.food.contains(p)) return false;
-            }
-        }
-        return true;
-    }
-
-    private boolean occupied(Pos p) {
-        for (MultiState.Snake s : st.snakes.values()) {
-            if (s.body.contains(p)) return true;
-        }
-        return false;
+    private static boolean moves(MultiState.Snake s) {
+        return s.player != null && !s.player.viewer && s.length() > 0;
     }
 
     private int aliveSnakeCount() {
         int c = 0;
-        for (var e : st.snakes.entrySet()) {
-            int pid = e.getKey();
-            MultiState.Player p = st.players.get(pid);
+        for (int i = 0; i < st.snakeCount(); i++) {
+            MultiState.Player p = st.snakeAt(i).player;
             if (p != null && !p.viewer) c++;
         }
         return c;
@@ -104,120 +82,91 @@ public final class MultiEngine {
 
     private int desiredFoodCount() {
         int need = foodStatic + aliveSnakeCount();
-        int used = 0;
-        for (MultiState.Snake s : st.snakes.values()) used += s.body.size();
-        int free = w * h - used - st.food.size();
-        int maxCan = st.food.size() + Math.max(0, free);
+        int maxCan = st.food.size() + st.free.size();
         return Math.min(need, maxCan);
     }
 
     private void ensureFood() {
         int target = desiredFoodCount();
-        int attempts = w * h * 3;
-        while (st.food.size() < target && attempts-- > 0) {
-            Pos p = new Pos(rnd.nextInt(w), rnd.nextInt(h));
-            if (st.food.contains(p)) continue;
-            if (occupied(p)) continue;
-            st.food.add(p);
+        while (st.food.size() < target && st.free.size() > 0) {
+            st.addFood(st.free.get(rnd.nextInt(st.free.size())));
         }
     }
 
     public void tick() {
-        for (var e : steerBuf.entrySet()) {
-            MultiState.Snake s = st.snakes.get(e.getKey());
-            if (s != null) {
-                Dir d = e.getValue();
-                if (!d.opposite(s.dir)) s.pendingDir = d;
+        int n = st.snakeCount();
+        for (int i = 0; i < n; i++) {
+            MultiState.Snake s = st.snakeAt(i);
+            if (s.steer != null) {
+                if (!s.steer.opposite(s.dir)) s.pendingDir = s.steer;
+                s.steer = null;
             }
-        }
-        steerBuf.clear();
-
-        Map<Integer, Pos> nextHead = new HashMap<>();
-        for (var e : st.snakes.entrySet()) {
-            int pid = e.getKey();
-            MultiState.Player p = st.players.get(pid);
-            if (p == null || p.viewer) continue;
-            MultiState.Snake s = e.getValue();
+            s.next = -1;
+            s.ate = false;
+            s.dead = false;
+            if (!moves(s)) continue;
             s.dir = s.pendingDir;
-            Pos head = s.body.peekFirst();
-            if (head == null) continue;
-            nextHead.put(pid, st.step(head, s.dir));
+            s.next = st.step(s.headCell(), s.dir);
+            s.ate = st.food.contains(s.next);
         }
 
-        Set<Pos> eatenFoodCells = new HashSet<>();
-        Set<Integer> ate = new HashSet<>();
-        for (var e : nextHead.entrySet()) {
-            int pid = e.getKey();
-            Pos nh = e.getValue();
-            if (st.food.contains(nh)) {
-                ate.add(pid);
-                eatenFoodCells.add(nh);
-            }
-        }
-        st.food.removeAll(eatenFoodCells);
-
-        for (var e : nextHead.entrySet()) {
-            int pid = e.getKey();
-            MultiState.Snake s = st.snakes.get(pid);
-            if (s == null) continue;
-            Pos nh = e.getValue();
-            s.body.addFirst(nh);
-            if (!ate.contains(pid)) {
-                s.body.removeLast();
+        for (int i = 0; i < n; i++) {
+            MultiState.Snake s = st.snakeAt(i);
+            if (s.next < 0) continue;
+            st.pushHead(s, s.next);
+            if (!s.ate) {
+                st.popTail(s);
             } else {
-                MultiState.Player p = st.players.get(pid);
-                if (p != null) p.score += 1;
+                st.removeFood(s.next);
+                s.player.score += 1;
             }
         }
 
-        record Occ(int pid, boolean head) {}
-        Map<Pos, List<Occ>> occ = new HashMap<>();
-        for (var e : st.snakes.entrySet()) {
-            int pid = e.getKey();
-            MultiState.Player p = st.players.get(pid);
-            if (p == null || p.viewer) continue;
-            boolean first = true;
-            for (Pos cell : e.getValue().body) {
-                occ.computeIfAbsent(cell, k -> new ArrayList<>()).add(new Occ(pid, first));
-                first = false;
+        // стоящие змеи наблюдателей в столкновениях не участвуют — на время проверки убираем их из сетки
+        setStillSnakes(-1);
+        int deaths = 0;
+        for (int i = 0; i < n; i++) {
+            MultiState.Snake s = st.snakeAt(i);
+            if (s.next >= 0 && st.segmentsAt(s.next) > 1) {
+                s.dead = true;
+                deaths++;
             }
         }
+        setStillSnakes(1);
 
-        Set<Integer> dead = new HashSet<>();
-        for (var e : nextHead.entrySet()) {
-            int pid = e.getKey();
-            Pos headCell = e.getValue();
-            List<Occ> list = occ.getOrDefault(headCell, List.of());
-            if (list.size() <= 1) continue;
+        if (deaths > 0) killDead();
 
-            boolean otherPresent = list.stream().anyMatch(o -> o.pid() != pid || !o.head());
-            if (otherPresent) dead.add(pid);
+        st.stateOrder++;
+        ensureFood();
+        spawns.invalidate();
+    }
+
+    private void setStillSnakes(int delta) {
+        for (int i = 0; i < st.snakeCount(); i++) {
+            MultiState.Snake s = st.snakeAt(i);
+            if (s.next < 0) st.shiftOccupancy(s, delta);
         }
+    }
+
+    // смерть — не каждый тик, тут можно и по карте пройтись: порядок тот же, что раньше у occ
+    private void killDead() {
+        for (MultiState.Snake s : st.snakes.values()) if (s.dead) dying.add(s);
 
-        for (int pid : dead) {
-            Pos headCell = nextHead.get(pid);
-            if (headCell == null) continue;
-            List<Occ> list = occ.getOrDefault(headCell, List.of());
-            for (Occ o : list) {
-                if (o.pid() == pid) continue;
-                MultiState.Player victim = st.players.get(o.pid());
-                if (victim != null && !victim.viewer) victim.score += 1;
+        for (MultiState.Snake s : dying) {
+            for (MultiState.Snake o : st.snakes.values()) {
+                if (o == s || o.next < 0 || !o.covers(s.next)) continue;
+                o.player.score += 1;
                 break;
             }
         }
 
-        for (int pid : dead) {
-            MultiState.Snake s = st.snakes.remove(pid);
-            if (s != null) {
-                for (Pos cell : s.body) {
-                    if (rnd.nextBoolean()) st.food.add(cell);
-                }
+        for (MultiState.Snake s : dying) {
+            st.removeSnake(s.playerId);
+            for (int i = 0; i < s.length(); i++) {
+                if (rnd.nextBoolean()) st.addFood(s.cell(i));
             }
-            MultiState.Player p = st.players.get(pid);
-            if (p != null) p.viewer = true;
+            s.player.viewer = true;
         }
-
-        st.stateOrder++;
-        ensureFood();
+        dying.clear();
     }
 }
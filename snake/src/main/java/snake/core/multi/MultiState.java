@@ -1,5 +1,6 @@
 package snake.core.multi;
 
+import snake.core.CellSet;
 import snake.core.Dir;
 import snake.core.Pos;
 
@@ -10,20 +11,99 @@ public final class MultiState {
     public long stateOrder = 0;
 
     public final Map<Integer, Snake> snakes = new HashMap<>(); // playerId -> snake
-    public final Set<Pos> food = new HashSet<>();
+    public final CellSet food; // клетки y*w+x
+    public final CellSet free; // ни змей, ни еды; еда ставится только через addFood/removeFood
 
     public final Map<Integer, Player> players = new HashMap<>(); // playerId -> player
 
-    public MultiState(int w, int h) { this.w = w; this.h = h; }
+    // сегментов змей в клетке; тело меняется только через методы ниже, иначе сетка разъедется
+    private final short[] occupancy;
 
-    public Pos wrap(Pos p) {
-        int x = p.x() % w; if (x < 0) x += w;
-        int y = p.y() % h; if (y < 0) y += h;
-        return new Pos(x, y);
+    // те же змеи плотным массивом, чтобы тик обходил их без итераторов
+    private Snake[] list = new Snake[8];
+    private int count = 0;
+
+    public MultiState(int w, int h) {
+        this.w = w; this.h = h;
+        this.food = new CellSet(w * h);
+        this.free = new CellSet(w * h);
+        this.occupancy = new short[w * h];
+        for (int c = 0; c < w * h; c++) free.add(c);
+    }
+
+    public int cell(int x, int y) {
+        x %= w; if (x < 0) x += w;
+        y %= h; if (y < 0) y += h;
+        return y * w + x;
+    }
+
+    public int cell(Pos p) { return cell(p.x(), p.y()); }
+
+    public int x(int cell) { return cell % w; }
+    public int y(int cell) { return cell / w; }
+
+    public Pos pos(int cell) { return new Pos(cell % w, cell / w); }
+
+    public int step(int cell, Dir d) { return cell(cell % w + d.dx, cell / w + d.dy); }
+
+    public boolean occupied(int cell) { return occupancy[cell] > 0; }
+
+    public void addFood(int cell) {
+        if (food.add(cell)) free.remove(cell);
+    }
+
+    public void removeFood(int cell) {
+        if (food.remove(cell) && occupancy[cell] == 0) free.add(cell);
+    }
+
+    private void enter(int cell) {
+        if (occupancy[cell]++ == 0) free.remove(cell);
+    }
+
+    private void leave(int cell) {
+        if (--occupancy[cell] == 0 && !food.contains(cell)) free.add(cell);
+    }
+
+    int segmentsAt(int cell) { return occupancy[cell]; }
+
+    int snakeCount() { return count; }
+    Snake snakeAt(int i) { return list[i]; }
+
+    public void addSnake(Snake s) {
+        removeSnake(s.playerId);
+        if (count == list.length) list = Arrays.copyOf(list, count * 2);
+        s.slot = count;
+        list[count++] = s;
+        s.player = players.get(s.playerId);
+        snakes.put(s.playerId, s);
+        for (int i = 0; i < s.length(); i++) enter(s.cell(i));
+    }
+
+    public Snake removeSnake(int playerId) {
+        Snake s = snakes.remove(playerId);
+        if (s == null) return null;
+        Snake last = list[--count];
+        list[s.slot] = last;
+        last.slot = s.slot;
+        list[count] = null;
+        for (int i = 0; i < s.length(); i++) leave(s.cell(i));
+        return s;
     }
 
-    public Pos step(Pos from, Dir d) {
-        return wrap(new Pos(from.x() + d.dx, from.y() + d.dy));
+    public void pushHead(Snake s, int cell) {
+        s.pushHead(cell);
+        enter(cell);
+    }
+
+    public int popTail(Snake s) {
+        int cell = s.popTail();
+        leave(cell);
+        return cell;
+    }
+
+    // временно, на проверку столкновений: free при этом не трогаем, к следующему чтению всё вернётся
+    void shiftOccupancy(Snake s, int delta) {
+        for (int i = 0; i < s.length(); i++) occupancy[s.cell(i)] += delta;
     }
 
     public static final class Player {
@@ -37,15 +117,69 @@ public final class MultiState {
 
     public static final class Snake {
         public final int playerId;
-        public final Deque<Pos> body = new ArrayDeque<>();
         public boolean zombie = false;
         public Dir dir;
         public Dir pendingDir;
 
+        // кольцевой буфер клеток, body[head] — голова; ёмкость всегда степень двойки
+        private int[] body = new int[16];
+        private int head = 0, length = 0;
+        private long pushed = 0, popped = 0; // за всю жизнь змеи, по разнице сетевой код собирает дельты
+
+        Player player;
+        int slot;
+
+        // черновик тика, чтобы не заводить под него коллекции
+        Dir steer;
+        int next;
+        boolean ate, dead;
+
         public Snake(int playerId, Dir dir) {
             this.playerId = playerId;
             this.dir = dir;
             this.pendingDir = dir;
         }
+
+        public int length() { return length; }
+
+        // i = 0 — голова, length() - 1 — хвост
+        public int cell(int i) { return body[(head + i) & (body.length - 1)]; }
+
+        public int headCell() { return cell(0); }
+
+        public long headsPushed() { return pushed; }
+        public long tailsPopped() { return popped; }
+
+        boolean covers(int c) {
+            for (int i = 0; i < length; i++) if (cell(i) == c) return true;
+            return false;
+        }
+
+        void pushHead(int c) {
+            if (length == body.length) grow();
+            head = (head - 1) & (body.length - 1);
+            body[head] = c;
+            length++;
+            pushed++;
+        }
+
+        void pushTail(int c) {
+            if (length == body.length) grow();
+            body[(head + length) & (body.length - 1)] = c;
+            length++;
+        }
+
+        int popTail() {
+            length--;
+            popped++;
+            return body[(head + length) & (body.length - 1)];
+        }
+
+        private void grow() {
+            int[] bigger = new int[body.length * 2];
+            for (int i = 0; i < length; i++) bigger[i] = cell(i);
+            body = bigger;
+            head = 0;
+        }
     }
 }
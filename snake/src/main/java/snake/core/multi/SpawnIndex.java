@@ -0,0 +1,60 @@
+package snake.core.multi;
+
+import java.util.Random;
+
+// центры квадратов 5x5 без змей и еды; пересчёт за O(w*h) скользящим окном по тору, только когда спросили после изменений
+final class SpawnIndex {
+    private static final int R = 2;
+
+    private final MultiState st;
+    private final int[] rows; // занятых клеток в окне 5x1 с центром в клетке
+    private final int[] centres;
+    private int count = 0;
+    private boolean dirty = true;
+
+    SpawnIndex(MultiState st) {
+        this.st = st;
+        this.rows = new int[st.w * st.h];
+        this.centres = new int[st.w * st.h];
+    }
+
+    void invalidate() { dirty = true; }
+
+    int count() {
+        if (dirty) rebuild();
+        return count;
+    }
+
+    int pick(Random rnd) {
+        int n = count();
+        return n == 0 ? -1 : centres[rnd.nextInt(n)];
+    }
+
+    private int blocked(int cell) {
+        return st.free.contains(cell) ? 0 : 1;
+    }
+
+    private void rebuild() {
+        int w = st.w, h = st.h;
+        for (int y = 0; y < h; y++) {
+            int row = y * w;
+            int sum = 0;
+            for (int d = -R; d <= R; d++) sum += blocked(row + Math.floorMod(d, w));
+            for (int x = 0; x < w; x++) {
+                rows[row + x] = sum;
+                sum += blocked(row + Math.floorMod(x + R + 1, w)) - blocked(row + Math.floorMod(x - R, w));
+            }
+        }
+
+        count = 0;
+        for (int x = 0; x < w; x++) {
+            int sum = 0;
+            for (int d = -R; d <= R; d++) sum += rows[Math.floorMod(d, h) * w + x];
+            for (int y = 0; y < h; y++) {
+                if (sum == 0) centres[count++] = y * w + x;
+                sum += rows[Math.floorMod(y + R + 1, h) * w + x] - rows[Math.floorMod(y - R, h) * w + x];
+            }
+        }
+        dirty = false;
+    }
+}
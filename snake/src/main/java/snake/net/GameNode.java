@@ -61,6 +61,13 @@ public final class GameNode {
 
     private final Map<Integer, Dir> pendingSteer = new ConcurrentHashMap<>();
 
+    private final StateHistory history = new StateHistory();
+    private final Set<Integer> deltaPeers = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, StateCodec.RenderState> recentStates = new ConcurrentHashMap<>();
+    // черновик тика мастера: дельта и её байты по state_order базы
+    private final Map<Integer, SnakesProto.GameMessage> deltasByBase = new HashMap<>();
+    private final Map<Integer, byte[]> deltaBytesByBase = new HashMap<>();
+
     public GameNode(UdpSockets socks, DiscoveryRegistry registry) {
         this.socks = socks;
         this.registry = registry;
@@ -94,6 +101,8 @@ public final class GameNode {
 
         this.outbox = new ReliableOutbox(socks.unicast, NetConst.resendPeriodMs(stateDelayMs));
         this.eng = new MultiEngine(w, h, foodStatic);
+        history.clear();
+        deltaPeers.clear();
 
         this.myId = 1;
 
@@ -126,6 +135,7 @@ public final class GameNode {
 
         int stateDelayMs = masterCfg.getStateDelayMs();
         this.outbox = new ReliableOutbox(socks.unicast, NetConst.resendPeriodMs(stateDelayMs));
+        recentStates.clear();
 
         this.myId = 0;
         view.inGame = true;
@@ -141,6 +151,7 @@ public final class GameNode {
                 .setGameName(g.gameName)
                 .setRequestedRole(viewerOnly ? SnakesProto.NodeRole.VIEWER : SnakesProto.NodeRole.NORMAL)
                 .setPlayerType(SnakesProto.PlayerType.HUMAN)
+                .setAcceptsStateDelta(true)
                 .build();
 
         SnakesProto.GameMessage msg = SnakesProto.GameMessage.newBuilder()
@@ -216,9 +227,10 @@ public final class GameNode {
 
     private void unicastRxLoop() {
         byte[] buf = new byte[65535];
+        DatagramPacket p = new DatagramPacket(buf, buf.length);
         while (running) {
             try {
-                DatagramPacket p = new DatagramPacket(buf, buf.length);
+                p.setLength(buf.length);
                 socks.unicast.receive(p);
 
                 InetSocketAddress from = new InetSocketAddress(p.getAddress(), p.getPort());
@@ -234,9 +246,10 @@ public final class GameNode {
 
     private void mcastRxLoop() {
         byte[] buf = new byte[65535];
+        DatagramPacket p = new DatagramPacket(buf, buf.length);
         while (running) {
             try {
-                DatagramPacket p = new DatagramPacket(buf, buf.length);
+                p.setLength(buf.length);
                 socks.mcastRecv.receive(p);
 
                 InetSocketAddress from = new InetSocketAddress(p.getAddress(), p.getPort());
@@ -258,7 +271,12 @@ public final class GameNode {
 
     private void onUnicastMessage(InetSocketAddress from, SnakesProto.GameMessage gm) throws Exception {
         if (gm.hasAck()) {
-            if (outbox != null) outbox.onAck(from, gm.getMsgSeq());
+            if (outbox != null) {
+                outbox.onAck(from, gm.getMsgSeq());
+                if (mode == Mode.MASTER) {
+                    for (long stale : history.acked(from, gm.getMsgSeq())) outbox.onAck(from, stale);
+                }
+            }
             if (mode == Mode.CLIENT && myId == 0 && gm.hasReceiverId()) {
                 myId = gm.getReceiverId();
                 view.myId = myId;
@@ -266,23 +284,10 @@ public final class GameNode {
             return;
         }
 
-        boolean needsAck = !(gm.hasAnnouncement() || gm.hasDiscover() || gm.hasAck());
-        if (needsAck) {
-            int senderId = gm.hasSenderId() ? gm.getSenderId() : 0;
-            SnakesProto.GameMessage ack = SnakesProto.GameMessage.newBuilder()
-                    .setMsgSeq(gm.getMsgSeq())
-                    .setSenderId(myId == 0 ? 0 : myId)
-                    .setReceiverId(senderId)
-                    .setAck(SnakesProto.GameMessage.AckMsg.newBuilder().build())
-                    .build();
-            try {
-                if (outbox != null) outbox.sendNow(from, ack, false);
-                else {
-                    byte[] data = Proto.toBytes(ack);
-                    socks.unicast.send(new DatagramPacket(data, data.length, from.getAddress(), from.getPort()));
-                }
-            } catch (Exception ignored) {}
-        }
+        // состояния клиент подтверждает сам, когда сохранил их: подтверждённое мастер берёт за базу дельт
+        boolean needsAck = !(gm.hasAnnouncement() || gm.hasDiscover() || gm.hasAck() || gm.hasStateDelta()
+                || gm.hasState() && mode == Mode.CLIENT);
+        if (needsAck) sendAck(from, gm);
 
         if (mode == Mode.MASTER) {
             onMasterMessage(from, gm);
@@ -291,9 +296,27 @@ public final class GameNode {
         }
     }
 
+    private void sendAck(InetSocketAddress from, SnakesProto.GameMessage gm) {
+        int senderId = gm.hasSenderId() ? gm.getSenderId() : 0;
+        SnakesProto.GameMessage ack = SnakesProto.GameMessage.newBuilder()
+                .setMsgSeq(gm.getMsgSeq())
+                .setSenderId(myId == 0 ? 0 : myId)
+                .setReceiverId(senderId)
+                .setAck(SnakesProto.GameMessage.AckMsg.newBuilder().build())
+                .build();
+        try {
+            if (outbox != null) outbox.sendNow(from, ack, false);
+            else {
+                byte[] data = Proto.toBytes(ack);
+                socks.unicast.send(new DatagramPacket(data, data.length, from.getAddress(), from.getPort()));
+            }
+        } catch (Exception ignored) {}
+    }
+
     private void onMasterMessage(InetSocketAddress from, SnakesProto.GameMessage gm) {
         if (gm.hasJoin()) {
-            handleJoin(from, gm);
+            // движок меняет только поток тика: сетка занятости и индекс спавна не переживут гонку
+            sched.execute(() -> handleJoin(from, gm));
             return;
         }
         if (gm.hasSteer()) {
@@ -315,35 +338,40 @@ public final class GameNode {
         }
         if (gm.hasPing()) return;
         if (gm.hasDiscover()) {
-            try {
-                SnakesProto.GameMessage ann = buildAnnouncement();
-                byte[] data = Proto.toBytes(ann);
-                socks.unicast.send(new DatagramPacket(data, data.length, from.getAddress(), from.getPort()));
-            } catch (Exception ignored) {}
+            // canSpawn перестраивает индекс спавна — тоже только в потоке тика
+            sched.execute(() -> {
+                try {
+                    SnakesProto.GameMessage ann = buildAnnouncement();
+                    byte[] data = Proto.toBytes(ann);
+                    socks.unicast.send(new DatagramPacket(data, data.length, from.getAddress(), from.getPort()));
+                } catch (Exception ignored) {}
+            });
         }
     }
 
     private void onClientMessage(InetSocketAddress from, SnakesProto.GameMessage gm) {
         if (gm.hasState()) {
             SnakesProto.GameState st = gm.getState().getState();
-            if (view.render != null && st.getStateOrder() <= view.render.stateOrder) return;
-
+            if (recentStates.containsKey(st.getStateOrder())) {
+                sendAck(from, gm);
+                return;
+            }
             int w = view.cfg.getWidth();
             int h = view.cfg.getHeight();
-            view.render = StateCodec.decodeToRender(st, w, h);
-
-            InetSocketAddress deputy = null;
-            InetSocketAddress master = null;
-            for (SnakesProto.GamePlayer p : st.getPlayers().getPlayersList()) {
-                if (p.getRole() == SnakesProto.NodeRole.MASTER && p.hasIpAddress() && p.hasPort()) {
-                    master = new InetSocketAddress(p.getIpAddress(), p.getPort());
-                }
-                if (p.getRole() == SnakesProto.NodeRole.DEPUTY && p.hasIpAddress() && p.hasPort()) {
-                    deputy = new InetSocketAddress(p.getIpAddress(), p.getPort());
-                }
+            showOrKeep(from, gm, StateCodec.decodeToRender(st, w, h));
+            return;
+        }
+        if (gm.hasStateDelta()) {
+            SnakesProto.GameMessage.StateDeltaMsg d = gm.getStateDelta();
+            if (recentStates.containsKey(d.getStateOrder())) {
+                sendAck(from, gm);
+                return;
             }
-            if (master != null) view.masterAddr = master;
-            view.deputyAddr = deputy;
+            StateCodec.RenderState base = recentStates.get(d.getBaseStateOrder());
+            StateCodec.RenderState rs = base == null ? null : StateCodec.applyDelta(base, d);
+            // без базы молчим: неподтверждённую дельту мастер через несколько тиков заменит ключевым кадром
+            if (rs == null) return;
+            showOrKeep(from, gm, rs);
             return;
         }
         if (gm.hasError()) {
@@ -361,6 +389,44 @@ public final class GameNode {
         }
     }
 
+    // опоздавшее состояние не рисуем, но храним: его подтверждение мастер может взять за базу
+    private void showOrKeep(InetSocketAddress from, SnakesProto.GameMessage gm, StateCodec.RenderState rs) {
+        if (view.render == null || rs.stateOrder > view.render.stateOrder) {
+            showState(rs);
+            sendAck(from, gm);
+        } else if (keep(rs) || gm.hasState()) {
+            // слишком старый ключевой кадр не храним, но подтверждаем: мастер без истории дельт иначе
+            // переотправлял бы его вечно, а новый мастер по такому подтверждению базу назад не сдвигает
+            sendAck(from, gm);
+        }
+    }
+
+    private boolean keep(StateCodec.RenderState rs) {
+        int newest = view.render == null ? rs.stateOrder : Math.max(rs.stateOrder, view.render.stateOrder);
+        if (rs.stateOrder <= newest - StateHistory.DEPTH) return false;
+        recentStates.put(rs.stateOrder, rs);
+        recentStates.keySet().removeIf(order -> order <= newest - StateHistory.DEPTH);
+        return true;
+    }
+
+    private void showState(StateCodec.RenderState rs) {
+        keep(rs);
+        view.render = rs;
+
+        InetSocketAddress deputy = null;
+        InetSocketAddress master = null;
+        for (SnakesProto.GamePlayer p : rs.gamePlayers.getPlayersList()) {
+            if (p.getRole() == SnakesProto.NodeRole.MASTER && p.hasIpAddress() && p.hasPort()) {
+                master = new InetSocketAddress(p.getIpAddress(), p.getPort());
+            }
+            if (p.getRole() == SnakesProto.NodeRole.DEPUTY && p.hasIpAddress() && p.hasPort()) {
+                deputy = new InetSocketAddress(p.getIpAddress(), p.getPort());
+            }
+        }
+        if (master != null) view.masterAddr = master;
+        view.deputyAddr = deputy;
+    }
+
     private void handleJoin(InetSocketAddress from, SnakesProto.GameMessage gm) {
     if (eng == null) return;
 
@@ -411,6 +477,7 @@ public final class GameNode {
     }
 
     joinAddrToId.put(from, newId);
+    if (j.getAcceptsStateDelta()) deltaPeers.add(newId);
 
     ensureDeputy();
 
@@ -442,15 +509,43 @@ public final class GameNode {
 
         try {
             SnakesProto.GameState gs = StateCodec.encodeState(eng, roles, playerAddr);
-            SnakesProto.GameMessage sm = SnakesProto.GameMessage.newBuilder()
-                    .setMsgSeq(seq.next())
-                    .setSenderId(myId)
-                    .setState(SnakesProto.GameMessage.StateMsg.newBuilder().setState(gs).build())
-                    .build();
+            StateCodec.Snapshot snap = StateCodec.snapshot(eng.st, gs);
+            history.add(snap);
+            SnakesProto.GameMessage sm = null;
+            byte[] smBytes = null;
+            deltasByBase.clear();
+            deltaBytesByBase.clear();
 
             for (var e : playerAddr.entrySet()) {
                 InetSocketAddress to = e.getValue();
-                outbox.sendNow(to, sm, true);
+                StateCodec.Snapshot base = deltaPeers.contains(e.getKey()) ? history.baseFor(to, snap.stateOrder) : null;
+                if (base != null) {
+                    // узлы обычно подтверждают одно и то же состояние, так что дельта от каждой базы тоже одна на всех
+                    SnakesProto.GameMessage dm = deltasByBase.get(base.stateOrder);
+                    if (dm == null) {
+                        dm = SnakesProto.GameMessage.newBuilder()
+                                .setMsgSeq(seq.next())
+                                .setSenderId(myId)
+                                .setStateDelta(StateCodec.encodeDelta(eng.st, base, snap))
+                                .build();
+                        deltasByBase.put(base.stateOrder, dm);
+                        deltaBytesByBase.put(base.stateOrder, Proto.toBytes(dm));
+                    }
+                    history.sent(to, dm.getMsgSeq(), snap.stateOrder);
+                    outbox.sendNow(to, deltaBytesByBase.get(base.stateOrder), dm.getMsgSeq(), true);
+                    continue;
+                }
+                // ключевой кадр один на всех: сериализуем один раз, байты общие и для переотправок
+                if (sm == null) {
+                    sm = SnakesProto.GameMessage.newBuilder()
+                            .setMsgSeq(seq.next())
+                            .setSenderId(myId)
+                            .setState(SnakesProto.GameMessage.StateMsg.newBuilder().setState(gs).build())
+                            .build();
+                    smBytes = Proto.toBytes(sm);
+                }
+                history.sent(to, sm.getMsgSeq(), snap.stateOrder);
+                outbox.sendNow(to, smBytes, sm.getMsgSeq(), true);
             }
 
             view.render = StateCodec.decodeToRender(gs, masterCfg.getWidth(), masterCfg.getHeight());
@@ -472,7 +567,7 @@ public final class GameNode {
 
     private SnakesProto.GameMessage buildAnnouncement() {
         SnakesProto.GamePlayers gp = StateCodec.encodePlayers(eng.st, roles, playerAddr);
-        boolean canJoin = true;
+        boolean canJoin = eng.canSpawn();
 
         SnakesProto.GameAnnouncement ga = SnakesProto.GameAnnouncement.newBuilder()
                 .setPlayers(gp)
@@ -509,7 +604,9 @@ public final class GameNode {
             roles.put(pid, SnakesProto.NodeRole.VIEWER);
             var snake = eng.st.snakes.get(pid);
             if (snake != null) snake.zombie = true;
-            playerAddr.remove(pid);
+            InetSocketAddress a = playerAddr.remove(pid);
+            if (a != null) history.forget(a);
+            deltaPeers.remove(pid);
 
             if (pid == deputyId) {
                 deputyId = 0;
@@ -1,5 +1,6 @@
 package snake.net;
 
+import com.google.protobuf.CodedInputStream;
 import me.ippolitov.fit.snakes.SnakesProto;
 
 public final class Proto {
@@ -9,7 +10,8 @@ public final class Proto {
         return msg.toByteArray();
     }
 
+    // прямо из приёмного буфера; строки при этом копируются, так что буфер можно сразу переиспользовать
     public static SnakesProto.GameMessage parse(byte[] data, int len) throws Exception {
-        return SnakesProto.GameMessage.parseFrom(java.util.Arrays.copyOf(data, len));
+        return SnakesProto.GameMessage.parseFrom(CodedInputStream.newInstance(data, 0, len));
     }
 }
@@ -10,19 +10,22 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public final class ReliableOutbox {
+    // переотправка идёт тем же пакетом с теми же байтами, без повторной сериализации
     private static final class Pending {
         final InetSocketAddress to;
-        final SnakesProto.GameMessage msg;
+        final DatagramPacket packet;
         volatile long lastSendAt;
-        Pending(InetSocketAddress to, SnakesProto.GameMessage msg, long lastSendAt) {
-            this.to = to; this.msg = msg; this.lastSendAt = lastSendAt;
+        Pending(InetSocketAddress to, DatagramPacket packet, long lastSendAt) {
+            this.to = to; this.packet = packet; this.lastSendAt = lastSendAt;
         }
     }
 
+    private record Key(InetSocketAddress to, long seq) {}
+
     private final DatagramSocket sock;
     private final int resendPeriodMs;
 
-    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final Map<Key, Pending> pending = new ConcurrentHashMap<>();
 
     private final Map<InetSocketAddress, Long> lastAnyUnicastSentAt = new ConcurrentHashMap<>();
 
@@ -31,23 +34,23 @@ public final class ReliableOutbox {
         this.resendPeriodMs = resendPeriodMs;
     }
 
-    private static String key(InetSocketAddress to, long seq) {
-        return to.toString() + "|" + seq;
+    public void sendNow(InetSocketAddress to, SnakesProto.GameMessage msg, boolean needsAck) throws Exception {
+        sendNow(to, Proto.toBytes(msg), msg.getMsgSeq(), needsAck);
     }
 
-    public void sendNow(InetSocketAddress to, SnakesProto.GameMessage msg, boolean needsAck) throws Exception {
-        byte[] data = Proto.toBytes(msg);
+    // data можно раздать нескольким получателям: массив только читается, в том числе при переотправках
+    public void sendNow(InetSocketAddress to, byte[] data, long msgSeq, boolean needsAck) throws Exception {
         DatagramPacket p = new DatagramPacket(data, data.length, to.getAddress(), to.getPort());
         sock.send(p);
         long now = System.currentTimeMillis();
         lastAnyUnicastSentAt.put(to, now);
         if (needsAck) {
-            pending.put(key(to, msg.getMsgSeq()), new Pending(to, msg, now));
+            pending.put(new Key(to, msgSeq), new Pending(to, p, now));
         }
     }
 
     public void onAck(InetSocketAddress from, long msgSeq) {
-        pending.remove(key(from, msgSeq));
+        pending.remove(new Key(from, msgSeq));
     }
 
     public void tickResendAndPing(int myId, MsgSeq seq, Set<InetSocketAddress> peers) {
@@ -56,9 +59,7 @@ public final class ReliableOutbox {
         for (Pending p : pending.values()) {
             if (now - p.lastSendAt >= resendPeriodMs) {
                 try {
-                    byte[] data = Proto.toBytes(p.msg);
-                    DatagramPacket dp = new DatagramPacket(data, data.length, p.to.getAddress(), p.to.getPort());
-                    sock.send(dp);
+                    sock.send(p.packet);
                     p.lastSendAt = now;
                     lastAnyUnicastSentAt.put(p.to, now);
                 } catch (Exception ignored) {}
@@ -35,30 +35,37 @@ public final class StateCodec {
         return SnakesProto.GameState.Coord.newBuilder().setX(p.x()).setY(p.y()).build();
     }
 
-    public static SnakesProto.GameState.Snake encodeSnake(MultiState.Snake s, boolean zombie) {
-        List<Pos> cells = new ArrayList<>(s.body);
-        if (cells.isEmpty()) {
+    public static SnakesProto.GameState.Coord coord(int x, int y) {
+        return SnakesProto.GameState.Coord.newBuilder().setX(x).setY(y).build();
+    }
+
+    public static SnakesProto.GameState.Snake encodeSnake(MultiState st, MultiState.Snake s, boolean zombie) {
+        if (s.length() == 0) {
             return SnakesProto.GameState.Snake.newBuilder()
                     .setPlayerId(s.playerId)
-                    .addPoints(SnakesProto.GameState.Coord.newBuilder().setX(0).setY(0).build())
+                    .addPoints(coord(0, 0))
                     .setState(zombie ? SnakesProto.GameState.Snake.SnakeState.ZOMBIE : SnakesProto.GameState.Snake.SnakeState.ALIVE)
                     .setHeadDirection(toProtoDir(s.dir))
                     .build();
         }
 
-        List<SnakesProto.GameState.Coord> points = new ArrayList<>();
-        Pos head = cells.get(0);
-        points.add(SnakesProto.GameState.Coord.newBuilder().setX(head.x()).setY(head.y()).build());
+        SnakesProto.GameState.Snake.Builder b = SnakesProto.GameState.Snake.newBuilder()
+                .setPlayerId(s.playerId);
+        int head = s.headCell();
+        b.addPoints(coord(st.x(head), st.y(head)));
 
         int dxPrev = 0, dyPrev = 0;
         int segDx = 0, segDy = 0;
 
-        for (int i = 1; i < cells.size(); i++) {
-            Pos a = cells.get(i - 1);
-            Pos b = cells.get(i);
-            int dx = b.x() - a.x();
-            int dy = b.y() - a.y();
+        for (int i = 1; i < s.length(); i++) {
+            int a = s.cell(i - 1);
+            int c = s.cell(i);
+            int dx = st.x(c) - st.x(a);
+            int dy = st.y(c) - st.y(a);
 
+            // соседние клетки через край поля: w-1 по модулю — это шаг -1, а не +1
+            if (Math.abs(dx) > 1) dx = -dx;
+            if (Math.abs(dy) > 1) dy = -dy;
             dx = Integer.compare(dx, 0);
             dy = Integer.compare(dy, 0);
 
@@ -70,17 +77,15 @@ public final class StateCodec {
                     segDx += dx;
                     segDy += dy;
                 } else {
-                    points.add(SnakesProto.GameState.Coord.newBuilder().setX(segDx).setY(segDy).build());
+                    b.addPoints(coord(segDx, segDy));
                     dxPrev = dx; dyPrev = dy;
                     segDx = dx; segDy = dy;
                 }
             }
         }
-        points.add(SnakesProto.GameState.Coord.newBuilder().setX(segDx).setY(segDy).build());
+        b.addPoints(coord(segDx, segDy));
 
-        return SnakesProto.GameState.Snake.newBuilder()
-                .setPlayerId(s.playerId)
-                .addAllPoints(points)
+        return b
                 .setState(zombie ? SnakesProto.GameState.Snake.SnakeState.ZOMBIE : SnakesProto.GameState.Snake.SnakeState.ALIVE)
                 .setHeadDirection(toProtoDir(s.dir))
                 .build();
@@ -116,10 +121,13 @@ public final class StateCodec {
         for (var e : st.snakes.entrySet()) {
             int pid = e.getKey();
             boolean zombie = e.getValue().zombie;
-            gs.addSnakes(encodeSnake(e.getValue(), zombie));
+            gs.addSnakes(encodeSnake(st, e.getValue(), zombie));
         }
 
-        for (Pos f : st.food) gs.addFoods(coord(f));
+        for (int i = 0; i < st.food.size(); i++) {
+            int f = st.food.get(i);
+            gs.addFoods(coord(st.x(f), st.y(f)));
+        }
 
         gs.setPlayers(encodePlayers(st, roles, addrs));
         return gs.build();
@@ -128,6 +136,7 @@ public final class StateCodec {
     public static RenderState decodeToRender(SnakesProto.GameState gs, int w, int h) {
         RenderState rs = new RenderState(w, h);
         rs.stateOrder = gs.getStateOrder();
+        rs.gamePlayers = gs.getPlayers();
 
         for (SnakesProto.GameState.Coord c : gs.getFoodsList()) {
             rs.food.add(new Pos(c.getX(), c.getY()));
@@ -145,6 +154,104 @@ public final class StateCodec {
         return rs;
     }
 
+    public static Snapshot snapshot(MultiState st, SnakesProto.GameState gs) {
+        Snapshot snap = new Snapshot(gs.getStateOrder(), new int[st.food.size()], gs.getPlayers());
+        for (int i = 0; i < snap.food.length; i++) snap.food[i] = st.food.get(i);
+        Arrays.sort(snap.food);
+        for (MultiState.Snake s : st.snakes.values()) {
+            snap.snakes.put(s.playerId, new SnakeMark(s, s.headsPushed(), s.tailsPopped(), s.dir, s.zombie));
+        }
+        return snap;
+    }
+
+    // now должен быть снят с текущего состояния st: новые клетки голов берутся прямо из тел
+    public static SnakesProto.GameMessage.StateDeltaMsg encodeDelta(MultiState st, Snapshot base, Snapshot now) {
+        var d = SnakesProto.GameMessage.StateDeltaMsg.newBuilder()
+                .setBaseStateOrder(base.stateOrder)
+                .setStateOrder(now.stateOrder);
+
+        for (SnakeMark m : now.snakes.values()) {
+            MultiState.Snake s = m.snake();
+            SnakeMark b = base.snakes.get(s.playerId);
+            var sd = SnakesProto.GameMessage.StateDeltaMsg.SnakeDelta.newBuilder().setPlayerId(s.playerId);
+            long heads = b == null ? 0 : m.pushed() - b.pushed();
+            if (b == null || b.snake() != s || heads > s.length()) {
+                d.addSnakes(sd.setFull(encodeSnake(st, s, m.zombie())));
+                continue;
+            }
+            long pops = m.popped() - b.popped();
+            if (heads == 0 && pops == 0 && m.dir() == b.dir() && m.zombie() == b.zombie()) continue;
+            for (int i = 0; i < heads; i++) {
+                int c = s.cell(i);
+                sd.addHeads(coord(st.x(c), st.y(c)));
+            }
+            if (pops > 0) sd.setTailPops((int) pops);
+            if (m.dir() != b.dir()) sd.setHeadDirection(toProtoDir(m.dir()));
+            if (m.zombie() != b.zombie()) sd.setState(snakeState(m.zombie()));
+            d.addSnakes(sd);
+        }
+        for (int pid : base.snakes.keySet()) {
+            if (!now.snakes.containsKey(pid)) d.addRemovedSnakes(pid);
+        }
+
+        for (int f : now.food) {
+            if (Arrays.binarySearch(base.food, f) < 0) d.addFoodsAdded(coord(st.x(f), st.y(f)));
+        }
+        for (int f : base.food) {
+            if (Arrays.binarySearch(now.food, f) < 0) d.addFoodsRemoved(coord(st.x(f), st.y(f)));
+        }
+
+        if (!now.players.equals(base.players)) d.setPlayers(now.players);
+        return d.build();
+    }
+
+    // null, если дельта не ложится на base (змея из дельты в нём не найдена)
+    public static RenderState applyDelta(RenderState base, SnakesProto.GameMessage.StateDeltaMsg d) {
+        RenderState rs = new RenderState(base.w, base.h);
+        rs.stateOrder = d.getStateOrder();
+
+        rs.food.addAll(base.food);
+        for (SnakesProto.GameState.Coord c : d.getFoodsRemovedList()) rs.food.remove(new Pos(c.getX(), c.getY()));
+        for (SnakesProto.GameState.Coord c : d.getFoodsAddedList()) rs.food.add(new Pos(c.getX(), c.getY()));
+
+        if (d.hasPlayers()) {
+            rs.gamePlayers = d.getPlayers();
+            for (SnakesProto.GamePlayer p : d.getPlayers().getPlayersList()) {
+                rs.players.put(p.getId(), new RenderState.PlayerInfo(p.getName(), p.getScore(), p.getRole()));
+            }
+        } else {
+            rs.gamePlayers = base.gamePlayers;
+            rs.players.putAll(base.players);
+        }
+
+        rs.snakes.putAll(base.snakes);
+        for (int pid : d.getRemovedSnakesList()) rs.snakes.remove(pid);
+
+        for (var sd : d.getSnakesList()) {
+            if (sd.hasFull()) {
+                SnakesProto.GameState.Snake s = sd.getFull();
+                rs.snakes.put(sd.getPlayerId(), new RenderState.SnakeCells(expandSnake(s, base.w, base.h), s.getHeadDirection(), s.getState()));
+                continue;
+            }
+            RenderState.SnakeCells old = base.snakes.get(sd.getPlayerId());
+            if (old == null || sd.getTailPops() > old.cells().size() + sd.getHeadsCount()) return null;
+
+            List<Pos> cells = new ArrayList<>(sd.getHeadsCount() + old.cells().size());
+            for (SnakesProto.GameState.Coord c : sd.getHeadsList()) cells.add(new Pos(c.getX(), c.getY()));
+            cells.addAll(old.cells());
+            cells.subList(cells.size() - sd.getTailPops(), cells.size()).clear();
+
+            rs.snakes.put(sd.getPlayerId(), new RenderState.SnakeCells(cells,
+                    sd.hasHeadDirection() ? sd.getHeadDirection() : old.headDir(),
+                    sd.hasState() ? sd.getState() : old.snakeState()));
+        }
+        return rs;
+    }
+
+    private static SnakesProto.GameState.Snake.SnakeState snakeState(boolean zombie) {
+        return zombie ? SnakesProto.GameState.Snake.SnakeState.ZOMBIE : SnakesProto.GameState.Snake.SnakeState.ALIVE;
+    }
+
     private static List<Pos> expandSnake(SnakesProto.GameState.Snake s, int w, int h) {
         List<SnakesProto.GameState.Coord> pts = s.getPointsList();
         if (pts.isEmpty()) return List.of();
@@ -182,6 +289,7 @@ public final class StateCodec {
         public final Map<Integer, PlayerInfo> players = new HashMap<>();
         public final Map<Integer, SnakeCells> snakes = new HashMap<>();
         public final Set<Pos> food = new HashSet<>();
+        public SnakesProto.GamePlayers gamePlayers = SnakesProto.GamePlayers.getDefaultInstance();
 
         public RenderState(int w, int h) { this.w = w; this.h = h; }
 
@@ -190,4 +298,18 @@ public final class StateCodec {
                                  SnakesProto.Direction headDir,
                                  SnakesProto.GameState.Snake.SnakeState snakeState) {}
     }
+
+    // что было на поле у мастера в state_order, ровно настолько, чтобы собрать дельту
+    public static final class Snapshot {
+        public final int stateOrder;
+        final int[] food; // отсортированы
+        final SnakesProto.GamePlayers players;
+        final Map<Integer, SnakeMark> snakes = new HashMap<>();
+
+        Snapshot(int stateOrder, int[] food, SnakesProto.GamePlayers players) {
+            this.stateOrder = stateOrder; this.food = food; this.players = players;
+        }
+    }
+
+    private record SnakeMark(MultiState.Snake snake, long pushed, long popped, Dir dir, boolean zombie) {}
 }
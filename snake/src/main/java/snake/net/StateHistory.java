@@ -0,0 +1,68 @@
+package snake.net;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// последние состояния мастера и какое из них подтвердил каждый узел — база для дельт
+public final class StateHistory {
+    // клиент хранит столько же, так что подтверждённая им база у него ещё не вытеснена
+    public static final int DEPTH = 64;
+
+    // состояние, не подтверждённое за столько тиков, скорее всего не применилось (у узла нет базы)
+    public static final int RESYNC_TICKS = 3;
+
+    private static final class Peer {
+        volatile int acked = -1;
+        final Map<Long, Integer> sent = new ConcurrentHashMap<>(); // msg_seq -> state_order
+    }
+
+    private final Map<Integer, StateCodec.Snapshot> states = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, Peer> peers = new ConcurrentHashMap<>();
+
+    public void add(StateCodec.Snapshot s) {
+        states.put(s.stateOrder, s);
+        states.remove(s.stateOrder - DEPTH);
+    }
+
+    // null — слать ключевой кадр
+    public StateCodec.Snapshot baseFor(InetSocketAddress peer, int stateOrder) {
+        Peer p = peers.get(peer);
+        if (p == null) return null;
+        for (int order : p.sent.values()) {
+            if (order <= stateOrder - RESYNC_TICKS) return null;
+        }
+        return states.get(p.acked);
+    }
+
+    public void sent(InetSocketAddress peer, long msgSeq, int stateOrder) {
+        peers.computeIfAbsent(peer, k -> new Peer()).sent.put(msgSeq, stateOrder);
+    }
+
+    // возвращает msg_seq более старых состояний этому узлу: их больше незачем переотправлять
+    public List<Long> acked(InetSocketAddress peer, long msgSeq) {
+        Peer p = peers.get(peer);
+        if (p == null) return List.of();
+        Integer order = p.sent.remove(msgSeq);
+        if (order == null) return List.of();
+        if (order > p.acked) p.acked = order;
+
+        List<Long> stale = new ArrayList<>();
+        for (var e : p.sent.entrySet()) {
+            if (e.getValue() <= p.acked) stale.add(e.getKey());
+        }
+        for (long s : stale) p.sent.remove(s);
+        return stale;
+    }
+
+    public void forget(InetSocketAddress peer) {
+        peers.remove(peer);
+    }
+
+    public void clear() {
+        states.clear();
+        peers.clear();
+    }
+}
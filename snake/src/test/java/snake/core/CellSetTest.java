@@ -0,0 +1,32 @@
+package snake.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CellSetTest {
+
+    @Test
+    void behavesLikeASet() {
+        Random rnd = new Random(7);
+        CellSet cells = new CellSet(64);
+        Set<Integer> expected = new HashSet<>();
+        for (int i = 0; i < 100_000; i++) {
+            int c = rnd.nextInt(64);
+            if (rnd.nextBoolean()) {
+                assertEquals(expected.add(c), cells.add(c));
+            } else {
+                assertEquals(expected.remove(c), cells.remove(c));
+            }
+            assertEquals(expected.size(), cells.size());
+            assertEquals(expected.contains(c), cells.contains(c));
+        }
+        Set<Integer> listed = new HashSet<>();
+        for (int i = 0; i < cells.size(); i++) listed.add(cells.get(i));
+        assertEquals(expected, listed);
+    }
+}
@@ -0,0 +1,35 @@
+package snake.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GameEngineTest {
+
+    @Test
+    void freeCellsMatchBruteForce() {
+        GameEngine eng = new GameEngine(new GameConfig(10, 10, 30, 100));
+        eng.rnd.setSeed(1);
+        Random drive = new Random(3);
+        for (int t = 0; t < 20_000; t++) {
+            if (!eng.state.alive) eng.reset();
+            eng.applySteer(Dir.values()[drive.nextInt(4)]);
+            eng.tick();
+            // после смерти голова лежит на теле, free уже не ведётся
+            if (!eng.state.alive) continue;
+
+            GameState st = eng.state;
+            int free = 0;
+            for (int c = 0; c < st.w * st.h; c++) {
+                Pos p = new Pos(c % st.w, c / st.w);
+                boolean expected = !st.snake.contains(p) && !st.food.contains(p);
+                assertEquals(expected, st.free.contains(c), "tick " + t + ", cell " + p);
+                if (expected) free++;
+            }
+            assertEquals(free, st.free.size(), "tick " + t);
+            assertEquals(eng.desiredFoodCount(), st.food.size(), "tick " + t);
+        }
+    }
+}
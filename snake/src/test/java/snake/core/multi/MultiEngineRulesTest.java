@@ -0,0 +1,226 @@
+package snake.core.multi;
+
+import org.junit.jupiter.api.Test;
+import snake.core.Dir;
+import snake.core.Pos;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// тик на упакованных клетках сверяется с прежними правилами на Deque<Pos> и картах: каждый тик
+// эталон стартует с копии состояния движка, так что место спавна и еда от rnd на сверку не влияют
+class MultiEngineRulesTest {
+
+    private static final Dir[] DIRS = Dir.values();
+
+    @Test
+    void tickMatchesReferenceRules() {
+        for (int[] size : new int[][]{{40, 30}, {12, 12}, {100, 100}, {7, 5}}) {
+            for (long seed = 1; seed <= 3; seed++) {
+                play(size[0], size[1], seed, 1000);
+            }
+        }
+    }
+
+    private static void play(int w, int h, long seed, int ticks) {
+        MultiEngine eng = new MultiEngine(w, h, Math.max(1, w * h / 20));
+        eng.rnd.setSeed(seed);
+        Random drive = new Random(seed * 31 + w);
+        int nextId = 1;
+
+        for (int t = 0; t < ticks; t++) {
+            if (t % 4 == 0) {
+                eng.upsertPlayer(nextId, "p" + nextId);
+                eng.placeNewSnakeForPlayer(nextId++);
+            }
+            for (int pid : eng.st.snakes.keySet()) {
+                if (drive.nextInt(300) == 0) eng.setViewer(pid, true);
+            }
+
+            Reference ref = new Reference(eng.st);
+            for (int pid : eng.st.snakes.keySet()) {
+                if (drive.nextInt(3) == 0) {
+                    Dir d = DIRS[drive.nextInt(4)];
+                    eng.applySteer(pid, d);
+                    ref.applySteer(pid, d);
+                }
+            }
+
+            eng.tick();
+            ref.tick();
+            compare(eng, ref, "seed " + seed + ", " + w + "x" + h + ", tick " + t);
+        }
+    }
+
+    private static void compare(MultiEngine eng, Reference ref, String where) {
+        MultiState st = eng.st;
+        assertEquals(ref.snakes.keySet(), st.snakes.keySet(), where + ": snakes");
+        Set<Pos> snakeCells = new HashSet<>();
+        for (var e : ref.snakes.entrySet()) {
+            MultiState.Snake s = st.snakes.get(e.getKey());
+            List<Pos> body = new ArrayList<>();
+            for (int i = 0; i < s.length(); i++) body.add(st.pos(s.cell(i)));
+            assertEquals(new ArrayList<>(e.getValue().body), body, where + ": body of " + e.getKey());
+            assertEquals(e.getValue().dir, s.dir, where + ": dir of " + e.getKey());
+            snakeCells.addAll(body);
+        }
+        for (var e : ref.players.entrySet()) {
+            MultiState.Player p = st.players.get(e.getKey());
+            assertEquals(e.getValue().score, p.score, where + ": score of " + e.getKey());
+            assertEquals(e.getValue().viewer, p.viewer, where + ": viewer flag of " + e.getKey());
+        }
+
+        // еда: несъеденная осталась, новая — только с погибших змей или на клетках без змей
+        Set<Pos> food = new HashSet<>();
+        for (int i = 0; i < st.food.size(); i++) food.add(st.pos(st.food.get(i)));
+        assertTrue(food.containsAll(ref.food), where + ": food that was not eaten disappeared");
+        for (Pos p : food) {
+            assertTrue(ref.food.contains(p) || ref.deadCells.contains(p) || !snakeCells.contains(p),
+                    where + ": food appeared under a live snake at " + p);
+        }
+        int need = eng.foodStatic + ref.aliveCount();
+        assertTrue(food.size() >= Math.min(need, st.w * st.h - snakeCells.size()), where + ": too little food");
+    }
+
+    // прежний MultiEngine.tick без ensureFood и без случайного выбора клеток под еду с погибших
+    private static final class Reference {
+        final int w, h;
+        final Map<Integer, RSnake> snakes = new LinkedHashMap<>();
+        final Map<Integer, RPlayer> players = new HashMap<>();
+        final Set<Pos> food = new HashSet<>();
+        final Set<Pos> deadCells = new HashSet<>();
+        private final Map<Integer, Dir> steerBuf = new HashMap<>();
+
+        Reference(MultiState st) {
+            this.w = st.w;
+            this.h = st.h;
+            // тот же порядок обхода, что у st.snakes: от него зависит, кому засчитают столкновение
+            for (var e : st.snakes.entrySet()) {
+                MultiState.Snake s = e.getValue();
+                RSnake r = new RSnake(s.dir, s.pendingDir);
+                for (int i = 0; i < s.length(); i++) r.body.addLast(st.pos(s.cell(i)));
+                snakes.put(e.getKey(), r);
+            }
+            for (var e : st.players.entrySet()) {
+                players.put(e.getKey(), new RPlayer(e.getValue().score, e.getValue().viewer));
+            }
+            for (int i = 0; i < st.food.size(); i++) food.add(st.pos(st.food.get(i)));
+        }
+
+        void applySteer(int playerId, Dir d) {
+            RSnake s = snakes.get(playerId);
+            if (s == null) return;
+            if (players.get(playerId) != null && players.get(playerId).viewer) return;
+            if (!d.opposite(s.dir)) steerBuf.put(playerId, d);
+        }
+
+        int aliveCount() {
+            int c = 0;
+            for (int pid : snakes.keySet()) {
+                RPlayer p = players.get(pid);
+                if (p != null && !p.viewer) c++;
+            }
+            return c;
+        }
+
+        Pos step(Pos from, Dir d) {
+            int x = Math.floorMod(from.x() + d.dx, w);
+            int y = Math.floorMod(from.y() + d.dy, h);
+            return new Pos(x, y);
+        }
+
+        void tick() {
+            for (var e : steerBuf.entrySet()) {
+                RSnake s = snakes.get(e.getKey());
+                if (s != null && !e.getValue().opposite(s.dir)) s.pendingDir = e.getValue();
+            }
+            steerBuf.clear();
+
+            Map<Integer, Pos> nextHead = new HashMap<>();
+            for (var e : snakes.entrySet()) {
+                RPlayer p = players.get(e.getKey());
+                if (p == null || p.viewer) continue;
+                RSnake s = e.getValue();
+                s.dir = s.pendingDir;
+                Pos head = s.body.peekFirst();
+                if (head == null) continue;
+                nextHead.put(e.getKey(), step(head, s.dir));
+            }
+
+            Set<Pos> eaten = new HashSet<>();
+            Set<Integer> ate = new HashSet<>();
+            for (var e : nextHead.entrySet()) {
+                if (food.contains(e.getValue())) {
+                    ate.add(e.getKey());
+                    eaten.add(e.getValue());
+                }
+            }
+            food.removeAll(eaten);
+
+            for (var e : nextHead.entrySet()) {
+                RSnake s = snakes.get(e.getKey());
+                s.body.addFirst(e.getValue());
+                if (!ate.contains(e.getKey())) {
+                    s.body.removeLast();
+                } else {
+                    players.get(e.getKey()).score += 1;
+                }
+            }
+
+            record Occ(int pid, boolean head) {}
+            Map<Pos, List<Occ>> occ = new HashMap<>();
+            for (var e : snakes.entrySet()) {
+                RPlayer p = players.get(e.getKey());
+                if (p == null || p.viewer) continue;
+                boolean first = true;
+                for (Pos cell : e.getValue().body) {
+                    occ.computeIfAbsent(cell, k -> new ArrayList<>()).add(new Occ(e.getKey(), first));
+                    first = false;
+                }
+            }
+
+            Set<Integer> dead = new TreeSet<>();
+            for (var e : nextHead.entrySet()) {
+                int pid = e.getKey();
+                List<Occ> list = occ.getOrDefault(e.getValue(), List.of());
+                if (list.size() <= 1) continue;
+                if (list.stream().anyMatch(o -> o.pid() != pid || !o.head())) dead.add(pid);
+            }
+
+            for (int pid : dead) {
+                for (Occ o : occ.getOrDefault(nextHead.get(pid), List.of())) {
+                    if (o.pid() == pid) continue;
+                    RPlayer victim = players.get(o.pid());
+                    if (victim != null && !victim.viewer) victim.score += 1;
+                    break;
+                }
+            }
+
+            for (int pid : dead) {
+                deadCells.addAll(snakes.remove(pid).body);
+                players.get(pid).viewer = true;
+            }
+        }
+    }
+
+    private static final class RSnake {
+        final Deque<Pos> body = new ArrayDeque<>();
+        Dir dir, pendingDir;
+
+        RSnake(Dir dir, Dir pendingDir) {
+            this.dir = dir;
+            this.pendingDir = pendingDir;
+        }
+    }
+
+    private static final class RPlayer {
+        int score;
+        boolean viewer;
+
+        RPlayer(int score, boolean viewer) {
+            this.score = score;
+            this.viewer = viewer;
+        }
+    }
+}
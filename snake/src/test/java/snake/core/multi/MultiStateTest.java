@@ -0,0 +1,69 @@
+package snake.core.multi;
+
+import org.junit.jupiter.api.Test;
+import snake.core.Dir;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// сетка занятости и free ведутся инкрементально; сверяем их с подсчётом по телам змей и еде
+class MultiStateTest {
+
+    @Test
+    void occupancyAndFreeCellsMatchBruteForce() {
+        for (int[] size : new int[][]{{40, 30}, {12, 12}, {100, 100}, {7, 5}}) {
+            MultiEngine eng = new MultiEngine(size[0], size[1], Math.max(1, size[0] * size[1] / 6));
+            eng.rnd.setSeed(5);
+            Random drive = new Random(2);
+            int nextId = 1;
+            for (int t = 0; t < 1500; t++) {
+                if (t % 3 == 0) {
+                    eng.upsertPlayer(nextId, "p" + nextId);
+                    eng.placeNewSnakeForPlayer(nextId++);
+                }
+                for (int pid : eng.st.snakes.keySet()) {
+                    if (drive.nextInt(3) == 0) eng.applySteer(pid, Dir.values()[drive.nextInt(4)]);
+                    if (drive.nextInt(500) == 0) eng.setViewer(pid, true);
+                }
+                eng.tick();
+                check(eng.st, size[0] + "x" + size[1] + ", tick " + t);
+            }
+        }
+    }
+
+    @Test
+    void removingASnakeFreesItsCells() {
+        MultiEngine eng = new MultiEngine(20, 20, 5);
+        eng.rnd.setSeed(9);
+        for (int pid = 1; pid <= 6; pid++) {
+            eng.upsertPlayer(pid, "p" + pid);
+            assertTrue(eng.placeNewSnakeForPlayer(pid));
+        }
+        for (int t = 0; t < 20; t++) eng.tick();
+        for (int pid = 1; pid <= 6; pid++) {
+            eng.st.removeSnake(pid);
+            check(eng.st, "after removing " + pid);
+        }
+        assertEquals(20 * 20 - eng.st.food.size(), eng.st.free.size());
+    }
+
+    private static void check(MultiState st, String where) {
+        int cells = st.w * st.h;
+        int[] segments = new int[cells];
+        for (MultiState.Snake s : st.snakes.values()) {
+            for (int i = 0; i < s.length(); i++) segments[s.cell(i)]++;
+        }
+        assertEquals(st.snakes.size(), st.snakeCount(), where + ": dense snake list");
+
+        int free = 0;
+        for (int c = 0; c < cells; c++) {
+            assertEquals(segments[c], st.segmentsAt(c), where + ": segments in cell " + c);
+            assertEquals(segments[c] > 0, st.occupied(c), where + ": occupied " + c);
+            boolean expected = segments[c] == 0 && !st.food.contains(c);
+            assertEquals(expected, st.free.contains(c), where + ": free " + c);
+            if (expected) free++;
+        }
+        assertEquals(free, st.free.size(), where + ": free count");
+    }
+}
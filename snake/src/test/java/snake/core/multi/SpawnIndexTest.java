@@ -0,0 +1,92 @@
+package snake.core.multi;
+
+import org.junit.jupiter.api.Test;
+import snake.core.Dir;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpawnIndexTest {
+
+    @Test
+    void spawnCentresMatchBruteForce() {
+        for (int[] size : new int[][]{{100, 100}, {40, 30}, {20, 15}, {7, 5}, {3, 4}}) {
+            MultiEngine eng = new MultiEngine(size[0], size[1], 3);
+            eng.rnd.setSeed(5);
+            Random drive = new Random(11);
+            SpawnIndex index = new SpawnIndex(eng.st);
+            int pid = 1;
+            for (int t = 0; t < 1000; t++) {
+                String where = size[0] + "x" + size[1] + ", tick " + t;
+                int expected = emptySquares(eng.st);
+                index.invalidate();
+                assertEquals(expected, index.count(), where + ": spawn centres");
+                assertEquals(expected > 0, eng.canSpawn(), where + ": canSpawn");
+
+                eng.upsertPlayer(pid, "p" + pid);
+                boolean placed = eng.placeNewSnakeForPlayer(pid);
+                assertEquals(expected > 0, placed, where + ": placement");
+                if (placed) checkPlaced(eng.st, eng.st.snakes.get(pid), where);
+                pid++;
+
+                for (int id : eng.st.snakes.keySet()) {
+                    if (drive.nextInt(3) == 0) eng.applySteer(id, Dir.values()[drive.nextInt(4)]);
+                }
+                eng.tick();
+            }
+        }
+    }
+
+    @Test
+    void pickedCentreHasAnEmptySquare() {
+        MultiEngine eng = new MultiEngine(30, 30, 40);
+        eng.rnd.setSeed(3);
+        SpawnIndex index = new SpawnIndex(eng.st);
+        Random rnd = new Random(1);
+        for (int t = 0; t < 200; t++) {
+            eng.upsertPlayer(t + 1, "p");
+            eng.placeNewSnakeForPlayer(t + 1);
+            eng.tick();
+            index.invalidate();
+            int centre = index.pick(rnd);
+            if (centre < 0) {
+                assertEquals(0, emptySquares(eng.st));
+            } else {
+                assertTrue(squareEmpty(eng.st, eng.st.x(centre), eng.st.y(centre)), "tick " + t);
+            }
+        }
+    }
+
+    // новая змея: голова в центре пустого до неё квадрата, хвост в соседней клетке
+    private static void checkPlaced(MultiState st, MultiState.Snake s, String where) {
+        assertEquals(2, s.length(), where);
+        int head = s.cell(0);
+        boolean adjacent = false;
+        for (Dir d : Dir.values()) adjacent |= st.step(head, d) == s.cell(1);
+        assertTrue(adjacent, where + ": tail next to the head");
+        st.removeSnake(s.playerId);
+        assertTrue(squareEmpty(st, st.x(head), st.y(head)), where + ": square around the head");
+        st.addSnake(s);
+    }
+
+    private static int emptySquares(MultiState st) {
+        int n = 0;
+        for (int y = 0; y < st.h; y++) {
+            for (int x = 0; x < st.w; x++) {
+                if (squareEmpty(st, x, y)) n++;
+            }
+        }
+        return n;
+    }
+
+    private static boolean squareEmpty(MultiState st, int cx, int cy) {
+        for (int dy = -2; dy <= 2; dy++) {
+            for (int dx = -2; dx <= 2; dx++) {
+                int c = st.cell(cx + dx, cy + dy);
+                if (st.occupied(c) || st.food.contains(c)) return false;
+            }
+        }
+        return true;
+    }
+}